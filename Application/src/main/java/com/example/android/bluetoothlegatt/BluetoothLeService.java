@@ -29,12 +29,21 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -47,7 +56,27 @@ public class BluetoothLeService extends Service {
     private BluetoothAdapter mBluetoothAdapter;
     private String mBluetoothDeviceAddress;
     private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+    private Handler mHandler;
+
+    // How long the connection outlives the last bound client.
+    private static final long DEFAULT_RETAIN_PERIOD = 10000;
+    private long mRetainPeriod = DEFAULT_RETAIN_PERIOD;
+    // Time-to-first-sample after a client (re)binds, on the elapsedRealtimeNanos time base.
+    private volatile long mRebindNanos;
+    private volatile long mUnbindNanos;
+    private volatile long mTimeToFirstSampleNanos = -1;
+    private final CopyOnWriteArrayList<ConsumerRecord> mConsumers =
+            new CopyOnWriteArrayList<ConsumerRecord>();
+
+    // Dispatch table from characteristic instance to its subscription.  The map is never
+    // modified once published; subscribe and unsubscribe swap in a new copy.
+    private volatile Map<BluetoothGattCharacteristic, NotificationSubscription> mSubscriptions =
+            Collections.emptyMap();
+    private final Object mSubscriptionLock = new Object();
+    private final ArrayDeque<DescriptorWrite> mDescriptorWriteQueue =
+            new ArrayDeque<DescriptorWrite>();
+    private boolean mDescriptorWriteInFlight = false;
 
     private static final int STATE_DISCONNECTED = 0;
     private static final int STATE_CONNECTING = 1;
@@ -59,15 +88,29 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
     public final static String ACTION_GATT_SERVICES_DISCOVERED =
             "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
+
+    // Binds the IGloveStream of the service for other apps, which need the permission.
+    public final static String ACTION_BIND_GLOVE_STREAM =
+            "com.example.android.bluetoothlegatt.action.BIND_GLOVE_STREAM";
+    public final static String PERMISSION_READ_GLOVE_STREAM =
+            "com.example.android.bluetoothlegatt.permission.READ_GLOVE_STREAM";
+    private static final int GLOVE_STREAM_CAPACITY = 1024;
+    // Created when the first client binds the stream, closed when the last one unbinds.
+    private volatile GloveStream mGloveStream;
+
+    // Payload representations a DataConsumer can ask for.
+    public final static int REPRESENTATION_RAW = 1;
+    public final static int REPRESENTATION_TEXT = 2;
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
 
+    public final static UUID UUID_CLIENT_CONFIG =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
     public final static UUID UUID_DEBUG = UUID.fromString(SampleGattAttributes.PALLETTE_DEBUG);
+    // Layout of the frames on the debugging channel.
+    public final static FrameSchema GLOVE_SCHEMA = FrameSchema.PALLETTE;
     public final static UUID UUID_PALLETTE = UUID.fromString(SampleGattAttributes.PALLETTE_SENSOR_SERVICE);
 
     // Implements callback methods for GATT events that the app cares about.  For example,
@@ -75,31 +118,39 @@ public class BluetoothLeService extends Service {
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            SystemTrace.beginSection("BluetoothLeService.onConnectionStateChange");
             String intentAction;
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 intentAction = ACTION_GATT_CONNECTED;
                 mConnectionState = STATE_CONNECTED;
+                StartupTimeline.end(StartupTimeline.PHASE_CONNECT);
                 broadcastUpdate(intentAction);
                 Log.i(TAG, "Connected to GATT server.");
                 // Attempts to discover services after successful connection.
+                StartupTimeline.begin(StartupTimeline.PHASE_DISCOVER_SERVICES);
                 Log.i(TAG, "Attempting to start service discovery:" +
                         mBluetoothGatt.discoverServices());
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
                 mConnectionState = STATE_DISCONNECTED;
+                clearSubscriptions();
                 Log.i(TAG, "Disconnected from GATT server.");
                 broadcastUpdate(intentAction);
             }
+            SystemTrace.endSection();
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            SystemTrace.beginSection("BluetoothLeService.onServicesDiscovered");
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                StartupTimeline.end(StartupTimeline.PHASE_DISCOVER_SERVICES);
                 broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
+            SystemTrace.endSection();
         }
 
         @Override
@@ -107,14 +158,45 @@ public class BluetoothLeService extends Service {
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                dispatchPayload(characteristic);
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            final NotificationSubscription subscription = mSubscriptions.get(characteristic);
+            if (subscription != null) {
+                if (!StartupTimeline.hasEnded(StartupTimeline.PHASE_FIRST_SAMPLE)) {
+                    StartupTimeline.end(StartupTimeline.PHASE_FIRST_SAMPLE);
+                }
+                final long now = SystemClock.elapsedRealtimeNanos();
+                subscription.onNotification(characteristic.getValue(), now);
+                final GloveStream stream = mGloveStream;
+                if (stream != null && UUID_DEBUG.equals(characteristic.getUuid())) {
+                    stream.write(now, characteristic.getValue());
+                }
+                if (mRebindNanos != 0 && subscription.hasHandler()) {
+                    mTimeToFirstSampleNanos = now - mRebindNanos;
+                    Log.i(TAG, "First sample " + getTimeToFirstSampleMillis()
+                            + " ms after bind, " + (now - mUnbindNanos) / 1000000L
+                            + " ms after the previous client left");
+                    mRebindNanos = 0;
+                }
+            }
+            dispatchPayload(characteristic);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onDescriptorWrite received: " + status);
+            } else if (!StartupTimeline.hasEnded(StartupTimeline.PHASE_SUBSCRIBE)) {
+                StartupTimeline.end(StartupTimeline.PHASE_SUBSCRIBE);
+                StartupTimeline.begin(StartupTimeline.PHASE_FIRST_SAMPLE);
+            }
+            writeNextDescriptor();
         }
     };
 
@@ -123,59 +205,182 @@ public class BluetoothLeService extends Service {
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
+    /**
+     * Hands a payload to every registered consumer in the representation it asked for.  When
+     * nobody is attached the payload is dropped before any copy or formatting happens.
+     */
+    private void dispatchPayload(final BluetoothGattCharacteristic characteristic) {
+        if (mConsumers.isEmpty()) {
+            return;
+        }
+        final byte[] value = characteristic.getValue();
+        if (value == null || value.length == 0) {
+            return;
+        }
+        // The stack reuses the characteristic value, so consumers get a private copy.
+        final UUID uuid = characteristic.getUuid();
+        final byte[] data = value.clone();
+        final long now = SystemClock.uptimeMillis();
+        for (ConsumerRecord record : mConsumers) {
+            record.dispatch(uuid, data, now, false);
+        }
+    }
 
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_DEBUG.equals(characteristic.getUuid())){
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                final StringBuilder stringBuilder2 = new StringBuilder(data.length);
-
-//                int left = ((int)data[4])<<8 + (int)data[5];
-//                int right = ((int)data[6])<<8 + (int)data[7];
-//                int ir1 = ((int)data[0])<<8 + (int)data[1];
-//                int ir2 = ((int)data[2])<<8 + (int)data[3];
-//                for(byte byteChar : data)
-//                    stringBuilder.append(String.format("%02X ", byteChar));
-                for(int i=0;i<data.length;i+=2){
-
-                    int temp = ((data[i] & 0xff) << 8) + (data[i+1] & 0xff);
-                    stringBuilder.append(String.valueOf(temp)+"\t");
-//                    stringBuilder2.append(String.format("%02X ", data[i])+String.format("%02X ", data[i+1])+"\n");
+    /**
+     * Receives payloads from the connected device.  Only the representations a consumer
+     * registered for are produced for it.
+     */
+    public interface DataConsumer {
+        /**
+         * Called for every payload when registered with {@link #REPRESENTATION_RAW}.  The array
+         * is shared between consumers and must not be modified.
+         */
+        void onRawData(UUID uuid, byte[] data);
+
+        /**
+         * Called at most once per text interval when registered with
+         * {@link #REPRESENTATION_TEXT}.  A payload that arrives too soon is shown when the
+         * interval is over, unless a newer one is shown first.
+         */
+        void onTextData(UUID uuid, String text);
+    }
+
+    private static final class ConsumerRecord {
+        final DataConsumer mConsumer;
+        final int mRepresentations;
+        final long mTextIntervalMillis;
+        final Handler mHandler;
+        // Runs the trailing text update; the consumer's handler, or the service's if it has
+        // none.
+        final Handler mTimerHandler;
+        // Guarded by this.  The latest payload held back by the text interval, if any.
+        long mLastTextAt = Long.MIN_VALUE / 2;
+        UUID mPendingUuid;
+        byte[] mPendingData;
+        boolean mTrailingPosted;
+
+        ConsumerRecord(DataConsumer consumer, int representations, long textIntervalMillis,
+                       Handler handler, Handler timerHandler) {
+            mConsumer = consumer;
+            mRepresentations = representations;
+            mTextIntervalMillis = textIntervalMillis;
+            mHandler = handler;
+            mTimerHandler = handler != null ? handler : timerHandler;
+        }
+
+        /**
+         * Delivers a payload.  Text is limited to one update per interval unless force is set,
+         * which the snapshot of every subscription on registration uses.
+         */
+        void dispatch(final UUID uuid, final byte[] data, long now, boolean force) {
+            if ((mRepresentations & REPRESENTATION_RAW) != 0) {
+                if (mHandler == null) {
+                    mConsumer.onRawData(uuid, data);
+                } else {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mConsumer.onRawData(uuid, data);
+                        }
+                    });
                 }
-                intent.putExtra(EXTRA_DATA, stringBuilder.toString());
-//                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString() + "\n" + stringBuilder2.toString());
             }
-        }
-        else if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
+            if ((mRepresentations & REPRESENTATION_TEXT) == 0) {
+                return;
+            }
+            synchronized (this) {
+                final long wait = mLastTextAt + mTextIntervalMillis - now;
+                if (wait > 0 && !force) {
+                    // Too soon; keep the latest for when the interval is over.
+                    mPendingUuid = uuid;
+                    mPendingData = data;
+                    if (!mTrailingPosted) {
+                        mTrailingPosted = true;
+                        mTimerHandler.postDelayed(mTrailing, wait);
+                    }
+                    return;
+                }
+                mLastTextAt = now;
+                mPendingData = null;
+            }
+            if (mHandler == null) {
+                mConsumer.onTextData(uuid, PayloadFormatter.format(uuid, data));
             } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
+                // Formatting is deferred to the consumer's own thread.
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mConsumer.onTextData(uuid, PayloadFormatter.format(uuid, data));
+                    }
+                });
             }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+        }
+
+        private final Runnable mTrailing = new Runnable() {
+            @Override
+            public void run() {
+                final UUID uuid;
+                final byte[] data;
+                synchronized (ConsumerRecord.this) {
+                    mTrailingPosted = false;
+                    uuid = mPendingUuid;
+                    data = mPendingData;
+                    mPendingData = null;
+                    if (data == null) {
+                        // A newer payload was shown meanwhile.
+                        return;
+                    }
+                    mLastTextAt = SystemClock.uptimeMillis();
+                }
+                mConsumer.onTextData(uuid, PayloadFormatter.format(uuid, data));
+            }
+        };
+
+        void cancel() {
+            mTimerHandler.removeCallbacks(mTrailing);
+        }
+    }
+
+    /**
+     * Registers a consumer for payloads from read and notified characteristics.  Registering
+     * the same consumer again replaces its previous registration.
+     *
+     * @param consumer The consumer to register.
+     * @param representations A combination of {@link #REPRESENTATION_RAW} and
+     *                        {@link #REPRESENTATION_TEXT}.
+     * @param textIntervalMillis Minimum time between two text updates for this consumer.
+     * @param handler Handler the callbacks are posted to, or null to be called directly on the
+     *                Bluetooth callback thread.  A text update held back by the interval is
+     *                then delivered on the main thread.
+     */
+    public void addDataConsumer(DataConsumer consumer, int representations,
+                                long textIntervalMillis, Handler handler) {
+        removeDataConsumer(consumer);
+        final ConsumerRecord record =
+                new ConsumerRecord(consumer, representations, textIntervalMillis, handler,
+                        mHandler);
+        mConsumers.add(record);
+        // Start the new consumer off with the latest value of every subscription.
+        final long now = SystemClock.uptimeMillis();
+        for (NotificationSubscription subscription : mSubscriptions.values()) {
+            final byte[] latest = subscription.getLatestValue();
+            if (latest != null) {
+                final BluetoothGattCharacteristic characteristic = subscription.getCharacteristic();
+                record.dispatch(characteristic.getUuid(), latest, now, true);
+            }
+        }
+    }
+
+    /**
+     * Unregisters a consumer added with {@link #addDataConsumer}.
+     */
+    public void removeDataConsumer(DataConsumer consumer) {
+        for (ConsumerRecord record : mConsumers) {
+            if (record.mConsumer == consumer) {
+                mConsumers.remove(record);
+                record.cancel();
             }
         }
-        sendBroadcast(intent);
     }
 
     public class LocalBinder extends Binder {
@@ -184,22 +389,175 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
+        if (ACTION_BIND_GLOVE_STREAM.equals(intent.getAction())) {
+            // The permission is enforced by the system at bind time, see the manifest.
+            return openGloveStream() ? mGloveStreamBinder : null;
+        }
+        onClientBound();
         return mBinder;
     }
 
+    @Override
+    public void onRebind(Intent intent) {
+        if (ACTION_BIND_GLOVE_STREAM.equals(intent.getAction())) {
+            openGloveStream();
+            return;
+        }
+        onClientBound();
+    }
+
+    private boolean openGloveStream() {
+        if (mGloveStream == null) {
+            try {
+                mGloveStream = new GloveStream(getCacheDir(), GLOVE_SCHEMA,
+                        GLOVE_STREAM_CAPACITY);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to create the glove stream", e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void closeGloveStream() {
+        final GloveStream stream = mGloveStream;
+        if (stream != null) {
+            mGloveStream = null;
+            stream.close();
+        }
+    }
+
+    // The binder may outlive the stream when a client passed it on.
+    private GloveStream requireGloveStream() {
+        final GloveStream stream = mGloveStream;
+        if (stream == null) {
+            throw new IllegalStateException("The glove stream is closed");
+        }
+        return stream;
+    }
+
+    private void onClientBound() {
+        mHandler.removeCallbacks(mRetainExpired);
+        mRebindNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
+        if (ACTION_BIND_GLOVE_STREAM.equals(intent.getAction())) {
+            // Stream clients do not keep the connection, nor take the handlers with them.  The
+            // ring stops being written until the next client binds; true makes the system
+            // call onRebind for it.
+            closeGloveStream();
+            return true;
+        }
         // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
+        // such that resources are cleaned up properly.  The connection and its subscriptions are
+        // kept for the retain period first, so a client that is only being recreated, for
+        // example on rotation, can pick them up again.  The departed client's handlers are
+        // detached right away.
+        for (NotificationSubscription subscription : mSubscriptions.values()) {
+            subscription.setHandler(null, null);
+        }
+        mUnbindNanos = SystemClock.elapsedRealtimeNanos();
+        mHandler.postDelayed(mRetainExpired, mRetainPeriod);
+        // Returning true makes the system call onRebind for the next client.
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mRetainExpired);
         close();
-        return super.onUnbind(intent);
+        closeGloveStream();
+        super.onDestroy();
+    }
+
+    /**
+     * @param millis How long the connection is kept open after the last client unbinds.
+     */
+    public void setRetainPeriod(long millis) {
+        mRetainPeriod = millis;
+    }
+
+    /**
+     * @return Time from the latest client binding to the first notification delivered to a
+     *         handler after it, or -1 if not measured yet.
+     */
+    public float getTimeToFirstSampleMillis() {
+        return mTimeToFirstSampleNanos < 0 ? -1 : mTimeToFirstSampleNanos / 1e6f;
+    }
+
+    /**
+     * @return True if connected to the GATT server.
+     */
+    public boolean isConnected() {
+        return mConnectionState == STATE_CONNECTED;
     }
 
+    private final Runnable mRetainExpired = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "No client came back, closing GATT connection.");
+            close();
+            stopSelf();
+        }
+    };
+
     private final IBinder mBinder = new LocalBinder();
 
+    // Every call checks the permission again, in case the binder was passed on.
+    private final IGloveStream.Stub mGloveStreamBinder = new IGloveStream.Stub() {
+        @Override
+        public String[] getChannelNames() {
+            enforceCallingOrSelfPermission(PERMISSION_READ_GLOVE_STREAM, null);
+            return requireGloveStream().getChannelNames();
+        }
+
+        @Override
+        public ParcelFileDescriptor openRing() {
+            enforceCallingOrSelfPermission(PERMISSION_READ_GLOVE_STREAM, null);
+            try {
+                return requireGloveStream().openRing();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open the glove stream", e);
+                return null;
+            }
+        }
+
+        @Override
+        public ParcelFileDescriptor openWakeup(IBinder token) {
+            enforceCallingOrSelfPermission(PERMISSION_READ_GLOVE_STREAM, null);
+            try {
+                return requireGloveStream().openWakeup(token);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open a glove stream wakeup", e);
+                return null;
+            }
+        }
+
+        @Override
+        public void closeWakeup(IBinder token) {
+            enforceCallingOrSelfPermission(PERMISSION_READ_GLOVE_STREAM, null);
+            final GloveStream stream = mGloveStream;
+            if (stream != null) {
+                stream.closeWakeup(token);
+            }
+        }
+    };
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -241,6 +599,13 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        // Still connected to this device, typically for a client recreated after rotation.
+        if (address.equals(mBluetoothDeviceAddress) && mBluetoothGatt != null
+                && mConnectionState == STATE_CONNECTED) {
+            Log.d(TAG, "Reusing the open connection.");
+            return true;
+        }
+
         // Previously connected device.  Try to reconnect.
         if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
                 && mBluetoothGatt != null) {
@@ -258,12 +623,17 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
+        SystemTrace.beginSection("BluetoothLeService.connect");
+        StartupTimeline.begin(StartupTimeline.PHASE_CONNECT);
+        // Started as well as bound, so the connection can outlive the bound client.
+        startService(new Intent(this, BluetoothLeService.class));
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
         mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
         Log.d(TAG, "Trying to create a new connection.");
         mBluetoothDeviceAddress = address;
         mConnectionState = STATE_CONNECTING;
+        SystemTrace.endSection();
         return true;
     }
 
@@ -291,6 +661,7 @@ public class BluetoothLeService extends Service {
         }
         mBluetoothGatt.close();
         mBluetoothGatt = null;
+        clearSubscriptions();
     }
 
     /**
@@ -320,23 +691,136 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
+        SystemTrace.beginSection("BluetoothLeService.setCharacteristicNotification");
         mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
 
-        // This is specific to Heart Rate Measurement.
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
-
-        // This is specific to Pallette.
-        if (UUID_DEBUG.equals(characteristic.getUuid())) {
-            Log.d("PALLETTE","Writing to pallete");
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.PALLETTE_CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+        // Heart Rate Measurement and the Pallette debugging channel both use the standard
+        // client characteristic configuration descriptor.
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID_CLIENT_CONFIG);
+        if (descriptor != null) {
+            if (enabled) {
+                StartupTimeline.begin(StartupTimeline.PHASE_SUBSCRIBE);
+            }
+            enqueueDescriptorWrite(descriptor, enabled
+                    ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                    : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        }
+        SystemTrace.endSection();
+    }
+
+    /**
+     * Subscribes to notifications on a characteristic without affecting other subscriptions.
+     * Subscribing to an already subscribed characteristic replaces its handler.
+     *
+     * @param characteristic Characteristic to subscribe to.
+     * @param handler Receives every notification of this characteristic, may be null to only
+     *                collect statistics and feed the registered {@link DataConsumer}s.
+     * @param callbackHandler Handler the notifications are posted to, or null to be called
+     *                        directly on the Bluetooth callback thread.
+     *
+     * @return The new subscription, or null if the service is not connected.
+     */
+    public NotificationSubscription subscribe(BluetoothGattCharacteristic characteristic,
+            NotificationSubscription.NotificationHandler handler, Handler callbackHandler) {
+        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return null;
+        }
+        final NotificationSubscription subscription =
+                new NotificationSubscription(characteristic, handler, callbackHandler);
+        final boolean subscribed;
+        synchronized (mSubscriptionLock) {
+            final IdentityHashMap<BluetoothGattCharacteristic, NotificationSubscription> table =
+                    new IdentityHashMap<BluetoothGattCharacteristic, NotificationSubscription>(
+                            mSubscriptions);
+            subscribed = table.put(characteristic, subscription) != null;
+            mSubscriptions = table;
+        }
+        if (!subscribed) {
+            setCharacteristicNotification(characteristic, true);
+        }
+        return subscription;
+    }
+
+    /**
+     * Ends the subscription on a characteristic, if any.
+     */
+    public void unsubscribe(BluetoothGattCharacteristic characteristic) {
+        final NotificationSubscription subscription;
+        synchronized (mSubscriptionLock) {
+            if (!mSubscriptions.containsKey(characteristic)) {
+                return;
+            }
+            final IdentityHashMap<BluetoothGattCharacteristic, NotificationSubscription> table =
+                    new IdentityHashMap<BluetoothGattCharacteristic, NotificationSubscription>(
+                            mSubscriptions);
+            subscription = table.remove(characteristic);
+            mSubscriptions = table;
+        }
+        Log.d(TAG, "Unsubscribed " + characteristic.getUuid() + " after "
+                + subscription.getCount() + " notifications at "
+                + subscription.getSampleRate() + " Hz");
+        setCharacteristicNotification(characteristic, false);
+    }
+
+    /**
+     * @return True if there is a subscription on the characteristic.
+     */
+    public boolean isSubscribed(BluetoothGattCharacteristic characteristic) {
+        return mSubscriptions.containsKey(characteristic);
+    }
+
+    /**
+     * @return A snapshot of all active subscriptions.
+     */
+    public List<NotificationSubscription> getSubscriptions() {
+        return new ArrayList<NotificationSubscription>(mSubscriptions.values());
+    }
+
+    private void clearSubscriptions() {
+        synchronized (mSubscriptionLock) {
+            mSubscriptions = Collections.emptyMap();
+        }
+        synchronized (mDescriptorWriteQueue) {
+            mDescriptorWriteQueue.clear();
+            mDescriptorWriteInFlight = false;
+        }
+    }
+
+    private static final class DescriptorWrite {
+        final BluetoothGattDescriptor mDescriptor;
+        final byte[] mValue;
+
+        DescriptorWrite(BluetoothGattDescriptor descriptor, byte[] value) {
+            mDescriptor = descriptor;
+            mValue = value;
+        }
+    }
+
+    // Only one GATT operation may be outstanding at a time, so descriptor writes for several
+    // subscriptions are queued and issued one after the other from onDescriptorWrite.
+    private void enqueueDescriptorWrite(BluetoothGattDescriptor descriptor, byte[] value) {
+        synchronized (mDescriptorWriteQueue) {
+            mDescriptorWriteQueue.add(new DescriptorWrite(descriptor, value));
+            if (!mDescriptorWriteInFlight) {
+                writeNextDescriptor();
+            }
+        }
+    }
+
+    private void writeNextDescriptor() {
+        synchronized (mDescriptorWriteQueue) {
+            mDescriptorWriteInFlight = false;
+            DescriptorWrite write;
+            while (mBluetoothGatt != null && (write = mDescriptorWriteQueue.poll()) != null) {
+                write.mDescriptor.setValue(write.mValue);
+                if (mBluetoothGatt.writeDescriptor(write.mDescriptor)) {
+                    mDescriptorWriteInFlight = true;
+                    return;
+                }
+                Log.w(TAG, "Descriptor write failed for "
+                        + write.mDescriptor.getCharacteristic().getUuid());
+            }
         }
     }
 
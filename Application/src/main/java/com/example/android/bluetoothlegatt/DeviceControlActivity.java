@@ -18,43 +18,44 @@ package com.example.android.bluetoothlegatt;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ExpandableListView;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import com.orbotix.ConvenienceRobot;
-import com.orbotix.DualStackDiscoveryAgent;
-import com.orbotix.command.RGBLEDOutputCommand;
-import com.orbotix.common.DiscoveryException;
 import com.orbotix.common.Robot;
-import com.orbotix.common.RobotChangedStateListener;
-import com.orbotix.macro.MacroObject;
-import com.orbotix.macro.cmd.Delay;
-import com.orbotix.macro.cmd.RawMotor;
-import com.orbotix.macro.cmd.Roll;
-import com.orbotix.macro.cmd.RawMotor.DriveMode;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.UUID;
 import java.util.regex.Matcher;
 
 /**
@@ -63,15 +64,37 @@ import java.util.regex.Matcher;
  * communicates with {@code BluetoothLeService}, which in turn interacts with the
  * Bluetooth LE API.
  */
-public class DeviceControlActivity extends Activity implements RobotChangedStateListener{
+public class DeviceControlActivity extends Activity {
     private final static String TAG = DeviceControlActivity.class.getSimpleName();
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
-    private ConvenienceRobot mRobot;
+    // Where telemetry goes, overriding what was used last time.
+    public static final String EXTRAS_TELEMETRY_HOST = "TELEMETRY_HOST";
+    public static final String EXTRAS_TELEMETRY_PORT = "TELEMETRY_PORT";
+    // Every robot that came online; each one follows the glove.  Owned by RobotService and
+    // only set while this Activity holds a reference on it.
+    private RobotService mRobotService;
+    private volatile RobotGroup mRobots;
+    private int mDriveMode = MacroTrajectoryStreamer.MODE_PER_SAMPLE;
 
     private TextView mConnectionState;
     private TextView mDataField;
+    private WaveformView mWaveform;
+    // Set while the glove frames are being recorded to a session file.
+    // Written on the control thread; mRecording is what the menu shows.
+    private volatile SessionRecorder mRecorder;
+    private boolean mRecording = false;
+    // Set while frames, mapping and commands are streamed to a desktop.  Written on the control
+    // thread like mRecorder; mStreamingTelemetry is what the menu shows.
+    private static final String PREFS_TELEMETRY = "telemetry";
+    private static final String TELEMETRY_DEFAULT_HOST = "127.0.0.1";
+    private static final long TELEMETRY_FLUSH_PERIOD_MS = 100;
+    private volatile TelemetryExporter mTelemetry;
+    private boolean mStreamingTelemetry = false;
+    // Where telemetry goes; asked for each time streaming starts and kept in PREFS_TELEMETRY.
+    private String mTelemetryHost;
+    private int mTelemetryPort;
     private String mDeviceName;
     private String mDeviceAddress;
     private ExpandableListView mGattServicesList;
@@ -80,15 +103,69 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
     private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
             new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
     private boolean mConnected = false;
-    private BluetoothGattCharacteristic mNotifyCharacteristic;
     private static final float ROBOT_VELOCITY = 0.6f;
     private static final int REQUEST_CODE_LOCATION_PERMISSION = 42;
+    private static final long DATA_FIELD_REFRESH_MS = 100;
+    private static final long TRACE_COUNTER_PERIOD_MS = 100;
+    private final int[] mSensors = new int[BluetoothLeService.GLOVE_SCHEMA.getChannelCount()];
+    // Learned per glove; maps the active band of each sensor to 0..1.
+    private static final String PREFS_CALIBRATION = "calibration";
+    private SensorCalibration mCalibration;
+    private static final long WAVEFORM_WINDOW_NANOS = 5L * 1000000000L;
+    private boolean mResumed = false;
+    // The main thread only renders.  Glove frames are queued by the Bluetooth callback thread
+    // and decoded, filtered, mapped and turned into robot commands on the control thread.
+    private Handler mHandler;
+    private HandlerThread mControlThread;
+    private Handler mControlHandler;
+    // The glove path, decode to send.
+    private GlovePipeline mGlove;
+    // Stops the robots when the input they follow goes stale, from a thread of its own.
+    private InputWatchdog mWatchdog;
+    private FrameQueue mFrameQueue;
+    private ThreadLoad mMainLoad;
+    private ThreadLoad mControlLoad;
 
 
     private final String LIST_NAME = "NAME";
     private final String LIST_UUID = "UUID";
     int spheroState = 0;
 
+    // Code to manage the robot connection, which RobotService keeps across activities.
+    private final ServiceConnection mRobotServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mRobotService = ((RobotService.LocalBinder) service).getService();
+            mRobotService.acquire();
+            mRobotService.addListener(mRobotListener);
+            mRobots = mRobotService.getRobots();
+            mRobots.setDriveMode(mDriveMode);
+            mWatchdogTarget.mRobots = mRobots;
+            mGlove.setRobots(mRobots);
+            updateRobotIndicator();
+            startDiscovery();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mRobotService = null;
+            mRobots = null;
+            mGlove.setRobots(null);
+        }
+    };
+
+    private final RobotService.Listener mRobotListener = new RobotService.Listener() {
+        @Override
+        public void onRobotOnline(Robot robot) {
+            updateRobotIndicator();
+        }
+
+        @Override
+        public void onRobotOffline(Robot robot) {
+        }
+    };
+
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
@@ -101,6 +178,10 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
             }
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
+            restoreServiceState();
+            if (mResumed) {
+                attachDataConsumer();
+            }
         }
 
         @Override
@@ -113,8 +194,6 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
     // ACTION_GATT_CONNECTED: connected to a GATT server.
     // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
     // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -122,21 +201,64 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
                 mConnected = true;
                 updateConnectionState(R.string.connected);
+                updateRobotIndicator();
                 invalidateOptionsMenu();
             } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
+                mWatchdog.trip();
                 mConnected = false;
                 updateConnectionState(R.string.disconnected);
+                updateRobotIndicator();
                 invalidateOptionsMenu();
                 clearUI();
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 // Show all the supported services and characteristics on the user interface.
                 displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
             }
         }
     };
 
+    // The service keeps the connection across a recreation of this activity, e.g. on rotation,
+    // so pick up its state and subscriptions instead of waiting for the broadcasts.
+    private void restoreServiceState() {
+        if (mBluetoothLeService.isConnected()) {
+            mConnected = true;
+            updateConnectionState(R.string.connected);
+            updateRobotIndicator();
+            invalidateOptionsMenu();
+            displayGattServices(mBluetoothLeService.getSupportedGattServices());
+        }
+        for (NotificationSubscription subscription : mBluetoothLeService.getSubscriptions()) {
+            if (BluetoothLeService.UUID_DEBUG.equals(
+                    subscription.getCharacteristic().getUuid())) {
+                subscription.setHandler(mFrameQueue, null);
+            }
+        }
+    }
+
+    // Drives the robot from every notification of the Pallette debugging channel, on the
+    // control thread.
+    private final FrameQueue.Consumer mSensorConsumer = new FrameQueue.Consumer() {
+        @Override
+        public void onFrame(byte[] data, long arrivalNanos) {
+            mGlove.push(data, arrivalNanos);
+        }
+    };
+
+    // Shows data from the device while the Activity is in the foreground.  This can be a
+    // result of read or notification operations on any subscribed characteristic; the text is
+    // only formatted every DATA_FIELD_REFRESH_MS.
+    private final BluetoothLeService.DataConsumer mDataConsumer =
+            new BluetoothLeService.DataConsumer() {
+                @Override
+                public void onRawData(UUID uuid, byte[] data) {
+                }
+
+                @Override
+                public void onTextData(UUID uuid, String text) {
+                    displayData(text);
+                }
+    };
+
     // If a given GATT characteristic is selected, check for supported features.  This sample
     // demonstrates 'Read' and 'Notify' features.  See
     // http://d.android.com/reference/android/bluetooth/BluetoothGatt.html for the complete
@@ -150,21 +272,21 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
                         final BluetoothGattCharacteristic characteristic =
                                 mGattCharacteristics.get(groupPosition).get(childPosition);
                         final int charaProp = characteristic.getProperties();
-                        if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
-                            // If there is an active notification on a characteristic, clear
-                            // it first so it doesn't update the data field on the user interface.
-                            if (mNotifyCharacteristic != null) {
-                                mBluetoothLeService.setCharacteristicNotification(
-                                        mNotifyCharacteristic, false);
-                                mNotifyCharacteristic = null;
+                        if ((charaProp & BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
+                            // Selecting a characteristic toggles its subscription; other
+                            // subscriptions keep streaming.
+                            if (mBluetoothLeService.isSubscribed(characteristic)) {
+                                mBluetoothLeService.unsubscribe(characteristic);
+                            } else if (BluetoothLeService.UUID_DEBUG.equals(
+                                    characteristic.getUuid())) {
+                                mBluetoothLeService.subscribe(characteristic, mFrameQueue,
+                                        null);
+                            } else {
+                                mBluetoothLeService.subscribe(characteristic, null, null);
                             }
+                        } else if ((charaProp & BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
                             mBluetoothLeService.readCharacteristic(characteristic);
                         }
-                        if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                            mNotifyCharacteristic = characteristic;
-                            mBluetoothLeService.setCharacteristicNotification(
-                                    characteristic, true);
-                        }
                         return true;
                     }
                     return false;
@@ -180,8 +302,18 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.gatt_services_characteristics);
-//        commented for sphero
-        DualStackDiscoveryAgent.getInstance().addRobotStateListener( this );
+        TraceLog.installCrashDump(new File(getFilesDir(), "traces/crash.trace"));
+        mHandler = new Handler();
+        mControlThread = new HandlerThread("GloveControl", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mControlThread.start();
+        mControlHandler = new Handler(mControlThread.getLooper());
+        mFrameQueue = new FrameQueue(mControlHandler, mSensorConsumer);
+        mMainLoad = new ThreadLoad("main", mHandler);
+        mControlLoad = new ThreadLoad("control", mControlHandler);
+        mMainLoad.start();
+        mControlLoad.start();
+        mControlHandler.post(mTraceCounters);
+        mWatchdog = new InputWatchdog(mWatchdogTarget);
         if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ) {
             int hasLocationPermission = checkSelfPermission( Manifest.permission.ACCESS_COARSE_LOCATION );
             if( hasLocationPermission != PackageManager.PERMISSION_GRANTED ) {
@@ -196,6 +328,19 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+        mCalibration = SensorCalibration.load(
+                getSharedPreferences(PREFS_CALIBRATION, MODE_PRIVATE), mDeviceAddress,
+                mSensors.length);
+        mGlove = new GlovePipeline(BluetoothLeService.GLOVE_SCHEMA, mCalibration, mWatchdog,
+                mControlHandler, mGloveListener);
+        final SharedPreferences telemetry = getSharedPreferences(PREFS_TELEMETRY, MODE_PRIVATE);
+        mTelemetryHost = intent.hasExtra(EXTRAS_TELEMETRY_HOST)
+                ? intent.getStringExtra(EXTRAS_TELEMETRY_HOST)
+                : telemetry.getString("host", TELEMETRY_DEFAULT_HOST);
+        mTelemetryPort = intent.getIntExtra(EXTRAS_TELEMETRY_PORT,
+                telemetry.getInt("port", TelemetryExporter.DEFAULT_PORT));
+        telemetry.edit().putString("host", mTelemetryHost).putInt("port", mTelemetryPort)
+                .apply();
 
         // Sets up UI references.
         ((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
@@ -203,6 +348,8 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
         mGattServicesList.setOnChildClickListener(servicesListClickListner);
         mConnectionState = (TextView) findViewById(R.id.connection_state);
         mDataField = (TextView) findViewById(R.id.data_value);
+        mWaveform = (WaveformView) findViewById(R.id.waveform);
+        mWaveform.setSource(mGlove.getGloveHistory(), WAVEFORM_WINDOW_NANOS);
         spheroButton = (Button) findViewById(R.id.connect_sphero_button);
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -211,11 +358,7 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
 
         spheroButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                if( Build.VERSION.SDK_INT < Build.VERSION_CODES.M
-                        || checkSelfPermission( Manifest.permission.ACCESS_COARSE_LOCATION ) == PackageManager.PERMISSION_GRANTED ) {
-                    startDiscovery();
-                }
-
+                startDiscovery();
             }
         });
     }
@@ -224,9 +367,11 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
     protected void onResume() {
         super.onResume();
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        mResumed = true;
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
+            attachDataConsumer();
         }
     }
 
@@ -234,44 +379,147 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        mResumed = false;
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.removeDataConsumer(mDataConsumer);
+        }
+        final SharedPreferences preferences = getSharedPreferences(PREFS_CALIBRATION, MODE_PRIVATE);
+        mControlHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCalibration.save(preferences, mDeviceAddress);
+            }
+        });
+        // Enable with: adb shell setprop log.tag.DeviceControlActivity DEBUG
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            logDiagnostics();
+        }
+    }
+
+    private void logDiagnostics() {
+        Log.d(TAG, "Glove frames: " + mGlove.getDecoder());
+        Log.d(TAG, "Jitter buffer: " + mGlove.getJitterBuffer());
+        Log.d(TAG, "Watchdog: " + mWatchdog);
+        for (Pipeline.Stats stats : mGlove.getPipeline().getStats()) {
+            Log.d(TAG, "Stage " + stats);
+        }
+        Log.d(TAG, "Gestures: " + mGlove.getGestures());
+        Log.d(TAG, "Calibration: " + mCalibration);
+        Log.d(TAG, "Frame queue: " + mFrameQueue);
+        Log.d(TAG, mMainLoad + ", " + mControlLoad);
+        Log.d(TAG, StartupTimeline.getReport());
+        if (mTelemetry != null) {
+            Log.d(TAG, "Telemetry: " + mTelemetry);
+        }
+        Log.d(TAG, "Waveform: " + mWaveform.getFrameCount() + " frames, draw "
+                + mWaveform.getAverageDrawMillis() + " ms average, "
+                + mWaveform.getMaxDrawMillis() + " ms max");
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final QuantileSketch sketch = mGlove.getChannelQuantiles(0).newSnapshot();
+        for (int channel = 0; channel < mGlove.getChannelCount(); channel++) {
+            mGlove.getChannelQuantiles(channel).snapshot(now, sketch);
+            Log.d(TAG, BluetoothLeService.GLOVE_SCHEMA.getChannelName(channel) + ": " + sketch);
+        }
+        if (mBluetoothLeService != null) {
+            for (NotificationSubscription subscription : mBluetoothLeService.getSubscriptions()) {
+                final QuantileSketch intervals = subscription.newIntervalSnapshot();
+                subscription.getIntervalQuantiles(now, intervals);
+                Log.d(TAG, subscription.getCharacteristic().getUuid() + " intervals (ms): "
+                        + intervals);
+            }
+        }
+    }
+
+    // Counter tracks of the glove input in systrace, sampled on the control thread.
+    private final Runnable mTraceCounters = new Runnable() {
+        private long mQueued;
+
+        @Override
+        public void run() {
+            final long queued = mFrameQueue.getQueuedCount();
+            if (SystemTrace.isEnabled()) {
+                SystemTrace.setCounter("glove sample rate",
+                        (queued - mQueued) * 1000 / TRACE_COUNTER_PERIOD_MS);
+                SystemTrace.setCounter("frame queue depth", mFrameQueue.getDepth());
+                SystemTrace.setCounter("frame queue dropped", mFrameQueue.getDroppedCount());
+            }
+            mQueued = queued;
+            mControlHandler.postDelayed(this, TRACE_COUNTER_PERIOD_MS);
+        }
+    };
+
+    private void attachDataConsumer() {
+        mBluetoothLeService.addDataConsumer(mDataConsumer,
+                BluetoothLeService.REPRESENTATION_TEXT,
+                DATA_FIELD_REFRESH_MS, mHandler);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mMainLoad.stop();
+        mControlLoad.stop();
+        mControlHandler.removeCallbacks(mTraceCounters);
+        mControlHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mGlove.getJitterBuffer().clear();
+                stopRecording();
+                stopTelemetry();
+            }
+        });
+        // Frames still queued are processed before the thread ends.
+        mControlThread.quitSafely();
+        mWatchdog.trip();
+        mWatchdog.shutdown();
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
 
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        if (requestCode == REQUEST_CODE_LOCATION_PERMISSION) {
+            for (int i = 0; i < permissions.length; i++) {
+                if (grantResults[i] == PackageManager.PERMISSION_GRANTED) {
+                    startDiscovery();
+                }
+            }
+        } else {
+            super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        }
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
-
+        // Binding here, next to the glove connection, pre-warms robot discovery.
+        bindService(new Intent(this, RobotService.class), mRobotServiceConnection,
+                BIND_AUTO_CREATE);
     }
 
     private void startDiscovery() {
         //If the DiscoveryAgent is not already looking for robots, start discovery.
-        if( !DualStackDiscoveryAgent.getInstance().isDiscovering() ) {
-            try {
-                DualStackDiscoveryAgent.getInstance().startDiscovery( this );
-            } catch (DiscoveryException e) {
-                Log.e("Sphero", "DiscoveryException: " + e.getMessage());
-            }
+        if( mRobotService != null && (Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || checkSelfPermission( Manifest.permission.ACCESS_COARSE_LOCATION ) == PackageManager.PERMISSION_GRANTED) ) {
+            mRobotService.startDiscovery();
         }
     }
 
     @Override
     protected void onStop() {
-        //If the DiscoveryAgent is in discovery mode, stop it.
-        if( DualStackDiscoveryAgent.getInstance().isDiscovering() ) {
-            DualStackDiscoveryAgent.getInstance().stopDiscovery();
-        }
-
-        //If a robot is connected to the device, disconnect it
-        if( mRobot != null ) {
-            mRobot.disconnect();
-            mRobot = null;
+        //Hand the robots back to the service; it keeps them connected for a grace period so
+        //a rotation or a switch to another Activity does not force a reconnect.
+        if( mRobotService != null ) {
+            // Nothing steers them once this activity is gone.
+            mWatchdog.trip();
+            Log.d(TAG, mRobots.getLatencyReport());
+            mRobotService.removeListener(mRobotListener);
+            mRobotService.release();
+            mRobotService = null;
+            mRobots = null;
+            mGlove.setRobots(null);
         }
+        unbindService(mRobotServiceConnection);
 
         super.onStop();
     }
@@ -279,6 +527,12 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.gatt_services, menu);
+        menu.findItem(R.id.menu_macro_streaming).setChecked(
+                mDriveMode == MacroTrajectoryStreamer.MODE_MACRO);
+        menu.findItem(R.id.menu_record_session).setChecked(mRecording);
+        menu.findItem(R.id.menu_stream_telemetry).setChecked(mStreamingTelemetry);
+        menu.findItem(R.id.menu_predict_heading).setChecked(
+                mGlove.getPipeline().isEnabled(GlovePipeline.STAGE_SHAPE));
         if (mConnected) {
             menu.findItem(R.id.menu_connect).setVisible(false);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
@@ -298,6 +552,57 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 return true;
+            case R.id.menu_macro_streaming:
+                mDriveMode = item.isChecked() ? MacroTrajectoryStreamer.MODE_PER_SAMPLE
+                        : MacroTrajectoryStreamer.MODE_MACRO;
+                item.setChecked(mDriveMode == MacroTrajectoryStreamer.MODE_MACRO);
+                if (mRobots != null) {
+                    mRobots.setDriveMode(mDriveMode);
+                }
+                return true;
+            case R.id.menu_record_session:
+                mRecording = !mRecording;
+                final boolean recording = mRecording;
+                mControlHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (recording) {
+                            startRecording();
+                        } else {
+                            stopRecording();
+                        }
+                    }
+                });
+                item.setChecked(mRecording);
+                return true;
+            case R.id.menu_stream_telemetry:
+                if (mStreamingTelemetry) {
+                    setStreamingTelemetry(false);
+                } else {
+                    editTelemetryTarget();
+                }
+                return true;
+            case R.id.menu_robot_formation:
+                editFormation();
+                return true;
+            case R.id.menu_predict_heading:
+                final Pipeline pipeline = mGlove.getPipeline();
+                final boolean predict = !pipeline.isEnabled(GlovePipeline.STAGE_SHAPE);
+                mControlHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mGlove.resetPredictor();
+                    }
+                });
+                pipeline.setEnabled(GlovePipeline.STAGE_SHAPE, predict);
+                item.setChecked(predict);
+                return true;
+            case R.id.menu_evaluate_prediction:
+                evaluatePrediction();
+                return true;
+            case R.id.menu_dump_trace:
+                dumpTrace();
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -305,167 +610,326 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
         return super.onOptionsItemSelected(item);
     }
 
-    private void updateConnectionState(final int resourceId) {
-        runOnUiThread(new Runnable() {
+    // Recording runs on the control thread, which writes the frames.
+    private void startRecording() {
+        if (mRecorder != null) {
+            return;
+        }
+        final File sessions = new File(getFilesDir(), "sessions");
+        sessions.mkdirs();
+        final File file = new File(sessions, "session-" + System.currentTimeMillis() + ".pal");
+        try {
+            mRecorder = SessionRecorder.create(file, mSensors.length);
+            Log.i(TAG, "Recording to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to record to " + file, e);
+        }
+    }
+
+    private void stopRecording() {
+        if (mRecorder == null) {
+            return;
+        }
+        final SessionRecorder recorder = mRecorder;
+        mRecorder = null;
+        try {
+            final SummaryPyramid.Aggregate aggregate = new SummaryPyramid.Aggregate();
+            recorder.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, 0, aggregate);
+            Log.i(TAG, "Recorded " + recorder.getFrameCount() + " frames, sensor a mean "
+                    + aggregate.getMean() + " range " + aggregate.min + ".." + aggregate.max);
+            recorder.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to finish " + recorder.getFile(), e);
+        }
+    }
+
+    // Picks a connected robot and edits where it sits in the formation.
+    private void editFormation() {
+        final RobotGroup robots = mRobots;
+        if (robots == null || robots.isEmpty()) {
+            Toast.makeText(this, R.string.no_robots, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final RobotGroup.Member[] members = robots.getMembers();
+        final String[] names = new String[members.length];
+        for (int i = 0; i < members.length; i++) {
+            names[i] = members[i].getName();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_robot_formation)
+                .setItems(names, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        editTransform(robots, members[which]);
+                    }
+                })
+                .show();
+    }
+
+    private void editTransform(final RobotGroup robots, final RobotGroup.Member member) {
+        final View view = getLayoutInflater().inflate(R.layout.dialog_robot_transform, null);
+        final EditText headingOffset = (EditText) view.findViewById(R.id.heading_offset);
+        final EditText speedScale = (EditText) view.findViewById(R.id.speed_scale);
+        headingOffset.setText(String.valueOf(member.getHeadingOffset()));
+        speedScale.setText(String.valueOf(member.getSpeedScale()));
+        new AlertDialog.Builder(this)
+                .setTitle(member.getName())
+                .setView(view)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        try {
+                            robots.setTransform(member.getName(),
+                                    Float.parseFloat(headingOffset.getText().toString()),
+                                    Math.max(0.0f, Float.parseFloat(
+                                            speedScale.getText().toString())));
+                        } catch (NumberFormatException e) {
+                            Log.w(TAG, "Ignoring formation of " + member.getName(), e);
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    // Asks where to stream to, starting with where it went last time, and starts streaming.
+    private void editTelemetryTarget() {
+        final View view = getLayoutInflater().inflate(R.layout.dialog_telemetry_target, null);
+        final EditText host = (EditText) view.findViewById(R.id.telemetry_host);
+        final EditText port = (EditText) view.findViewById(R.id.telemetry_port);
+        host.setText(mTelemetryHost);
+        port.setText(String.valueOf(mTelemetryPort));
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_stream_telemetry)
+                .setView(view)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final String targetHost = host.getText().toString().trim();
+                        int targetPort = -1;
+                        try {
+                            targetPort = Integer.parseInt(port.getText().toString().trim());
+                        } catch (NumberFormatException e) {
+                            // Rejected below.
+                        }
+                        if (targetHost.isEmpty() || targetPort < 1 || targetPort > 65535) {
+                            Toast.makeText(DeviceControlActivity.this,
+                                    R.string.invalid_telemetry_target, Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        mTelemetryHost = targetHost;
+                        mTelemetryPort = targetPort;
+                        getSharedPreferences(PREFS_TELEMETRY, MODE_PRIVATE).edit()
+                                .putString("host", mTelemetryHost).putInt("port", mTelemetryPort)
+                                .apply();
+                        setStreamingTelemetry(true);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void setStreamingTelemetry(final boolean streaming) {
+        mStreamingTelemetry = streaming;
+        mControlHandler.post(new Runnable() {
             @Override
             public void run() {
-                mConnectionState.setText(resourceId);
+                if (streaming) {
+                    startTelemetry();
+                } else {
+                    stopTelemetry();
+                }
             }
         });
+        invalidateOptionsMenu();
     }
 
-    private boolean convertBoolean(float sensorReading){
-        if(sensorReading>3000.0 && sensorReading<48000.0f)
-            return true;
-        return false;
-    }
-
-    private float getRotation(float sensorReadingA, float sensorReadingB){
-        float ratio;
-        boolean positive;
-        if (sensorReadingA>sensorReadingB) {
-            ratio = sensorReadingB / sensorReadingA;
-            positive = true;
-        }
-        else{
-            ratio = sensorReadingA / sensorReadingB;
-            positive = false;
-        }
-        float angle = (1.0f-ratio)*90.0f;
-        if (positive)
-            return angle+15.0f;
-        else
-            return 360.0f-angle-15.0f;
-    }
-
-    private float getVelocity(float sensorReadingA, float sensorReadingB){
-        float maxReading = Math.max(sensorReadingA, sensorReadingB);
-        return Math.min(1.0f,0.2f+Math.min(maxReading-3000.0f, 45000.0f)/45000.0f);
-    }
-
-    private float getFullRotation(float sensorReadingA, float sensorReadingB){
-        double max_d = 48000.0f;
-        // distance between sensors
-        double d = 3000.0f;
-        // distance between supposed center line
-        double alpha = 6000.0f;
-        double radius = Math.sqrt((d*d/4)+(alpha*alpha));
-        double a = max_d - sensorReadingA;
-        double b = max_d - sensorReadingB;
-        if((b<=alpha)&&(b<=a)) {
-            double cos = ((a * a) - (b * b)) / (2 * d * radius);
-            if (cos > 1.0)
-                cos = 1.0f;
-            else if (cos < -1.0f)
-                cos = -1.0f;
-            double angle = Math.acos(cos);
-            double degrees = 90.0f-Math.toDegrees(angle);
-            Log.v("Pallette1", ":" + degrees + ":" + angle + ":" + d + ":" + radius + ":" + cos + ":" + a + ":" + b);
-        }
-        else if((a<=alpha)&&(a<=b)) {
-            double cos = ((b * b) - (a * a)) / (2 * d * radius);
-            if (cos > 1.0)
-                cos = 1.0f;
-            else if (cos < -1.0f)
-                cos = -1.0f;
-            double angle = Math.acos(cos);
-            double degrees = 270.0f + Math.toDegrees(angle);
-            Log.v("Pallette2", ":" + degrees + ":" + angle + ":" + d + ":" + radius + ":" + cos + ":" + a + ":" + b);
-        }
-        else if((b>=alpha)&&(b<=a)) {
-            double cos = ((a * a) - (b * b)) / (2 * d * radius);
-            if (cos > 1.0)
-                cos = 1.0f;
-            else if (cos < -1.0f)
-                cos = -1.0f;
-            double angle = Math.acos(cos);
-            double degrees = 90.0f+Math.toDegrees(angle);
-            Log.v("Pallette3", ":" + degrees + ":" + angle + ":" + d + ":" + radius + ":" + cos + ":" + a + ":" + b);
-        }
-        else if((a>=alpha)&&(a<=b)) {
-            double cos = ((b * b) - (a * a)) / (2 * d * radius);
-            if (cos > 1.0)
-                cos = 1.0f;
-            else if (cos < -1.0f)
-                cos = -1.0f;
-            double angle = Math.acos(cos);
-            double degrees = 180.0f+Math.toDegrees(angle);
-            Log.v("Pallette4", ":" + degrees + ":" + angle + ":" + d + ":" + radius + ":" + cos + ":" + a + ":" + b);
-        }
-        return 0.0f;
+    // Telemetry runs on the control thread, which adds the records.
+    private void startTelemetry() {
+        if (mTelemetry != null) {
+            return;
+        }
+        final TelemetryExporter telemetry =
+                new TelemetryExporter(mTelemetryHost, mTelemetryPort);
+        telemetry.start();
+        mTelemetry = telemetry;
+        mGlove.setTelemetry(telemetry);
+        mControlHandler.postDelayed(mTelemetryFlush, TELEMETRY_FLUSH_PERIOD_MS);
     }
 
+    private void stopTelemetry() {
+        if (mTelemetry == null) {
+            return;
+        }
+        final TelemetryExporter telemetry = mTelemetry;
+        mTelemetry = null;
+        mGlove.setTelemetry(null);
+        mControlHandler.removeCallbacks(mTelemetryFlush);
+        telemetry.flush();
+        telemetry.stop();
+        Log.i(TAG, "Telemetry: " + telemetry);
+    }
 
-    private void displayData(String data) {
-//        mRobot.drive( 90.0f, ROBOT_VELOCITY );
-        if (data != null) {
-            if(mRobot!=null){
-                String[] values = data.split("\t");
-                ArrayList<Integer> sensors = new ArrayList<Integer>();
-                for(String s: values)
-                    sensors.add(Integer.parseInt(s));
-
-                float sensor_a = sensors.get(0);
-                float sensor_b = sensors.get(1);
-                boolean bool_sensor_a = convertBoolean( sensor_a );
-                boolean bool_sensor_b = convertBoolean( sensor_b );
-                if (bool_sensor_a && bool_sensor_b){
-                    driveAngle(getRotation(sensor_a,sensor_b),getVelocity(sensor_a,sensor_b));
-//                    getFullRotation(sensor_a, sensor_b);
-                }
+    // Sends what was batched when the glove goes quiet, instead of holding it until the next
+    // frame.
+    private final Runnable mTelemetryFlush = new Runnable() {
+        @Override
+        public void run() {
+            final TelemetryExporter telemetry = mTelemetry;
+            if (telemetry != null) {
+                telemetry.flush();
+                mControlHandler.postDelayed(this, TELEMETRY_FLUSH_PERIOD_MS);
             }
-
-            mDataField.setText(data);
         }
+    };
+
+    private void updateConnectionState(final int resourceId) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mConnectionState.setText(resourceId);
+            }
+        });
     }
 
-    private void changeColor(){
+    // Waveform and recording see every frame as it arrived, on the control thread.
+    private final GlovePipeline.Listener mGloveListener = new GlovePipeline.Listener() {
+        @Override
+        public void onFrame(long timeNanos, int[] values, int count) {
+            mWaveform.onDataChanged();
+            if (mRecorder != null) {
+                try {
+                    mRecorder.record(timeNanos, values, count);
+                } catch (IOException e) {
+                    Log.e(TAG, "Recording failed", e);
+                    stopRecording();
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mRecording = false;
+                            invalidateOptionsMenu();
+                        }
+                    });
+                }
+            }
+        }
+    };
+
+    // Holds on to the group it guards, so the robots can still be stopped once this activity
+    // has let go of mRobots.
+    private static final class RobotStopper implements InputWatchdog.Target {
+        volatile RobotGroup mRobots;
 
-        mRobot.sendCommand( new RGBLEDOutputCommand( getRandom(), getRandom(), getRandom() ) );
+        @Override
+        public void stop() {
+            final RobotGroup robots = mRobots;
+            if (robots != null) {
+                robots.stop();
+            }
+        }
     }
 
-    private float getRandom(){
-        Random rn = new Random();
-        return rn.nextInt(2);
+    private final RobotStopper mWatchdogTarget = new RobotStopper();
+
+    // Replays the latest recorded session with the direct mapping and with prediction, at the
+    // latency measured so far.
+    private void evaluatePrediction() {
+        final File[] files = new File(getFilesDir(), "sessions").listFiles();
+        final SessionRecorder recorder = mRecorder;
+        File latest = null;
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".pal")
+                        && (recorder == null || !file.equals(recorder.getFile()))
+                        && (latest == null || file.lastModified() > latest.lastModified())) {
+                    latest = file;
+                }
+            }
+        }
+        if (latest == null) {
+            Log.w(TAG, "No recorded session to evaluate");
+            return;
+        }
+        final File session = latest;
+        final long latency = mGlove.getLatencyNanos();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final SessionRecorder recording = SessionRecorder.open(session);
+                    final PredictionEvaluator evaluator;
+                    try {
+                        evaluator = PredictionEvaluator.load(recording,
+                                recording.getFrameCount(), mSensors.length,
+                                mGlove.getHeadingMapping());
+                    } finally {
+                        recording.close();
+                    }
+                    Log.i(TAG, "Replay of " + session.getName() + " at "
+                            + latency / 1000000L + " ms latency");
+                    Log.i(TAG, "Direct: " + evaluator.evaluate(latency, null));
+                    Log.i(TAG, "Predicted: "
+                            + evaluator.evaluate(latency, new HeadingPredictor()));
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to evaluate " + session, e);
+                }
+            }
+        }, "PredictionEvaluator").start();
+    }
 
+    // Writes the recent trace events of all threads, for TraceDecoder.
+    private void dumpTrace() {
+        final File file = new File(getFilesDir(),
+                "traces/trace-" + System.currentTimeMillis() + ".trace");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TraceLog.dump(file);
+                    Log.i(TAG, "Trace dumped to " + file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to dump the trace to " + file, e);
+                }
+            }
+        }, "TraceDump").start();
     }
-    private void driveAngle(float rotation, float velocity){
-        Log.v("Pallette", "Drive angle"+rotation+" Speed:"+velocity);
-        mRobot.drive( rotation, velocity );
+
+    private void displayData(String data) {
+        if (data != null) {
+            mDataField.setText(data);
+        }
     }
 
+    // Shows on the robot LED whether the glove is connected.
+    private void updateRobotIndicator() {
+        if (mRobots != null) {
+            mRobots.play(mConnected ? LedAnimation.STATE_READY
+                    : LedAnimation.STATE_WAITING_FOR_GLOVE);
+        }
+    }
     private void driveLeft(){
-        Log.v("Pallette", "Drive left");
-        mRobot.drive( 270.0f, ROBOT_VELOCITY );
+        TraceLog.log(GlovePipeline.TRACE_DRIVE, 270.0f, ROBOT_VELOCITY);
+        mRobots.drive( 270.0f, ROBOT_VELOCITY );
     }
 
     private void driveRight(){
-        Log.v("Pallette", "Drive right");
-        mRobot.drive( 90.0f, ROBOT_VELOCITY );
+        TraceLog.log(GlovePipeline.TRACE_DRIVE, 90.0f, ROBOT_VELOCITY);
+        mRobots.drive( 90.0f, ROBOT_VELOCITY );
     }
 
     private void driveForward(){
-        Log.v("Pallette", "Drive forward");
+        TraceLog.log(GlovePipeline.TRACE_DRIVE, 0.0f, ROBOT_VELOCITY);
 
-        mRobot.drive( 0.0f, ROBOT_VELOCITY );
+        mRobots.drive( 0.0f, ROBOT_VELOCITY );
     }
 
     private void driveBackward(){
-        Log.v("Pallette", "Drive backward");
-        mRobot.drive( 180.0f, ROBOT_VELOCITY );
+        TraceLog.log(GlovePipeline.TRACE_DRIVE, 180.0f, ROBOT_VELOCITY);
+        mRobots.drive( 180.0f, ROBOT_VELOCITY );
     }
 
     private void drive(float velocity){
-        mRobot.drive( 0.0f, velocity );
-    }
-
-    private void jump(){
-        MacroObject macro = new MacroObject();
-        macro.addCommand(new Roll(0.15f, 0, 0));
-        macro.addCommand(new RawMotor(DriveMode.BRAKE, 255, DriveMode.FORWARD, 253, 255));
-        macro.addCommand(new Delay(1000));
-        macro.playMacro();
-
+        mRobots.drive( 0.0f, velocity );
     }
 
     // Demonstrates how to iterate through the supported GATT Services/Characteristics.
@@ -530,19 +994,7 @@ public class DeviceControlActivity extends Activity implements RobotChangedState
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
         return intentFilter;
     }
 
-    @Override
-    public void handleRobotChangedState(Robot robot, RobotChangedStateNotificationType type) {
-        switch (type) {
-            case Online: {
-                //Save the robot as a ConvenienceRobot for additional utility methods
-                mRobot = new ConvenienceRobot(robot);
-                break;
-            }
-        }
-    }
-
 }
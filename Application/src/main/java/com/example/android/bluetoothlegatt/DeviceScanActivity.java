@@ -54,6 +54,7 @@ public class DeviceScanActivity extends ListActivity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTimeline.markLaunch();
         getActionBar().setTitle(R.string.title_devices);
         mHandler = new Handler();
 
@@ -155,10 +156,12 @@ public class DeviceScanActivity extends ListActivity {
             mBluetoothAdapter.stopLeScan(mLeScanCallback);
             mScanning = false;
         }
+        StartupTimeline.end(StartupTimeline.PHASE_SCAN);
         startActivity(intent);
     }
 
     private void scanLeDevice(final boolean enable) {
+        SystemTrace.beginSection("DeviceScanActivity.scanLeDevice");
         if (enable) {
             // Stops scanning after a pre-defined scan period.
             mHandler.postDelayed(new Runnable() {
@@ -166,17 +169,21 @@ public class DeviceScanActivity extends ListActivity {
                 public void run() {
                     mScanning = false;
                     mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                    StartupTimeline.end(StartupTimeline.PHASE_SCAN);
                     invalidateOptionsMenu();
                 }
             }, SCAN_PERIOD);
 
             mScanning = true;
+            StartupTimeline.begin(StartupTimeline.PHASE_SCAN);
             mBluetoothAdapter.startLeScan(mLeScanCallback);
         } else {
             mScanning = false;
             mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            StartupTimeline.end(StartupTimeline.PHASE_SCAN);
         }
         invalidateOptionsMenu();
+        SystemTrace.endSection();
     }
 
     // Adapter for holding devices found through scanning.
@@ -0,0 +1,225 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Decodes payloads with a {@link FrameSchema} into reusable per-channel values, and counts
+ * malformed frames and, when the schema has a sequence number, lost and duplicated ones.
+ * Frames that arrive out of order are still accepted as long as they are within the last
+ * {@link #REORDER_WINDOW} sequence numbers, so a later stage can put them back in place.
+ *
+ * <p>A decoder is built once per stream and reused for every frame; decoding does not
+ * allocate.  The decoded values are only meant to be read by the decoding thread; the counters
+ * may be read from any thread for reporting.
+ */
+public final class FrameDecoder {
+
+    public static final int REORDER_WINDOW = 64;
+
+    private final FrameSchema mSchema;
+    private final int[] mValues;
+    private int mPresent;
+
+    private final long mSequenceModulus;
+    private boolean mHasSequence;
+    private long mLastSequence;
+    // Sequence numbers keep increasing across wraps; bit n of the window is the frame n behind
+    // the newest one.
+    private long mNewestExtended;
+    private long mSequenceWindow;
+    private long mSequence = -1;
+
+    private final long mTimestampModulus;
+    private boolean mHasTimestamp;
+    private long mLastRawTimestamp;
+    private long mNewestTimestamp;
+    private long mTimestamp;
+
+    private volatile long mFrames;
+    private volatile long mMalformed;
+    private volatile long mLost;
+    private volatile long mDuplicates;
+    private volatile long mReordered;
+
+    public FrameDecoder(FrameSchema schema) {
+        mSchema = schema;
+        mValues = new int[schema.getChannelCount()];
+        mSequenceModulus = schema.hasSequence() ? 1L << schema.getSequenceBits() : 0;
+        mTimestampModulus = schema.hasTimestamp() ? 1L << schema.getTimestampBits() : 0;
+    }
+
+    public FrameSchema getSchema() {
+        return mSchema;
+    }
+
+    /**
+     * Decodes a payload.  Frames that do not match the schema, and with a sequence number,
+     * frames already seen or too far behind the newest one, are counted and rejected.
+     *
+     * @return True if the frame was decoded and is new.
+     */
+    public boolean decode(byte[] data) {
+        final int present = mSchema.countChannels(data);
+        if (present < 0) {
+            mMalformed++;
+            return false;
+        }
+        if (mSequenceModulus != 0 && !acceptSequence(mSchema.readSequence(data))) {
+            return false;
+        }
+        if (mTimestampModulus != 0) {
+            unwrapTimestamp(mSchema.readTimestamp(data) & (mTimestampModulus - 1));
+        }
+        for (int channel = 0; channel < present; channel++) {
+            mValues[channel] = mSchema.readChannel(data, channel);
+        }
+        mPresent = present;
+        mFrames++;
+        return true;
+    }
+
+    private boolean acceptSequence(int raw) {
+        final long sequence = raw & (mSequenceModulus - 1);
+        if (!mHasSequence) {
+            mHasSequence = true;
+            mLastSequence = sequence;
+            mSequenceWindow = 1;
+            mSequence = 0;
+            return true;
+        }
+        final long delta = (sequence - mLastSequence) & (mSequenceModulus - 1);
+        if (delta == 0) {
+            mDuplicates++;
+            return false;
+        }
+        if (delta > mSequenceModulus / 2) {
+            // Behind the newest frame.  Either a duplicate, or a frame that was counted as lost
+            // and now turns up late.  One from before the first frame was never counted, and
+            // has no place in the stream.
+            final long behind = mSequenceModulus - delta;
+            if (behind >= Math.min(REORDER_WINDOW, mSequenceModulus / 2)
+                    || behind > mNewestExtended) {
+                mReordered++;
+                return false;
+            }
+            if ((mSequenceWindow & (1L << behind)) != 0) {
+                mDuplicates++;
+                return false;
+            }
+            mSequenceWindow |= 1L << behind;
+            mLost--;
+            mReordered++;
+            mSequence = mNewestExtended - behind;
+            return true;
+        }
+        mLost += delta - 1;
+        mSequenceWindow = delta >= REORDER_WINDOW ? 1 : (mSequenceWindow << delta) | 1;
+        mNewestExtended += delta;
+        mLastSequence = sequence;
+        mSequence = mNewestExtended;
+        return true;
+    }
+
+    private void unwrapTimestamp(long raw) {
+        if (!mHasTimestamp) {
+            mHasTimestamp = true;
+            mNewestTimestamp = raw;
+            mTimestamp = raw;
+            mLastRawTimestamp = raw;
+            return;
+        }
+        final long delta = (raw - mLastRawTimestamp) & (mTimestampModulus - 1);
+        if (delta > mTimestampModulus / 2) {
+            // A frame delivered out of order; keep the newest one as the reference.
+            mTimestamp = mNewestTimestamp - (mTimestampModulus - delta);
+            return;
+        }
+        mNewestTimestamp += delta;
+        mTimestamp = mNewestTimestamp;
+        mLastRawTimestamp = raw;
+    }
+
+    /**
+     * @return The sequence number of the last decoded frame, counted from the first frame and
+     *         not wrapping, or -1 if the schema has none.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return Number of channels in the last decoded frame.
+     */
+    public int getPresentChannels() {
+        return mPresent;
+    }
+
+    /**
+     * @return The unscaled value of a channel in the last decoded frame.
+     */
+    public int getInt(int channel) {
+        return mValues[channel];
+    }
+
+    /**
+     * @return The scaled value of a channel in the last decoded frame.
+     */
+    public float getFloat(int channel) {
+        return mValues[channel] * mSchema.getScale(channel);
+    }
+
+    /**
+     * Copies the unscaled values of the last decoded frame.
+     *
+     * @return The number of values copied.
+     */
+    public int copyValues(int[] out) {
+        final int count = Math.min(mPresent, out.length);
+        System.arraycopy(mValues, 0, out, 0, count);
+        return count;
+    }
+
+    /**
+     * @return The device timestamp of the last decoded frame, unwrapped to keep increasing,
+     *         in ticks of the schema.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getMalformedCount() {
+        return mMalformed;
+    }
+
+    /**
+     * @return Frames skipped by the sequence number.
+     */
+    public long getLostCount() {
+        return mLost;
+    }
+
+    public long getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    public long getReorderedCount() {
+        return mReordered;
+    }
+
+    /**
+     * @return The share of frames lost, from 0 to 1.
+     */
+    public float getLossRatio() {
+        final long expected = mFrames + mLost;
+        return expected == 0 ? 0.0f : (float) mLost / expected;
+    }
+
+    @Override
+    public String toString() {
+        return "frames " + mFrames + ", malformed " + mMalformed + ", lost " + mLost
+                + " (" + getLossRatio() * 100 + "%), duplicates " + mDuplicates
+                + ", reordered " + mReordered;
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands notification payloads from the Bluetooth callback thread to a processing thread.
+ *
+ * <p>Attached to a subscription without a callback handler, the queue runs on the Bluetooth
+ * callback thread and does nothing there but store the payload and its arrival time in a
+ * preallocated ring.  The first payload into an empty queue posts a drain to the processing
+ * handler, which then consumes everything queued in one go, so a burst of notifications
+ * costs one message rather than one per payload.  When the ring is full the newest payload is
+ * dropped and counted, so a stalled consumer cannot make the callback thread wait.
+ *
+ * <p>Queue depth, drops and the time spent on each side are kept for diagnostics.
+ */
+public final class FrameQueue implements NotificationSubscription.NotificationHandler {
+
+    /**
+     * Processes queued payloads on the processing thread.
+     */
+    public interface Consumer {
+        /**
+         * @param data The payload; owned by the consumer from now on.
+         * @param arrivalNanos When it arrived, on the elapsedRealtimeNanos base.
+         */
+        void onFrame(byte[] data, long arrivalNanos);
+    }
+
+    private static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+
+    private final Handler mHandler;
+    private final Consumer mConsumer;
+    private final byte[][] mFrames = new byte[CAPACITY][];
+    private final long[] mArrivals = new long[CAPACITY];
+    // Producers are usually the callback thread alone, but a subscription also hands over its
+    // latest value on the thread that attaches the queue.
+    private final Object mProducerLock = new Object();
+    private volatile long mHead;
+    private volatile long mTail;
+    private final AtomicBoolean mDrainPosted = new AtomicBoolean();
+
+    private volatile long mQueued;
+    private volatile long mDropped;
+    private volatile int mMaxDepth;
+    private volatile long mEnqueueNanos;
+    private volatile long mDrains;
+    private volatile long mProcessNanos;
+
+    /**
+     * @param handler Handler of the processing thread.
+     */
+    public FrameQueue(Handler handler, Consumer consumer) {
+        mHandler = handler;
+        mConsumer = consumer;
+    }
+
+    @Override
+    public void onNotification(NotificationSubscription subscription, byte[] data) {
+        final long started = System.nanoTime();
+        synchronized (mProducerLock) {
+            final long head = mHead;
+            final int depth = (int) (head - mTail);
+            if (depth >= CAPACITY) {
+                mDropped++;
+            } else {
+                final int slot = (int) (head & MASK);
+                mFrames[slot] = data;
+                mArrivals[slot] = subscription.getLastNotificationNanos();
+                mHead = head + 1;
+                mQueued++;
+                if (depth + 1 > mMaxDepth) {
+                    mMaxDepth = depth + 1;
+                }
+            }
+            if (mDrainPosted.compareAndSet(false, true)) {
+                mHandler.post(mDrain);
+            }
+            mEnqueueNanos += System.nanoTime() - started;
+        }
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, so a payload queued from now on posts another drain.
+            mDrainPosted.set(false);
+            final long started = System.nanoTime();
+            long tail = mTail;
+            while (tail < mHead) {
+                final int slot = (int) (tail & MASK);
+                final byte[] data = mFrames[slot];
+                final long arrivalNanos = mArrivals[slot];
+                mFrames[slot] = null;
+                // Frees the slot for the producer.
+                mTail = ++tail;
+                mConsumer.onFrame(data, arrivalNanos);
+            }
+            mDrains++;
+            mProcessNanos += System.nanoTime() - started;
+        }
+    };
+
+    /**
+     * @return Number of payloads waiting for the processing thread.
+     */
+    public int getDepth() {
+        return (int) (mHead - mTail);
+    }
+
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public long getQueuedCount() {
+        return mQueued;
+    }
+
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    @Override
+    public String toString() {
+        final long queued = mQueued;
+        final long drains = mDrains;
+        return "queued " + queued + ", dropped " + mDropped + ", depth " + getDepth()
+                + " (max " + mMaxDepth + "), " + (drains == 0 ? 0 : (float) queued / drains)
+                + " frames per drain, enqueue " + (queued == 0 ? 0 : mEnqueueNanos / queued)
+                + " ns/frame, process " + (queued == 0 ? 0 : mProcessNanos / queued)
+                + " ns/frame";
+    }
+}
@@ -0,0 +1,311 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+
+/**
+ * Layout of the frames a device sends in one notification: the channels with their width,
+ * signedness, byte order and scale, and optionally a sequence number and a device timestamp.
+ * Fields are laid out back to back in the order they were added.
+ *
+ * <p>A schema is immutable and computes its offsets once.  {@link FrameDecoder} turns payloads
+ * into values with it; {@link #readChannel} and {@link #format} are for one-off use such as
+ * formatting.
+ */
+public final class FrameSchema {
+
+    /**
+     * The Pallette glove as it ships: two IR sensors followed by the left and right flex
+     * sensors, each a big-endian uint16.  Older firmware only sends the IR pair, so the flex
+     * sensors are optional.
+     */
+    public static final FrameSchema PALLETTE = new Builder()
+            .channel("ir1", 2, false, false, 1.0f)
+            .channel("ir2", 2, false, false, 1.0f)
+            .optionalChannel("left", 2, false, false, 1.0f)
+            .optionalChannel("right", 2, false, false, 1.0f)
+            .build();
+
+    /**
+     * The Pallette layout preceded by an 8-bit sequence number, for firmware that numbers its
+     * notifications so lost ones can be counted.
+     */
+    public static final FrameSchema PALLETTE_SEQUENCED = new Builder()
+            .sequence(1)
+            .channel("ir1", 2, false, false, 1.0f)
+            .channel("ir2", 2, false, false, 1.0f)
+            .optionalChannel("left", 2, false, false, 1.0f)
+            .optionalChannel("right", 2, false, false, 1.0f)
+            .build();
+
+    static final class Field {
+        final String name;
+        final int offset;
+        final int width;
+        final boolean signed;
+        final boolean littleEndian;
+        final float scale;
+
+        Field(String name, int offset, int width, boolean signed, boolean littleEndian,
+              float scale) {
+            this.name = name;
+            this.offset = offset;
+            this.width = width;
+            this.signed = signed;
+            this.littleEndian = littleEndian;
+            this.scale = scale;
+        }
+
+        int read(byte[] data) {
+            int value = 0;
+            for (int i = 0; i < width; i++) {
+                final int b = data[offset + (littleEndian ? width - 1 - i : i)] & 0xff;
+                value = (value << 8) | b;
+            }
+            if (signed && width < 4) {
+                final int shift = 32 - 8 * width;
+                value = (value << shift) >> shift;
+            }
+            return value;
+        }
+
+        int end() {
+            return offset + width;
+        }
+    }
+
+    private final Field[] mChannels;
+    private final int mRequiredChannels;
+    private final Field mSequence;
+    private final Field mTimestamp;
+    private final long mTimestampTicksPerSecond;
+
+    private FrameSchema(Builder builder) {
+        mChannels = builder.mChannels.toArray(new Field[builder.mChannels.size()]);
+        mRequiredChannels = builder.mRequiredChannels;
+        mSequence = builder.mSequence;
+        mTimestamp = builder.mTimestamp;
+        mTimestampTicksPerSecond = builder.mTimestampTicksPerSecond;
+    }
+
+    public int getChannelCount() {
+        return mChannels.length;
+    }
+
+    public String getChannelName(int channel) {
+        return mChannels[channel].name;
+    }
+
+    public String[] getChannelNames() {
+        final String[] names = new String[mChannels.length];
+        for (int channel = 0; channel < mChannels.length; channel++) {
+            names[channel] = mChannels[channel].name;
+        }
+        return names;
+    }
+
+    /**
+     * @return The index of the named channel, or -1 if there is none.
+     */
+    public int indexOf(String name) {
+        for (int channel = 0; channel < mChannels.length; channel++) {
+            if (mChannels[channel].name.equals(name)) {
+                return channel;
+            }
+        }
+        return -1;
+    }
+
+    public float getScale(int channel) {
+        return mChannels[channel].scale;
+    }
+
+    public boolean hasSequence() {
+        return mSequence != null;
+    }
+
+    public boolean hasTimestamp() {
+        return mTimestamp != null;
+    }
+
+    public long getTimestampTicksPerSecond() {
+        return mTimestampTicksPerSecond;
+    }
+
+    /**
+     * @return Payload length with every required field and no optional channel.
+     */
+    public int getMinimumLength() {
+        return mRequiredChannels == 0 ? headerLength() : mChannels[mRequiredChannels - 1].end();
+    }
+
+    /**
+     * @return Payload length with every field.
+     */
+    public int getMaximumLength() {
+        return mChannels.length == 0 ? headerLength() : mChannels[mChannels.length - 1].end();
+    }
+
+    private int headerLength() {
+        int length = 0;
+        if (mSequence != null) {
+            length = Math.max(length, mSequence.end());
+        }
+        if (mTimestamp != null) {
+            length = Math.max(length, mTimestamp.end());
+        }
+        return length;
+    }
+
+    /**
+     * Checks a payload against the schema.
+     *
+     * @return The number of channels it carries, or -1 if it is too short or ends in the
+     *         middle of a field.
+     */
+    public int countChannels(byte[] data) {
+        if (data == null || data.length < getMinimumLength()
+                || data.length > getMaximumLength()) {
+            return -1;
+        }
+        int present = mRequiredChannels;
+        while (present < mChannels.length && mChannels[present].end() <= data.length) {
+            present++;
+        }
+        final int end = present == 0 ? headerLength() : mChannels[present - 1].end();
+        return end == data.length ? present : -1;
+    }
+
+    /**
+     * Reads the unscaled value of a channel.  The payload must carry the channel.
+     */
+    public int readChannel(byte[] data, int channel) {
+        return mChannels[channel].read(data);
+    }
+
+    int readSequence(byte[] data) {
+        return mSequence.read(data);
+    }
+
+    int getSequenceBits() {
+        return 8 * mSequence.width;
+    }
+
+    int readTimestamp(byte[] data) {
+        return mTimestamp.read(data);
+    }
+
+    int getTimestampBits() {
+        return 8 * mTimestamp.width;
+    }
+
+    /**
+     * Formats the channels of a payload as tab-separated name=value pairs.
+     *
+     * @return The text, or null if the payload does not match the schema.
+     */
+    public String format(byte[] data) {
+        final int present = countChannels(data);
+        if (present < 0) {
+            return null;
+        }
+        final StringBuilder stringBuilder = new StringBuilder(16 * (present + 1));
+        if (mSequence != null) {
+            stringBuilder.append('#').append(readSequence(data)).append('\t');
+        }
+        for (int channel = 0; channel < present; channel++) {
+            final Field field = mChannels[channel];
+            stringBuilder.append(field.name).append('=');
+            if (field.scale == 1.0f) {
+                stringBuilder.append(field.read(data));
+            } else {
+                stringBuilder.append(field.read(data) * field.scale);
+            }
+            stringBuilder.append('\t');
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Builds a schema field by field.  The sequence number and timestamp come first, and
+     * optional channels after the required ones.
+     */
+    public static final class Builder {
+        private final ArrayList<Field> mChannels = new ArrayList<Field>();
+        private int mRequiredChannels;
+        private Field mSequence;
+        private Field mTimestamp;
+        private long mTimestampTicksPerSecond;
+        private int mOffset;
+
+        /**
+         * Adds an unsigned big-endian sequence number that increments by one per frame and
+         * wraps around.
+         *
+         * @param width Width in bytes, 1 to 4.
+         */
+        public Builder sequence(int width) {
+            if (mSequence != null || !mChannels.isEmpty()) {
+                throw new IllegalStateException("Sequence must be defined once, before channels");
+            }
+            mSequence = field("sequence", width, false, false, 1.0f);
+            return this;
+        }
+
+        /**
+         * Adds an unsigned big-endian device timestamp that wraps around.
+         *
+         * @param width Width in bytes, 1 to 4.
+         * @param ticksPerSecond Resolution of the timestamp.
+         */
+        public Builder timestamp(int width, long ticksPerSecond) {
+            if (mTimestamp != null || !mChannels.isEmpty()) {
+                throw new IllegalStateException("Timestamp must be defined once, before channels");
+            }
+            mTimestamp = field("timestamp", width, false, false, 1.0f);
+            mTimestampTicksPerSecond = ticksPerSecond;
+            return this;
+        }
+
+        /**
+         * Adds a channel every frame carries.
+         *
+         * @param width Width in bytes, 1 to 4.
+         * @param signed Whether the value is two's complement.
+         * @param littleEndian Byte order of the value.
+         * @param scale Factor from the raw value to the unit of the channel.
+         */
+        public Builder channel(String name, int width, boolean signed, boolean littleEndian,
+                               float scale) {
+            if (mRequiredChannels != mChannels.size()) {
+                throw new IllegalStateException("Required channel after an optional one");
+            }
+            mChannels.add(field(name, width, signed, littleEndian, scale));
+            mRequiredChannels++;
+            return this;
+        }
+
+        /**
+         * Adds a channel that frames may leave out.  A frame that carries it also carries every
+         * channel before it.
+         */
+        public Builder optionalChannel(String name, int width, boolean signed,
+                                       boolean littleEndian, float scale) {
+            mChannels.add(field(name, width, signed, littleEndian, scale));
+            return this;
+        }
+
+        private Field field(String name, int width, boolean signed, boolean littleEndian,
+                            float scale) {
+            if (width < 1 || width > 4) {
+                throw new IllegalArgumentException("Unsupported width " + width);
+            }
+            final Field field = new Field(name, mOffset, width, signed, littleEndian, scale);
+            mOffset += width;
+            return field;
+        }
+
+        public FrameSchema build() {
+            return new FrameSchema(this);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.android.bluetoothlegatt;
+
+import com.orbotix.macro.MacroObject;
+import com.orbotix.macro.cmd.Delay;
+import com.orbotix.macro.cmd.RawMotor;
+import com.orbotix.macro.cmd.RawMotor.DriveMode;
+import com.orbotix.macro.cmd.Roll;
+
+/**
+ * Gesture macros are fixed, so each one is compiled once and the same {@code MacroObject} is
+ * played every time the gesture is triggered.
+ */
+final class GestureMacros {
+
+    private static MacroObject sJump;
+
+    private GestureMacros() {
+    }
+
+    static synchronized MacroObject jump() {
+        if (sJump == null) {
+            final MacroObject macro = new MacroObject();
+            macro.addCommand(new Roll(0.15f, 0, 0));
+            macro.addCommand(new RawMotor(DriveMode.BRAKE, 255, DriveMode.FORWARD, 253, 255));
+            macro.addCommand(new Delay(1000));
+            sJump = macro;
+        }
+        return sJump;
+    }
+}
@@ -0,0 +1,376 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+
+/**
+ * Recognizes gesture templates in the live glove stream.
+ *
+ * <p>Every frame is turned into a feature vector: each channel normalized to 0..1 and lightly
+ * smoothed, plus its slope over a short window.  Each template is matched against the stream
+ * with subsequence dynamic time warping in the SPRING formulation, which keeps one column of
+ * the warping matrix per template and reports the best match once no overlapping candidate
+ * can beat it.  A band limits how much a match may be stretched or compressed relative to the
+ * template.  Memory is fixed when the templates are set and the work per frame is
+ * proportional to their total length, so the cost per sample is bounded.
+ *
+ * <p>Not thread-safe; feed frames from one thread.
+ */
+public final class GestureRecognizer {
+
+    /**
+     * Receives recognized gestures.
+     */
+    public interface Listener {
+        /**
+         * @param template The gesture.
+         * @param startNanos Time of the first frame of the match.
+         * @param endNanos Time of the last frame of the match.
+         * @param distance Mean per-frame distance of the match.
+         */
+        void onGesture(Template template, long startNanos, long endNanos, float distance);
+    }
+
+    private static final float SMOOTHING = 0.5f;
+    private static final int SLOPE_WINDOW = 4;
+    // Weight of the slope features against the level features.
+    private static final float SLOPE_WEIGHT = 2.0f;
+    // A match may take between 1 / BAND and BAND times the template length.
+    private static final float BAND = 2.0f;
+    private static final float CPU_WEIGHT = 0.02f;
+
+    /**
+     * A gesture to look for, as a sequence of normalized channel values.
+     */
+    public static final class Template {
+        private final String mName;
+        private final int mAction;
+        private final float mThreshold;
+        private final float[][] mSamples;
+        private float[][] mFeatures;
+
+        /**
+         * @param name Name of the gesture, for logging.
+         * @param action What to do when the gesture is recognized; the meaning is up to the
+         *               listener.
+         * @param samples Frames of the gesture, each channel normalized to 0..1.
+         * @param threshold Largest mean per-frame distance that still counts as a match.
+         */
+        public Template(String name, int action, float[][] samples, float threshold) {
+            mName = name;
+            mAction = action;
+            mSamples = samples;
+            mThreshold = threshold;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getAction() {
+            return mAction;
+        }
+
+        public int getLength() {
+            return mSamples.length;
+        }
+
+        public int getChannelCount() {
+            return mSamples[0].length;
+        }
+
+        /**
+         * Builds a template from keyframes by linear interpolation, for defining gestures in
+         * code.
+         *
+         * @param keyframes Normalized channel values at evenly spaced points.
+         * @param frames Number of frames of the template.
+         */
+        public static Template fromKeyframes(String name, int action, float[][] keyframes,
+                                             int frames, float threshold) {
+            final int channels = keyframes[0].length;
+            final float[][] samples = new float[frames][channels];
+            for (int frame = 0; frame < frames; frame++) {
+                final float position = (float) frame * (keyframes.length - 1) / (frames - 1);
+                final int index = Math.min((int) position, keyframes.length - 2);
+                final float fraction = position - index;
+                for (int channel = 0; channel < channels; channel++) {
+                    samples[frame][channel] = keyframes[index][channel] + fraction
+                            * (keyframes[index + 1][channel] - keyframes[index][channel]);
+                }
+            }
+            return new Template(name, action, samples, threshold);
+        }
+    }
+
+    // Turns frames into feature vectors with a short history.
+    private static final class FeatureExtractor {
+        final int mChannels;
+        final float[] mSmoothed;
+        final float[][] mHistory;
+        int mHead;
+        int mFrames;
+
+        FeatureExtractor(int channels) {
+            mChannels = channels;
+            mSmoothed = new float[channels];
+            mHistory = new float[SLOPE_WINDOW][channels];
+        }
+
+        void reset() {
+            mFrames = 0;
+            mHead = 0;
+        }
+
+        // Features are the smoothed levels followed by the weighted slopes.
+        void next(float[] normalized, float[] features) {
+            for (int channel = 0; channel < mChannels; channel++) {
+                final float smoothed = mSmoothed[channel];
+                mSmoothed[channel] = mFrames == 0 ? normalized[channel]
+                        : smoothed + SMOOTHING * (normalized[channel] - smoothed);
+            }
+            final int oldest = mFrames < SLOPE_WINDOW ? 0 : mHead;
+            for (int channel = 0; channel < mChannels; channel++) {
+                final float past = mFrames == 0 ? mSmoothed[channel] : mHistory[oldest][channel];
+                features[channel] = mSmoothed[channel];
+                features[mChannels + channel] = SLOPE_WEIGHT * (mSmoothed[channel] - past);
+                mHistory[mHead][channel] = mSmoothed[channel];
+            }
+            mHead = (mHead + 1) % SLOPE_WINDOW;
+            mFrames++;
+        }
+    }
+
+    // SPRING state of one template: the previous and current column of the warping matrix
+    // and where each path started.
+    private static final class Matcher {
+        final Template mTemplate;
+        final float mMaxDistance;
+        double[] mDistance;
+        long[] mStart;
+        double[] mNextDistance;
+        long[] mNextStart;
+        double mBest;
+        long mBestStart;
+        long mBestEnd;
+
+        Matcher(Template template) {
+            mTemplate = template;
+            final int length = template.getLength();
+            mMaxDistance = template.mThreshold * length;
+            mDistance = new double[length + 1];
+            mStart = new long[length + 1];
+            mNextDistance = new double[length + 1];
+            mNextStart = new long[length + 1];
+            reset();
+        }
+
+        void reset() {
+            Arrays.fill(mDistance, Double.POSITIVE_INFINITY);
+            mDistance[0] = 0;
+            mBest = Double.POSITIVE_INFINITY;
+        }
+    }
+
+    private final int mChannels;
+    private final Listener mListener;
+    private final FeatureExtractor mExtractor;
+    private final float[] mNormalized;
+    private final float[] mFeatures;
+    private Matcher[] mMatchers = new Matcher[0];
+    // Frame times, by frame index, as far back as the longest match can reach.
+    private long[] mFrameTimes = new long[1];
+    private long mFrame;
+
+    private long mSamples;
+    private float mAverageCpuMicros;
+    private float mMaxCpuMicros;
+    private long mRecognized;
+    private float mAverageLatencyMillis;
+
+    public GestureRecognizer(int channels, Listener listener) {
+        mChannels = channels;
+        mListener = listener;
+        mExtractor = new FeatureExtractor(channels);
+        mNormalized = new float[channels];
+        mFeatures = new float[2 * channels];
+    }
+
+    /**
+     * Replaces the templates.  Allocates the state for matching them.
+     */
+    public void setTemplates(Template... templates) {
+        final Matcher[] matchers = new Matcher[templates.length];
+        int longest = 1;
+        for (int i = 0; i < templates.length; i++) {
+            final Template template = templates[i];
+            if (template.mFeatures == null) {
+                template.mFeatures = extractFeatures(template.mSamples);
+            }
+            matchers[i] = new Matcher(template);
+            longest = Math.max(longest, (int) Math.ceil(template.getLength() * BAND) + 1);
+        }
+        mMatchers = matchers;
+        mFrameTimes = new long[Integer.highestOneBit(longest) << 1];
+    }
+
+    private float[][] extractFeatures(float[][] samples) {
+        final FeatureExtractor extractor = new FeatureExtractor(mChannels);
+        final float[][] features = new float[samples.length][2 * mChannels];
+        final float[] frame = new float[mChannels];
+        for (int i = 0; i < samples.length; i++) {
+            for (int channel = 0; channel < mChannels; channel++) {
+                frame[channel] = channel < samples[i].length ? samples[i][channel] : 0.0f;
+            }
+            extractor.next(frame, features[i]);
+        }
+        return features;
+    }
+
+    /**
+     * Forgets partial matches, for example when the glove is disconnected.
+     */
+    public void reset() {
+        mExtractor.reset();
+        for (Matcher matcher : mMatchers) {
+            matcher.reset();
+        }
+    }
+
+    /**
+     * Feeds the next frame, each channel already normalized to 0..1, for example by a
+     * {@link SensorCalibration.Normalizer}.
+     */
+    public void onFrame(long timeNanos, float[] normalized, int count) {
+        final long started = System.nanoTime();
+        for (int channel = 0; channel < mChannels; channel++) {
+            final float value = channel < count ? normalized[channel] : 0.0f;
+            mNormalized[channel] = Math.max(0.0f, Math.min(1.0f, value));
+        }
+        mExtractor.next(mNormalized, mFeatures);
+        final long frame = mFrame++;
+        mFrameTimes[(int) (frame & (mFrameTimes.length - 1))] = timeNanos;
+
+        for (Matcher matcher : mMatchers) {
+            step(matcher, frame);
+        }
+
+        final float cpuMicros = (System.nanoTime() - started) / 1e3f;
+        mAverageCpuMicros = mSamples == 0 ? cpuMicros
+                : mAverageCpuMicros + CPU_WEIGHT * (cpuMicros - mAverageCpuMicros);
+        mMaxCpuMicros = Math.max(mMaxCpuMicros, cpuMicros);
+        mSamples++;
+    }
+
+    private void step(Matcher matcher, long frame) {
+        final float[][] template = matcher.mTemplate.mFeatures;
+        final int length = template.length;
+        final double[] previous = matcher.mDistance;
+        final long[] previousStart = matcher.mStart;
+        final double[] current = matcher.mNextDistance;
+        final long[] currentStart = matcher.mNextStart;
+
+        // A match may start at any frame.
+        current[0] = 0;
+        currentStart[0] = frame;
+        for (int i = 1; i <= length; i++) {
+            double best = current[i - 1];
+            long start = currentStart[i - 1];
+            if (previous[i] < best) {
+                best = previous[i];
+                start = previousStart[i];
+            }
+            if (previous[i - 1] < best) {
+                best = previous[i - 1];
+                start = previousStart[i - 1];
+            }
+            // Keep the path within the band around the template length.
+            final long span = frame - start + 1;
+            if (span > BAND * i || span * BAND < i) {
+                best = Double.POSITIVE_INFINITY;
+            }
+            current[i] = best + distance(mFeatures, template[i - 1]);
+            currentStart[i] = start;
+        }
+
+        // Report the best match once no path still running could replace it.
+        if (matcher.mBest <= matcher.mMaxDistance) {
+            boolean settled = true;
+            for (int i = 1; i <= length; i++) {
+                if (current[i] < matcher.mBest && currentStart[i] <= matcher.mBestEnd) {
+                    settled = false;
+                    break;
+                }
+            }
+            if (settled) {
+                report(matcher);
+                for (int i = 1; i <= length; i++) {
+                    if (currentStart[i] <= matcher.mBestEnd) {
+                        current[i] = Double.POSITIVE_INFINITY;
+                    }
+                }
+                matcher.mBest = Double.POSITIVE_INFINITY;
+            }
+        }
+        if (current[length] <= matcher.mMaxDistance && current[length] < matcher.mBest) {
+            matcher.mBest = current[length];
+            matcher.mBestStart = currentStart[length];
+            matcher.mBestEnd = frame;
+        }
+
+        matcher.mDistance = current;
+        matcher.mStart = currentStart;
+        matcher.mNextDistance = previous;
+        matcher.mNextStart = previousStart;
+    }
+
+    private void report(Matcher matcher) {
+        final long mask = mFrameTimes.length - 1;
+        final long startNanos = mFrameTimes[(int) (matcher.mBestStart & mask)];
+        final long endNanos = mFrameTimes[(int) (matcher.mBestEnd & mask)];
+        // Recognition latency: from the end of the gesture to now, on the frame clock.
+        final long newest = mFrameTimes[(int) ((mFrame - 1) & mask)];
+        final float latencyMillis = (newest - endNanos) / 1e6f;
+        mAverageLatencyMillis = mRecognized == 0 ? latencyMillis
+                : mAverageLatencyMillis + 0.1f * (latencyMillis - mAverageLatencyMillis);
+        mRecognized++;
+        mListener.onGesture(matcher.mTemplate, startNanos, endNanos,
+                (float) (matcher.mBest / matcher.mTemplate.getLength()));
+    }
+
+    private static float distance(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            final float d = a[i] - b[i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    public long getRecognizedCount() {
+        return mRecognized;
+    }
+
+    /**
+     * @return Smoothed processing time per frame, in microseconds.
+     */
+    public float getAverageCpuMicros() {
+        return mAverageCpuMicros;
+    }
+
+    public float getMaxCpuMicros() {
+        return mMaxCpuMicros;
+    }
+
+    /**
+     * @return Smoothed time from the end of a gesture to its recognition, in milliseconds.
+     */
+    public float getAverageLatencyMillis() {
+        return mAverageLatencyMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "recognized " + mRecognized + ", latency " + mAverageLatencyMillis + " ms, cpu "
+                + mAverageCpuMicros + " us/frame (max " + mMaxCpuMicros + " us)";
+    }
+}
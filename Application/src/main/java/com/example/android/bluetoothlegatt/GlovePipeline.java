@@ -0,0 +1,497 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * The glove path, decode to send: turns Pallette notifications into commands for the robots
+ * that follow the glove.  Everything runs fused on the control thread; the dejitter stage
+ * releases frames later from its own timer on that thread.
+ *
+ * <p>The stages and the state they keep live here rather than in the activity, so the same
+ * path can be built around other collaborators, for example in a test.
+ */
+public final class GlovePipeline {
+    private final static String TAG = GlovePipeline.class.getSimpleName();
+
+    /**
+     * Sees every decoded frame as it arrived, on the control thread.
+     */
+    public interface Listener {
+        /**
+         * @param values Only valid during the call.
+         */
+        void onFrame(long timeNanos, int[] values, int count);
+    }
+
+    public static final String STAGE_DECODE = "decode";
+    public static final String STAGE_OBSERVE = "observe";
+    public static final String STAGE_DEJITTER = "dejitter";
+    public static final String STAGE_CALIBRATE = "calibrate";
+    public static final String STAGE_GESTURE = "gesture";
+    public static final String STAGE_MAP = "map";
+    public static final String STAGE_SHAPE = "shape";
+    public static final String STAGE_SEND = "send";
+
+    // Per-sample events, recorded by TraceLog instead of formatted into the log.
+    private static final int TRACE_ROTATION = TraceLog.register("rotation", Log.VERBOSE,
+            "quadrant", "degrees", "angle", "cos", "a", "b");
+    static final int TRACE_DRIVE = TraceLog.register("drive", Log.VERBOSE,
+            "heading", "velocity");
+    // Gestures on the IR pair that trigger robot actions, matched against the released frames.
+    private static final int GESTURE_JUMP = 0;
+    private static final int GESTURE_CHANGE_COLOR = 1;
+    private static final GestureRecognizer.Template[] GESTURES = {
+            // Both sensors covered and uncovered quickly.
+            GestureRecognizer.Template.fromKeyframes("squeeze", GESTURE_JUMP,
+                    new float[][] { { 0.1f, 0.1f }, { 0.9f, 0.9f }, { 0.1f, 0.1f } }, 16, 0.08f),
+            // A finger swept across the first sensor and then the second.
+            GestureRecognizer.Template.fromKeyframes("swipe", GESTURE_CHANGE_COLOR,
+                    new float[][] { { 0.1f, 0.1f }, { 0.9f, 0.1f }, { 0.1f, 0.9f },
+                            { 0.1f, 0.1f } }, 24, 0.08f),
+    };
+    // Recent history of the glove sensors.
+    private static final long HISTORY_RETENTION_NANOS = 60L * 1000000000L;
+    private static final float HISTORY_MAX_RATE = 200.0f;
+    // Quantiles of each glove channel over the last minute.
+    private static final int QUANTILE_WINDOW_SLOTS = 6;
+    private static final long DEFAULT_LATENCY_NANOS = 150000000L;
+    private static final float LATENCY_WEIGHT = 0.05f;
+
+    // The current time on the elapsedRealtimeNanos base.  Tests that drive the path with their
+    // own timestamps supply one; SystemClock stands still on the mockable android.jar.
+    interface Clock {
+        long elapsedRealtimeNanos();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+    private final FrameDecoder mDecoder;
+    private final SensorCalibration mCalibration;
+    private final InputWatchdog mWatchdog;
+    private final Listener mListener;
+    private final JitterBuffer mJitterBuffer;
+    private Pipeline.Output mDejitterOutput;
+    private final Pipeline.Frame mDejitteredFrame;
+    private final GestureRecognizer mGestures;
+    // Optional extrapolation of the heading by the measured glove-to-robot latency.
+    private final HeadingPredictor mPredictor = new HeadingPredictor();
+    private volatile long mLatencyNanos = DEFAULT_LATENCY_NANOS;
+    private final TimeSeriesStore mGloveHistory;
+    private final QuantileWindow[] mChannelQuantiles;
+    private final Pipeline mPipeline;
+    private final Pipeline.Frame mInput;
+    private final Random mRandom = new Random();
+    private Clock mClock = SYSTEM_CLOCK;
+    // Set from the main thread; each frame reads them once.
+    private volatile RobotGroup mRobots;
+    private volatile TelemetryExporter mTelemetry;
+
+    /**
+     * @param calibration Learns from the frames as they arrive and normalizes the released
+     *                    ones; one channel per channel of the schema.
+     * @param watchdog Fed by every frame that reaches the send stage.
+     * @param controlHandler Handler of the thread the frames are pushed on.
+     */
+    public GlovePipeline(FrameSchema schema, SensorCalibration calibration,
+                         InputWatchdog watchdog, Handler controlHandler, Listener listener) {
+        final int channels = schema.getChannelCount();
+        mDecoder = new FrameDecoder(schema);
+        mCalibration = calibration;
+        mWatchdog = watchdog;
+        mListener = listener;
+        mGloveHistory = TimeSeriesStore.forRate(schema.getChannelNames(), HISTORY_MAX_RATE,
+                HISTORY_RETENTION_NANOS);
+        mChannelQuantiles = new QuantileWindow[channels];
+        for (int channel = 0; channel < channels; channel++) {
+            mChannelQuantiles[channel] = new QuantileWindow(new QuantileSketch(0.01, 1, 65536),
+                    HISTORY_RETENTION_NANOS, QUANTILE_WINDOW_SLOTS);
+        }
+        mJitterBuffer = new JitterBuffer(channels, controlHandler, mJitterListener);
+        mGestures = new GestureRecognizer(GESTURES[0].getChannelCount(), mGestureListener);
+        mGestures.setTemplates(GESTURES);
+        mPipeline = new Pipeline(channels)
+                .addStage(STAGE_DECODE, mDecodeStage)
+                .addStage(STAGE_OBSERVE, mObserveStage)
+                .addStage(STAGE_DEJITTER, mDejitterStage)
+                .addStage(STAGE_CALIBRATE, mCalibrateStage)
+                .addStage(STAGE_GESTURE, mGestureStage)
+                .addStage(STAGE_MAP, mMapStage)
+                .addStage(STAGE_SHAPE, mShapeStage)
+                .addStage(STAGE_SEND, mSendStage);
+        mPipeline.setTopology(mPipeline.getDefaultTopology());
+        mPipeline.setEnabled(STAGE_SHAPE, false);
+        mDejitteredFrame = mPipeline.newFrame();
+        mInput = mPipeline.newFrame();
+    }
+
+    /**
+     * Runs a notification through the path.  Call on the control thread.
+     */
+    public void push(byte[] data, long arrivalNanos) {
+        mInput.timeNanos = arrivalNanos;
+        mInput.payload = data;
+        mPipeline.push(mInput);
+    }
+
+    // Set before the first frame.
+    void setClock(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param robots Driven from the next frame on; null to drive nothing.
+     */
+    public void setRobots(RobotGroup robots) {
+        mRobots = robots;
+    }
+
+    /**
+     * @param telemetry Gets the frames, mapping and commands from the next frame on; null to
+     *                  stop.  Set on the control thread.
+     */
+    public void setTelemetry(TelemetryExporter telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    public Pipeline getPipeline() {
+        return mPipeline;
+    }
+
+    public FrameDecoder getDecoder() {
+        return mDecoder;
+    }
+
+    public JitterBuffer getJitterBuffer() {
+        return mJitterBuffer;
+    }
+
+    public GestureRecognizer getGestures() {
+        return mGestures;
+    }
+
+    public TimeSeriesStore getGloveHistory() {
+        return mGloveHistory;
+    }
+
+    public QuantileWindow getChannelQuantiles(int channel) {
+        return mChannelQuantiles[channel];
+    }
+
+    public int getChannelCount() {
+        return mChannelQuantiles.length;
+    }
+
+    /**
+     * @return The glove-to-robot latency the shape stage predicts over.
+     */
+    public long getLatencyNanos() {
+        return mLatencyNanos;
+    }
+
+    /**
+     * Forgets the heading history of the shape stage.  Call on the control thread.
+     */
+    public void resetPredictor() {
+        mPredictor.reset();
+    }
+
+    /**
+     * @return The map stage as a function of raw frames, for replaying recorded sessions.
+     */
+    public PredictionEvaluator.HeadingMapping getHeadingMapping() {
+        return mHeadingMapping;
+    }
+
+    // Malformed, duplicated and late frames are counted by the decoder and dropped.
+    private final Pipeline.Stage mDecodeStage = new Pipeline.Stage() {
+        @Override
+        public void process(Pipeline.Frame frame, Pipeline.Output output) {
+            if (!mDecoder.decode(frame.payload)) {
+                return;
+            }
+            frame.payload = null;
+            frame.count = mDecoder.copyValues(frame.values);
+            frame.sequence = mDecoder.getSequence();
+            frame.interpolated = false;
+            output.emit(frame);
+        }
+    };
+
+    // History, calibration, statistics and recording see every frame as it arrived.
+    private final Pipeline.Stage mObserveStage = new Pipeline.Stage() {
+        @Override
+        public void process(Pipeline.Frame frame, Pipeline.Output output) {
+            final long now = frame.timeNanos;
+            final int count = frame.count;
+            mGloveHistory.append(now, frame.values, count);
+            mCalibration.observe(frame.values, count);
+            for (int channel = 0; channel < count; channel++) {
+                mChannelQuantiles[channel].add(now, frame.values[channel]);
+            }
+            final TelemetryExporter telemetry = mTelemetry;
+            if (telemetry != null) {
+                telemetry.addGlove(now, frame.values, count);
+            }
+            mListener.onFrame(now, frame.values, count);
+            output.emit(frame);
+        }
+    };
+
+    // The robot is driven from the evenly spaced stream the jitter buffer releases.
+    private final Pipeline.Stage mDejitterStage = new Pipeline.Stage() {
+        @Override
+        public void process(Pipeline.Frame frame, Pipeline.Output output) {
+            mDejitterOutput = output;
+            mJitterBuffer.offer(frame.timeNanos, frame.sequence, frame.values, frame.count);
+        }
+    };
+
+    private final JitterBuffer.Listener mJitterListener = new JitterBuffer.Listener() {
+        @Override
+        public void onFrame(long timeNanos, int[] values, int count, boolean interpolated) {
+            final Pipeline.Frame frame = mDejitteredFrame;
+            frame.timeNanos = timeNanos;
+            System.arraycopy(values, 0, frame.values, 0, count);
+            frame.count = count;
+            frame.interpolated = interpolated;
+            mDejitterOutput.emit(frame);
+        }
+    };
+
+    private final Pipeline.Stage mCalibrateStage = new Pipeline.Stage() {
+        @Override
+        public void process(Pipeline.Frame frame, Pipeline.Output output) {
+            mCalibration.getNormalizer().normalize(frame.values, frame.count, frame.normalized);
+            output.emit(frame);
+        }
+    };
+
+    private final Pipeline.Stage mGestureStage = new Pipeline.Stage() {
+        @Override
+        public void process(Pipeline.Frame frame, Pipeline.Output output) {
+            mGestures.onFrame(frame.timeNanos, frame.normalized, frame.count);
+            output.emit(frame);
+        }
+    };
+
+    private final GestureRecognizer.Listener mGestureListener = new GestureRecognizer.Listener() {
+        @Override
+        public void onGesture(GestureRecognizer.Template template, long startNanos,
+                              long endNanos, float distance) {
+            Log.d(TAG, "Gesture " + template.getName() + " distance " + distance);
+            final RobotGroup robots = mRobots;
+            if (robots == null || robots.isEmpty()) {
+                return;
+            }
+            // LED animations belong to the thread of the group's handler, not this one.
+            final int action = template.getAction();
+            robots.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    switch (action) {
+                        case GESTURE_JUMP:
+                            jump(robots);
+                            break;
+                        case GESTURE_CHANGE_COLOR:
+                            changeColor(robots);
+                            break;
+                    }
+                }
+            });
+        }
+    };
+
+    // Sensors are normalized to the calibrated active band.
+    private final Pipeline.Stage mMapStage = new Pipeline.Stage() {
+        @Override
+        public void process(Pipeline.Frame frame, Pipeline.Output output) {
+            float sensor_a = frame.normalized[0];
+            float sensor_b = frame.normalized[1];
+            boolean bool_sensor_a = convertBoolean( sensor_a );
+            boolean bool_sensor_b = convertBoolean( sensor_b );
+            frame.active = bool_sensor_a && bool_sensor_b;
+            if (frame.active){
+                frame.heading = getRotation(sensor_a,sensor_b);
+                frame.velocity = getVelocity(sensor_a,sensor_b);
+//                getFullRotation(sensor_a, sensor_b);
+            }
+            output.emit(frame);
+        }
+    };
+
+    // Optional extrapolation of the heading by the end-to-end latency: the age of the frame,
+    // which includes the jitter buffer delay, plus half the round trip to the robot.
+    private final Pipeline.Stage mShapeStage = new Pipeline.Stage() {
+        @Override
+        public void process(Pipeline.Frame frame, Pipeline.Output output) {
+            final RobotGroup robots = mRobots;
+            if (!frame.active || robots == null) {
+                mPredictor.reset();
+            } else {
+                final long latency = mClock.elapsedRealtimeNanos() - frame.timeNanos
+                        + (long) (robots.getRoundTripMillis() * 500000L);
+                mLatencyNanos += (long) (LATENCY_WEIGHT * (latency - mLatencyNanos));
+                mPredictor.update(frame.timeNanos, frame.heading);
+                frame.heading = mPredictor.predict(mLatencyNanos);
+            }
+            output.emit(frame);
+        }
+    };
+
+    // Every frame that gets here keeps the watchdog from stopping the robots, and a slowing
+    // stream slows them down.
+    private final Pipeline.Stage mSendStage = new Pipeline.Stage() {
+        @Override
+        public void process(Pipeline.Frame frame, Pipeline.Output output) {
+            mWatchdog.feed(frame.timeNanos);
+            final TelemetryExporter telemetry = mTelemetry;
+            if (telemetry != null) {
+                telemetry.addMapping(frame.timeNanos, frame.active, frame.heading,
+                        frame.velocity);
+            }
+            final RobotGroup robots = mRobots;
+            if (frame.active && robots != null && !robots.isEmpty()) {
+                final float velocity = frame.velocity * mWatchdog.getVelocityScale();
+                driveAngle(robots, frame.heading, velocity);
+                if (telemetry != null) {
+                    telemetry.addCommand(frame.timeNanos, frame.heading, velocity);
+                }
+            }
+            output.emit(frame);
+        }
+    };
+
+    private final PredictionEvaluator.HeadingMapping mHeadingMapping =
+            new PredictionEvaluator.HeadingMapping() {
+        @Override
+        public boolean isActive(int[] frame) {
+            final SensorCalibration.Normalizer normalizer = mCalibration.getNormalizer();
+            return convertBoolean(normalizer.normalize(0, frame[0]))
+                    && convertBoolean(normalizer.normalize(1, frame[1]));
+        }
+
+        @Override
+        public float getHeading(int[] frame) {
+            final SensorCalibration.Normalizer normalizer = mCalibration.getNormalizer();
+            return getRotation(normalizer.normalize(0, frame[0]),
+                    normalizer.normalize(1, frame[1]));
+        }
+    };
+
+    // Readings are normalized, so the active band is 0..1 whatever the glove.
+    private static boolean convertBoolean(float sensorReading){
+        if(sensorReading>0.0f && sensorReading<1.0f)
+            return true;
+        return false;
+    }
+
+    // The ratio of the two readings was tuned on raw readings, offset included, so the
+    // normalized readings are put back on that scale first.
+    private static float getRotation(float normalizedA, float normalizedB){
+        final float sensorReadingA = SensorCalibration.toDefaultBand(normalizedA);
+        final float sensorReadingB = SensorCalibration.toDefaultBand(normalizedB);
+        float ratio;
+        boolean positive;
+        if (sensorReadingA>sensorReadingB) {
+            ratio = sensorReadingB / sensorReadingA;
+            positive = true;
+        }
+        else{
+            ratio = sensorReadingA / sensorReadingB;
+            positive = false;
+        }
+        float angle = (1.0f-ratio)*90.0f;
+        if (positive)
+            return angle+15.0f;
+        else
+            return 360.0f-angle-15.0f;
+    }
+
+    private static float getVelocity(float sensorReadingA, float sensorReadingB){
+        float maxReading = Math.max(sensorReadingA, sensorReadingB);
+        return Math.min(1.0f,0.2f+Math.min(maxReading, 1.0f));
+    }
+
+    private static float getFullRotation(float sensorReadingA, float sensorReadingB){
+        // In units of the active band, which was 45000 wide when these were measured.
+        double max_d = 1.0f;
+        // distance between sensors
+        double d = 3000.0f / 45000.0f;
+        // distance between supposed center line
+        double alpha = 6000.0f / 45000.0f;
+        double radius = Math.sqrt((d*d/4)+(alpha*alpha));
+        double a = max_d - sensorReadingA;
+        double b = max_d - sensorReadingB;
+        if((b<=alpha)&&(b<=a)) {
+            double cos = ((a * a) - (b * b)) / (2 * d * radius);
+            if (cos > 1.0)
+                cos = 1.0f;
+            else if (cos < -1.0f)
+                cos = -1.0f;
+            double angle = Math.acos(cos);
+            double degrees = 90.0f-Math.toDegrees(angle);
+            TraceLog.log(TRACE_ROTATION, 1, degrees, angle, cos, a, b);
+        }
+        else if((a<=alpha)&&(a<=b)) {
+            double cos = ((b * b) - (a * a)) / (2 * d * radius);
+            if (cos > 1.0)
+                cos = 1.0f;
+            else if (cos < -1.0f)
+                cos = -1.0f;
+            double angle = Math.acos(cos);
+            double degrees = 270.0f + Math.toDegrees(angle);
+            TraceLog.log(TRACE_ROTATION, 2, degrees, angle, cos, a, b);
+        }
+        else if((b>=alpha)&&(b<=a)) {
+            double cos = ((a * a) - (b * b)) / (2 * d * radius);
+            if (cos > 1.0)
+                cos = 1.0f;
+            else if (cos < -1.0f)
+                cos = -1.0f;
+            double angle = Math.acos(cos);
+            double degrees = 90.0f+Math.toDegrees(angle);
+            TraceLog.log(TRACE_ROTATION, 3, degrees, angle, cos, a, b);
+        }
+        else if((a>=alpha)&&(a<=b)) {
+            double cos = ((b * b) - (a * a)) / (2 * d * radius);
+            if (cos > 1.0)
+                cos = 1.0f;
+            else if (cos < -1.0f)
+                cos = -1.0f;
+            double angle = Math.acos(cos);
+            double degrees = 180.0f+Math.toDegrees(angle);
+            TraceLog.log(TRACE_ROTATION, 4, degrees, angle, cos, a, b);
+        }
+        return 0.0f;
+    }
+
+    // Takes the group the caller checked, as mRobots may be cleared on the main thread
+    // meanwhile.
+    private void driveAngle(RobotGroup robots, float rotation, float velocity){
+        TraceLog.log(TRACE_DRIVE, rotation, velocity);
+        robots.drive( rotation, velocity );
+    }
+
+    private void changeColor(RobotGroup robots){
+
+        robots.show( (getRandom() << 16) | (getRandom() << 8) | getRandom() );
+    }
+
+    private int getRandom(){
+        return mRandom.nextInt(2) * 0xff;
+
+    }
+
+    private void jump(RobotGroup robots){
+        robots.jump();
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Publishes decoded glove frames to other processes through shared memory.
+ *
+ * <p>Frames go into a ring in a memory-mapped file that clients map read-only, so reading the
+ * stream costs them no Binder transaction and no copy through the service.  Each stream has
+ * a file of its own in the app's cache directory, only reachable through the descriptors
+ * handed out by {@link IGloveStream}, and deletes it when closed.  A file is never truncated
+ * or reused while clients may still have it mapped, as they would fault reading it.  After
+ * each frame, every client that asked for it is sent a one-byte datagram on a socket of its
+ * own to wake it up; the send never blocks, and a client whose socket is full simply finds
+ * several frames on its next read.
+ *
+ * <p>Layout, big-endian.  The header, {@link #HEADER_BYTES} long: magic, version, channel
+ * count, record size and capacity ints at 0, 4, 8, 12 and 16, and at {@link #OFFSET_HEAD} the
+ * number of frames written so far as a long.  Frame n, counting from 1, is in record
+ * (n - 1) % capacity: its stamp, arrival time in elapsedRealtimeNanos and the sequence number
+ * the glove sent as longs, then one int per channel.  The stamp is -n while the record is
+ * written and n once it is complete, so a reader that sees the same stamp n before and after
+ * reading a record has read it whole.
+ *
+ * <p>{@link #write} may be called from any thread, one at a time.
+ */
+public final class GloveStream {
+    private final static String TAG = GloveStream.class.getSimpleName();
+
+    static final int MAGIC = 0x50414c47; // "PALG"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int OFFSET_CHANNELS = 8;
+    static final int OFFSET_RECORD_BYTES = 12;
+    static final int OFFSET_CAPACITY = 16;
+    static final int OFFSET_HEAD = 32;
+    static final int RECORD_HEADER_BYTES = 24;
+
+    private static final byte[] WAKEUP = { 1 };
+    private static final String FILE_PREFIX = "glove-stream";
+
+    private final File mFile;
+    private final RandomAccessFile mData;
+    private final MappedByteBuffer mRing;
+    private final FrameDecoder mDecoder;
+    private final String[] mChannelNames;
+    private final int[] mValues;
+    private final int mRecordBytes;
+    private final int mCapacity;
+    private long mHead;
+    private volatile long mFence;
+
+    private static final class Client implements IBinder.DeathRecipient {
+        final IBinder mToken;
+        final FileDescriptor mSocket;
+        final CopyOnWriteArrayList<Client> mClients;
+
+        Client(IBinder token, FileDescriptor socket, CopyOnWriteArrayList<Client> clients) {
+            mToken = token;
+            mSocket = socket;
+            mClients = clients;
+        }
+
+        @Override
+        public void binderDied() {
+            close();
+        }
+
+        void close() {
+            if (mClients.remove(this)) {
+                mToken.unlinkToDeath(this, 0);
+                try {
+                    Os.close(mSocket);
+                } catch (ErrnoException e) {
+                    Log.w(TAG, "Unable to close a wakeup socket", e);
+                }
+            }
+        }
+    }
+
+    private final CopyOnWriteArrayList<Client> mClients = new CopyOnWriteArrayList<Client>();
+
+    /**
+     * Creates the ring in a new file.  Files left by a process that died are deleted; clients
+     * that still map them keep reading what was there.
+     *
+     * @param directory Where the file is created.
+     * @param capacity Number of frames kept for clients that fall behind.
+     */
+    public GloveStream(File directory, FrameSchema schema, int capacity) throws IOException {
+        final File[] stale = directory.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                if (file.getName().startsWith(FILE_PREFIX)) {
+                    file.delete();
+                }
+            }
+        }
+        mFile = File.createTempFile(FILE_PREFIX + "-", null, directory);
+        mDecoder = new FrameDecoder(schema);
+        mChannelNames = schema.getChannelNames();
+        mValues = new int[mChannelNames.length];
+        mRecordBytes = RECORD_HEADER_BYTES + 4 * mChannelNames.length;
+        mCapacity = capacity;
+
+        final long size = HEADER_BYTES + (long) capacity * mRecordBytes;
+        try {
+            mData = new RandomAccessFile(mFile, "rw");
+        } catch (IOException e) {
+            mFile.delete();
+            throw e;
+        }
+        try {
+            mData.setLength(size);
+            mRing = mData.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            mData.close();
+            mFile.delete();
+            throw e;
+        }
+        mRing.putInt(OFFSET_CHANNELS, mChannelNames.length);
+        mRing.putInt(OFFSET_RECORD_BYTES, mRecordBytes);
+        mRing.putInt(OFFSET_CAPACITY, capacity);
+        mRing.putLong(OFFSET_HEAD, 0);
+        // Written last: a reader that sees the magic sees a complete header.
+        mRing.putInt(4, VERSION);
+        fence();
+        mRing.putInt(0, MAGIC);
+    }
+
+    public String[] getChannelNames() {
+        return mChannelNames.clone();
+    }
+
+    /**
+     * Decodes a glove payload into the ring and wakes the clients.  Payloads that do not decode
+     * are dropped.
+     *
+     * @param arrivalNanos When the payload arrived, on the elapsedRealtimeNanos base.
+     */
+    public synchronized void write(long arrivalNanos, byte[] payload) {
+        if (!mDecoder.decode(payload)) {
+            return;
+        }
+        final int count = mDecoder.copyValues(mValues);
+        final long frame = mHead + 1;
+        final int base = HEADER_BYTES + (int) ((frame - 1) % mCapacity) * mRecordBytes;
+        mRing.putLong(base, -frame);
+        fence();
+        mRing.putLong(base + 8, arrivalNanos);
+        mRing.putLong(base + 16, mDecoder.getSequence());
+        for (int channel = 0; channel < mValues.length; channel++) {
+            mRing.putInt(base + RECORD_HEADER_BYTES + 4 * channel,
+                    channel < count ? mValues[channel] : 0);
+        }
+        fence();
+        mRing.putLong(base, frame);
+        mRing.putLong(OFFSET_HEAD, frame);
+        mHead = frame;
+
+        for (Client client : mClients) {
+            try {
+                Os.sendto(client.mSocket, WAKEUP, 0, WAKEUP.length, OsConstants.MSG_DONTWAIT,
+                        null, 0);
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EAGAIN) {
+                    // The client closed its end.
+                    client.close();
+                }
+            } catch (IOException e) {
+                client.close();
+            }
+        }
+    }
+
+    // A volatile store followed by a volatile load keeps the writes to the mapping before it
+    // from moving past those after it, which readers in other processes rely on.
+    private long fence() {
+        mFence = 0;
+        return mFence;
+    }
+
+    /**
+     * @return A read-only descriptor of the ring for a client.
+     */
+    public ParcelFileDescriptor openRing() throws IOException {
+        return ParcelFileDescriptor.open(mFile, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Opens a wakeup socket for a client, closed again when the token dies.
+     *
+     * @return The client's end of the socket.
+     */
+    public ParcelFileDescriptor openWakeup(IBinder token) throws IOException {
+        final FileDescriptor ours = new FileDescriptor();
+        final FileDescriptor theirs = new FileDescriptor();
+        try {
+            Os.socketpair(OsConstants.AF_UNIX, OsConstants.SOCK_DGRAM, 0, ours, theirs);
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        }
+        final ParcelFileDescriptor result;
+        try {
+            result = ParcelFileDescriptor.dup(theirs);
+        } finally {
+            try {
+                Os.close(theirs);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Unable to close a wakeup socket", e);
+            }
+        }
+        final Client client = new Client(token, ours, mClients);
+        try {
+            token.linkToDeath(client, 0);
+        } catch (RemoteException e) {
+            // Already gone.
+            result.close();
+            try {
+                Os.close(ours);
+            } catch (ErrnoException ignored) {
+                // Nothing more to release.
+            }
+            return null;
+        }
+        closeWakeup(token);
+        mClients.add(client);
+        return result;
+    }
+
+    public void closeWakeup(IBinder token) {
+        for (Client client : mClients) {
+            if (client.mToken == token) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the ring and all wakeup sockets, and deletes the file.  Clients keep their
+     * mappings but receive no more frames.
+     */
+    public synchronized void close() {
+        for (Client client : mClients) {
+            client.close();
+        }
+        try {
+            mData.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close " + mFile, e);
+        }
+        if (!mFile.delete()) {
+            Log.w(TAG, "Unable to delete " + mFile);
+        }
+    }
+
+    public long getFrameCount() {
+        return mHead;
+    }
+
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    @Override
+    public String toString() {
+        return mHead + " frames, " + mClients.size() + " clients";
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the glove stream of another process from the descriptors of an {@link IGloveStream}.
+ * Self-contained apart from {@link GloveStream}'s layout, so client apps can copy it.
+ *
+ * <p>The ring is mapped read-only and frames are read straight from it.  A reader that falls
+ * more than the capacity of the ring behind skips to the oldest frame still in it, and counts
+ * the frames it missed.
+ *
+ * <p>Not thread-safe: read from one thread.
+ */
+public final class GloveStreamReader implements Closeable {
+
+    // Matches GloveStream.
+    private static final int MAGIC = 0x50414c47;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int OFFSET_CHANNELS = 8;
+    private static final int OFFSET_RECORD_BYTES = 12;
+    private static final int OFFSET_CAPACITY = 16;
+    private static final int OFFSET_HEAD = 32;
+    private static final int RECORD_HEADER_BYTES = 24;
+
+    /**
+     * One frame of the stream.
+     */
+    public static final class Frame {
+        /** Number of the frame in the stream, from 1. */
+        public long number;
+        public long arrivalNanos;
+        public long sequence;
+        public final int[] values;
+
+        public Frame(int channels) {
+            values = new int[channels];
+        }
+    }
+
+    private final ParcelFileDescriptor mRingDescriptor;
+    private final ParcelFileDescriptor mWakeup;
+    private final MappedByteBuffer mRing;
+    private final int mChannels;
+    private final int mRecordBytes;
+    private final int mCapacity;
+    private final byte[] mWakeupBuffer = new byte[16];
+    private long mNext = 1;
+    private long mMissed;
+    private volatile long mFence;
+
+    /**
+     * @param ring From {@link IGloveStream#openRing}.
+     * @param wakeup From {@link IGloveStream#openWakeup}, or null to poll.
+     */
+    public GloveStreamReader(ParcelFileDescriptor ring, ParcelFileDescriptor wakeup)
+            throws IOException {
+        mRingDescriptor = ring;
+        mWakeup = wakeup;
+        final FileChannel channel = new FileInputStream(ring.getFileDescriptor()).getChannel();
+        mRing = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (mRing.capacity() < HEADER_BYTES || mRing.getInt(0) != MAGIC
+                || mRing.getInt(4) != VERSION) {
+            throw new IOException("Not a glove stream");
+        }
+        mChannels = mRing.getInt(OFFSET_CHANNELS);
+        mRecordBytes = mRing.getInt(OFFSET_RECORD_BYTES);
+        mCapacity = mRing.getInt(OFFSET_CAPACITY);
+        if (mRing.capacity() < HEADER_BYTES + (long) mCapacity * mRecordBytes) {
+            throw new IOException("Truncated glove stream");
+        }
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    /**
+     * @return Frames written to the stream so far.
+     */
+    public long getFrameCount() {
+        return mRing.getLong(OFFSET_HEAD);
+    }
+
+    /**
+     * @return Frames overwritten before this reader got to them.
+     */
+    public long getMissedCount() {
+        return mMissed;
+    }
+
+    /**
+     * Starts reading at the newest frame instead of the oldest one still in the ring.
+     */
+    public void skipToLatest() {
+        mNext = Math.max(1, getFrameCount());
+    }
+
+    /**
+     * Blocks until a frame newer than the last one read is available.
+     */
+    public void await() throws IOException {
+        while (mNext > getFrameCount()) {
+            if (mWakeup == null) {
+                throw new IOException("No wakeup socket");
+            }
+            try {
+                Os.read(mWakeup.getFileDescriptor(), mWakeupBuffer, 0, mWakeupBuffer.length);
+            } catch (ErrnoException e) {
+                throw new IOException(e);
+            }
+        }
+        drainWakeups();
+    }
+
+    // Wakeups for frames about to be read would only wake the reader again for nothing.
+    private void drainWakeups() throws IOException {
+        if (mWakeup == null) {
+            return;
+        }
+        try {
+            while (Os.recvfrom(mWakeup.getFileDescriptor(), mWakeupBuffer, 0,
+                    mWakeupBuffer.length, OsConstants.MSG_DONTWAIT, null) > 0) {
+                // Discarded.
+            }
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EAGAIN) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads the next frame without blocking.
+     *
+     * @return False if there is no newer frame yet.
+     */
+    public boolean next(Frame frame) {
+        while (true) {
+            final long head = getFrameCount();
+            if (mNext > head) {
+                return false;
+            }
+            if (head - mNext >= mCapacity) {
+                mMissed += head - mCapacity + 1 - mNext;
+                mNext = head - mCapacity + 1;
+            }
+            final int base = HEADER_BYTES + (int) ((mNext - 1) % mCapacity) * mRecordBytes;
+            if (mRing.getLong(base) == mNext) {
+                fence();
+                frame.arrivalNanos = mRing.getLong(base + 8);
+                frame.sequence = mRing.getLong(base + 16);
+                final int channels = Math.min(mChannels, frame.values.length);
+                for (int channel = 0; channel < channels; channel++) {
+                    frame.values[channel] =
+                            mRing.getInt(base + RECORD_HEADER_BYTES + 4 * channel);
+                }
+                fence();
+                if (mRing.getLong(base) == mNext) {
+                    frame.number = mNext++;
+                    return true;
+                }
+            }
+            // Overwritten by a newer frame while it was read.
+            mMissed++;
+            mNext++;
+        }
+    }
+
+    // A volatile store followed by a volatile load keeps the reads of the mapping before it
+    // from moving past those after it, which the stamps of a record rely on.
+    private long fence() {
+        mFence = 0;
+        return mFence;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRingDescriptor.close();
+        if (mWakeup != null) {
+            mWakeup.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Compensates the latency between the glove and the robot by extrapolating the heading.
+ *
+ * <p>An alpha-beta filter tracks the heading and its angular velocity; {@link #predict} then
+ * projects the heading forward by the end-to-end latency, so the robot is told where the hand
+ * will be when the command takes effect rather than where it was.  Both the lead time and the
+ * size of the correction are limited, so noise or a stale velocity cannot fling the robot
+ * around.  Headings are in degrees and wrap at 360.
+ *
+ * <p>Not thread-safe.
+ */
+public final class HeadingPredictor {
+
+    private static final float DEFAULT_ALPHA = 0.5f;
+    private static final float DEFAULT_BETA = 0.1f;
+    private static final long DEFAULT_MAX_LEAD_NANOS = 250000000L;
+    private static final float DEFAULT_MAX_CORRECTION = 45.0f;
+    // Steps longer than this are a new gesture rather than a continuation.
+    private static final long MAX_STEP_NANOS = 500000000L;
+    private static final float MIN_STEP_SECONDS = 0.001f;
+
+    private final float mAlpha;
+    private final float mBeta;
+    private long mMaxLeadNanos = DEFAULT_MAX_LEAD_NANOS;
+    private float mMaxCorrection = DEFAULT_MAX_CORRECTION;
+
+    private boolean mTracking;
+    private long mLastNanos;
+    private float mHeading;
+    // Degrees per second.
+    private float mRate;
+
+    public HeadingPredictor() {
+        this(DEFAULT_ALPHA, DEFAULT_BETA);
+    }
+
+    /**
+     * @param alpha Share of the measurement residual applied to the heading, 0 to 1.
+     * @param beta Share of the residual applied to the rate, 0 to 1.  Smaller is smoother.
+     */
+    public HeadingPredictor(float alpha, float beta) {
+        mAlpha = alpha;
+        mBeta = beta;
+    }
+
+    /**
+     * @param maxLeadNanos Longest time the heading is extrapolated over.
+     * @param maxCorrection Largest change, in degrees, the prediction may make.
+     */
+    public void setLimits(long maxLeadNanos, float maxCorrection) {
+        mMaxLeadNanos = maxLeadNanos;
+        mMaxCorrection = maxCorrection;
+    }
+
+    /**
+     * Forgets the motion so far, for example when the hand leaves the sensors.
+     */
+    public void reset() {
+        mTracking = false;
+        mRate = 0;
+    }
+
+    /**
+     * Feeds a measured heading.
+     */
+    public void update(long timeNanos, float heading) {
+        final long stepNanos = timeNanos - mLastNanos;
+        if (!mTracking || stepNanos > MAX_STEP_NANOS || stepNanos < 0) {
+            mTracking = true;
+            mHeading = heading;
+            mRate = 0;
+            mLastNanos = timeNanos;
+            return;
+        }
+        final float dt = Math.max(MIN_STEP_SECONDS, stepNanos / 1e9f);
+        final float predicted = mHeading + mRate * dt;
+        final float residual = MotionStats.wrapDelta(heading - predicted);
+        mHeading = wrap(predicted + mAlpha * residual);
+        mRate += mBeta * residual / dt;
+        mLastNanos = timeNanos;
+    }
+
+    /**
+     * @param leadNanos How far past the last measurement to extrapolate.
+     *
+     * @return The heading expected after the lead time, or the last measured heading if
+     *         nothing is being tracked.
+     */
+    public float predict(long leadNanos) {
+        if (!mTracking) {
+            return mHeading;
+        }
+        final float lead = Math.max(0, Math.min(leadNanos, mMaxLeadNanos)) / 1e9f;
+        final float correction = Math.max(-mMaxCorrection, Math.min(mMaxCorrection, mRate * lead));
+        return wrap(mHeading + correction);
+    }
+
+    public float getHeading() {
+        return mHeading;
+    }
+
+    /**
+     * @return The estimated angular velocity, in degrees per second.
+     */
+    public float getRate() {
+        return mRate;
+    }
+
+    static float wrap(float heading) {
+        heading %= 360.0f;
+        return heading < 0 ? heading + 360.0f : heading;
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stops the robots when the glove input driving them goes stale.
+ *
+ * <p>Every frame that reaches the robots is fed with its arrival time, which sets a deadline
+ * one budget later on the monotonic elapsedRealtimeNanos clock.  A timer on a thread of its
+ * own wakes at the deadline; if no newer frame has moved it, the watchdog trips and stops the
+ * robots, whatever happened upstream: the glove disconnected, notifications stalled, or the
+ * control thread is blocked.  The timer is only rescheduled when it fires, not per frame.  The
+ * next frame re-arms the watchdog.
+ *
+ * <p>Before input stops altogether it often slows down.  {@link #getVelocityScale} ramps from
+ * full speed at the nominal frame interval down to zero at the budget, so the robots slow as
+ * the input degrades instead of running on stale commands.
+ *
+ * <p>Trips and how long after the deadline the stop was issued are counted.
+ */
+public final class InputWatchdog {
+    private final static String TAG = InputWatchdog.class.getSimpleName();
+
+    /**
+     * What the watchdog stops.  Called on the watchdog thread, or on the thread calling
+     * {@link #trip}.
+     */
+    public interface Target {
+        void stop();
+    }
+
+    private static final long DEFAULT_BUDGET_NANOS = 300000000L;
+    private static final long DEFAULT_FULL_SPEED_INTERVAL_NANOS = 40000000L;
+    private static final float INTERVAL_SMOOTHING = 0.125f;
+
+    private final Target mTarget;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private volatile long mBudgetNanos = DEFAULT_BUDGET_NANOS;
+    private volatile long mFullSpeedIntervalNanos = DEFAULT_FULL_SPEED_INTERVAL_NANOS;
+
+    private final AtomicBoolean mArmed = new AtomicBoolean();
+    private volatile long mLastInputNanos;
+    // Only touched by the feeding thread.
+    private float mIntervalNanos;
+
+    private volatile long mDeadlineTrips;
+    private volatile long mExplicitTrips;
+    private volatile long mTotalReactionNanos;
+    private volatile long mMaxReactionNanos;
+
+    public InputWatchdog(Target target) {
+        mTarget = target;
+        mThread = new HandlerThread("InputWatchdog", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * @param budgetNanos Largest age of the latest input before the robots are stopped.
+     * @param fullSpeedIntervalNanos Frame interval up to which the robots may go full speed.
+     */
+    public void setBudget(long budgetNanos, long fullSpeedIntervalNanos) {
+        mBudgetNanos = budgetNanos;
+        mFullSpeedIntervalNanos = Math.min(fullSpeedIntervalNanos, budgetNanos);
+    }
+
+    /**
+     * Records fresh input.  Call from one thread.
+     *
+     * @param inputNanos When the input arrived, on the elapsedRealtimeNanos base.
+     */
+    public void feed(long inputNanos) {
+        final long last = mLastInputNanos;
+        if (last != 0 && inputNanos > last) {
+            mIntervalNanos += INTERVAL_SMOOTHING * (inputNanos - last - mIntervalNanos);
+        }
+        if (inputNanos > last) {
+            mLastInputNanos = inputNanos;
+        }
+        if (mArmed.compareAndSet(false, true)) {
+            if (last == 0 || mIntervalNanos > mBudgetNanos) {
+                mIntervalNanos = mFullSpeedIntervalNanos;
+            }
+            schedule(mLastInputNanos + mBudgetNanos);
+        }
+    }
+
+    /**
+     * @return Factor from 1 at or below the full-speed interval to 0 at the budget, by the
+     *         smoothed interval between inputs.  Call on the feeding thread.
+     */
+    public float getVelocityScale() {
+        final float full = mFullSpeedIntervalNanos;
+        final float range = mBudgetNanos - full;
+        if (range <= 0) {
+            return 1.0f;
+        }
+        return Math.max(0.0f, Math.min(1.0f, (mBudgetNanos - mIntervalNanos) / range));
+    }
+
+    private void schedule(long deadlineNanos) {
+        final long waitNanos = deadlineNanos - SystemClock.elapsedRealtimeNanos();
+        mHandler.postDelayed(mCheck, Math.max(0, (waitNanos + 999999) / 1000000));
+    }
+
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (!mArmed.get()) {
+                return;
+            }
+            final long now = SystemClock.elapsedRealtimeNanos();
+            final long deadline = mLastInputNanos + mBudgetNanos;
+            if (now < deadline) {
+                // Input arrived since the timer was set.
+                schedule(deadline);
+                return;
+            }
+            if (mArmed.compareAndSet(true, false)) {
+                mTarget.stop();
+                final long reaction = SystemClock.elapsedRealtimeNanos() - deadline;
+                mTotalReactionNanos += reaction;
+                mMaxReactionNanos = Math.max(mMaxReactionNanos, reaction);
+                mDeadlineTrips++;
+                Log.w(TAG, "Input " + (now - mLastInputNanos) / 1000000L
+                        + " ms old, stopped " + reaction / 1000000f + " ms after the deadline");
+            }
+        }
+    };
+
+    /**
+     * Stops the robots now, for example because the glove disconnected.  Does nothing if no
+     * input has arrived since the last trip.  May be called from any thread.
+     */
+    public void trip() {
+        if (mArmed.compareAndSet(true, false)) {
+            mHandler.removeCallbacks(mCheck);
+            mTarget.stop();
+            mExplicitTrips++;
+        }
+    }
+
+    /**
+     * Ends the watchdog thread.  The robots are no longer guarded afterwards.
+     */
+    public void shutdown() {
+        mArmed.set(false);
+        mHandler.removeCallbacks(mCheck);
+        mThread.quitSafely();
+    }
+
+    public long getDeadlineTripCount() {
+        return mDeadlineTrips;
+    }
+
+    public long getExplicitTripCount() {
+        return mExplicitTrips;
+    }
+
+    /**
+     * @return Average time from a missed deadline to the stop being issued.
+     */
+    public float getAverageReactionMillis() {
+        final long trips = mDeadlineTrips;
+        return trips == 0 ? 0 : mTotalReactionNanos / 1e6f / trips;
+    }
+
+    public float getMaxReactionMillis() {
+        return mMaxReactionNanos / 1e6f;
+    }
+
+    @Override
+    public String toString() {
+        return "trips " + mDeadlineTrips + " on deadline, " + mExplicitTrips
+                + " explicit, reaction " + getAverageReactionMillis() + " ms (max "
+                + getMaxReactionMillis() + " ms), budget " + mBudgetNanos / 1000000L + " ms";
+    }
+}
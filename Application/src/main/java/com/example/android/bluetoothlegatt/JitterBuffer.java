@@ -0,0 +1,354 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Turns bursty frame arrivals into an evenly spaced stream.
+ *
+ * <p>BLE delivers several notifications per connection event, so frames arrive in clumps.  The
+ * buffer estimates the sender's frame period and a steady timeline the frames were sent on,
+ * re-timestamps every frame against it, and releases frame k at its steady time plus a playout
+ * delay.  The delay is the configured target plus a multiple of the observed jitter, so it
+ * grows when arrivals get irregular and shrinks again when they calm down.
+ *
+ * <p>Frames are ordered by sequence number when the stream has one, otherwise by arrival.  A
+ * frame missing at its playout time is interpolated from its neighbours if a later frame is
+ * already buffered; a frame arriving after its slot was played is late and dropped.
+ *
+ * <p>{@link #offer} must be called on the thread of the handler given to the constructor, and
+ * the listener is called on that thread too.
+ */
+public final class JitterBuffer {
+
+    /**
+     * Receives the evenly spaced frames.
+     */
+    public interface Listener {
+        /**
+         * @param timeNanos The steady timestamp of the frame, on the elapsedRealtimeNanos base.
+         * @param values The frame values; only valid during the call.
+         * @param count Number of valid entries in values.
+         * @param interpolated True if the frame was missing and has been interpolated.
+         */
+        void onFrame(long timeNanos, int[] values, int count, boolean interpolated);
+    }
+
+    private static final int CAPACITY = 64;
+    private static final int MASK = CAPACITY - 1;
+    // The period is the slope over this many recent arrivals, which spans many clumps.
+    private static final int PERIOD_WINDOW = 32;
+    // The steady timeline follows the earliest arrivals, and creeps up slowly so a clock drift
+    // or a longer route does not leave it behind forever.
+    private static final double TIMELINE_CREEP_WEIGHT = 1.0 / 64;
+    // RFC 3550 style jitter smoothing.
+    private static final float JITTER_WEIGHT = 1.0f / 16;
+    private static final float JITTER_MULTIPLIER = 3.0f;
+    // A silence this many periods long, beyond the maximum delay, restarts the timeline.
+    private static final int RESYNC_PERIODS = 8;
+
+    private static final long DEFAULT_TARGET_DELAY_NANOS = 20000000L;
+    private static final long DEFAULT_MAX_DELAY_NANOS = 150000000L;
+
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final int mChannels;
+
+    // Slot contents, indexed by key & MASK.  A slot is occupied if its key matches.
+    private final long[] mKeys = new long[CAPACITY];
+    private final int[][] mValues;
+    private final int[] mCounts = new int[CAPACITY];
+    private final int[] mOutput;
+    private final int[] mLastValues;
+    private int mLastCount;
+    private boolean mHasLast;
+
+    private long mTargetDelayNanos = DEFAULT_TARGET_DELAY_NANOS;
+    private long mMaxDelayNanos = DEFAULT_MAX_DELAY_NANOS;
+
+    private boolean mStarted;
+    private long mNextKey;
+    private long mArrivals;
+    private long mLastArrivalKey;
+    private long mLastArrivalNanos;
+    // Recent arrivals in key order, for the period estimate.
+    private final long[] mWindowKeys = new long[PERIOD_WINDOW];
+    private final long[] mWindowArrivals = new long[PERIOD_WINDOW];
+    private int mWindowSize;
+    private int mWindowHead;
+    private double mPeriodNanos;
+    // The steady timeline: frame mSteadyKey was sent at mSteadyNanos, one period per key.
+    private long mSteadyKey;
+    private double mSteadyNanos;
+    private double mJitterNanos;
+    private boolean mReleasePosted;
+
+    private volatile long mReleased;
+    private volatile long mLate;
+    private volatile long mDropped;
+    private volatile long mInterpolated;
+    private volatile long mUnderruns;
+
+    public JitterBuffer(int channels, Handler handler, Listener listener) {
+        mChannels = channels;
+        mHandler = handler;
+        mListener = listener;
+        mValues = new int[CAPACITY][channels];
+        mOutput = new int[channels];
+        mLastValues = new int[channels];
+        clear();
+    }
+
+    /**
+     * @param targetNanos Playout delay on top of the one the jitter calls for.
+     * @param maxNanos Upper bound of the playout delay.
+     */
+    public void setDelay(long targetNanos, long maxNanos) {
+        mTargetDelayNanos = targetNanos;
+        mMaxDelayNanos = Math.max(targetNanos, maxNanos);
+    }
+
+    /**
+     * Drops every buffered frame and starts estimating the timeline from scratch.
+     */
+    public void clear() {
+        mHandler.removeCallbacks(mRelease);
+        mReleasePosted = false;
+        for (int i = 0; i < CAPACITY; i++) {
+            mKeys[i] = -1;
+        }
+        mStarted = false;
+        mHasLast = false;
+        mArrivals = 0;
+        mPeriodNanos = 0;
+        mJitterNanos = 0;
+    }
+
+    /**
+     * Adds a frame as it arrives.
+     *
+     * @param arrivalNanos Arrival time on the elapsedRealtimeNanos base.
+     * @param sequence Sequence number that increases by one per frame and does not wrap, or
+     *                 -1 to order frames by arrival.
+     */
+    public void offer(long arrivalNanos, long sequence, int[] values, int count) {
+        final long key = sequence < 0 ? mArrivals : sequence;
+        mArrivals++;
+
+        if (!mStarted) {
+            mStarted = true;
+            anchor(key, arrivalNanos);
+        } else if (mPeriodNanos > 0 && findBuffered() < 0 && arrivalNanos - mLastArrivalNanos
+                > RESYNC_PERIODS * mPeriodNanos + mMaxDelayNanos) {
+            // The sender paused.  Start a new timeline rather than stretching the period.
+            anchor(key, arrivalNanos);
+        } else {
+            updateTimeline(key, arrivalNanos);
+        }
+
+        if (key < mNextKey) {
+            // Its slot has been played already.
+            mLate++;
+            mDropped++;
+            return;
+        }
+        if (arrivalNanos > playoutNanos(key)) {
+            mLate++;
+        }
+        while (key >= mNextKey + CAPACITY) {
+            // No room: give up on the oldest slot so latency stays bounded.
+            if (mKeys[(int) (mNextKey & MASK)] == mNextKey) {
+                mDropped++;
+            }
+            mNextKey++;
+        }
+        final int slot = (int) (key & MASK);
+        if (mKeys[slot] == key) {
+            mDropped++;
+            return;
+        }
+        mKeys[slot] = key;
+        final int n = Math.min(count, mChannels);
+        System.arraycopy(values, 0, mValues[slot], 0, n);
+        mCounts[slot] = n;
+        scheduleRelease();
+    }
+
+    private void anchor(long key, long arrivalNanos) {
+        mNextKey = key;
+        mSteadyKey = key;
+        mSteadyNanos = arrivalNanos;
+        mLastArrivalKey = key;
+        mLastArrivalNanos = arrivalNanos;
+        mWindowSize = 0;
+        addToWindow(key, arrivalNanos);
+    }
+
+    private void addToWindow(long key, long arrivalNanos) {
+        mWindowKeys[mWindowHead] = key;
+        mWindowArrivals[mWindowHead] = arrivalNanos;
+        mWindowHead = (mWindowHead + 1) % PERIOD_WINDOW;
+        mWindowSize = Math.min(mWindowSize + 1, PERIOD_WINDOW);
+        final int oldest = (mWindowHead - mWindowSize + PERIOD_WINDOW) % PERIOD_WINDOW;
+        final long keys = key - mWindowKeys[oldest];
+        if (keys > 0) {
+            mPeriodNanos = (double) (arrivalNanos - mWindowArrivals[oldest]) / keys;
+        }
+    }
+
+    private void updateTimeline(long key, long arrivalNanos) {
+        if (key > mLastArrivalKey) {
+            addToWindow(key, arrivalNanos);
+            mLastArrivalKey = key;
+        }
+        mLastArrivalNanos = arrivalNanos;
+
+        // How much later than its steady time the frame arrived.  Nothing arrives before it is
+        // sent, so an early frame moves the timeline down right away.
+        final double offset = arrivalNanos - (mSteadyNanos + (key - mSteadyKey) * mPeriodNanos);
+        if (offset < 0) {
+            mSteadyNanos += offset;
+        } else {
+            mSteadyNanos += TIMELINE_CREEP_WEIGHT * offset;
+        }
+        mJitterNanos += JITTER_WEIGHT * (Math.max(0, offset) - mJitterNanos);
+        if (key > mSteadyKey) {
+            mSteadyNanos += (key - mSteadyKey) * mPeriodNanos;
+            mSteadyKey = key;
+        }
+    }
+
+    private long steadyNanos(long key) {
+        return (long) (mSteadyNanos + (key - mSteadyKey) * mPeriodNanos);
+    }
+
+    private long playoutNanos(long key) {
+        return steadyNanos(key) + getDelayNanos();
+    }
+
+    /**
+     * @return The current playout delay.
+     */
+    public long getDelayNanos() {
+        return Math.min(mMaxDelayNanos,
+                mTargetDelayNanos + (long) (JITTER_MULTIPLIER * mJitterNanos));
+    }
+
+    private void scheduleRelease() {
+        if (mReleasePosted) {
+            return;
+        }
+        final long waitNanos = playoutNanos(mNextKey) - SystemClock.elapsedRealtimeNanos();
+        mReleasePosted = true;
+        mHandler.postDelayed(mRelease, Math.max(0, (waitNanos + 999999) / 1000000));
+    }
+
+    private final Runnable mRelease = new Runnable() {
+        @Override
+        public void run() {
+            mReleasePosted = false;
+            release(SystemClock.elapsedRealtimeNanos());
+        }
+    };
+
+    // Releases every frame due by nowNanos.  Runs from the timer, or directly in tests.
+    void release(long nowNanos) {
+        while (playoutNanos(mNextKey) <= nowNanos) {
+            final int slot = (int) (mNextKey & MASK);
+            if (mKeys[slot] == mNextKey) {
+                emit(mNextKey, mValues[slot], mCounts[slot], false);
+                mKeys[slot] = -1;
+            } else {
+                final long later = findBuffered();
+                if (later < 0) {
+                    // Nothing to play; wait for the next arrival.
+                    mUnderruns++;
+                    return;
+                }
+                interpolate(later);
+            }
+            mNextKey++;
+        }
+        if (findBuffered() >= 0) {
+            scheduleRelease();
+        }
+    }
+
+    // The first buffered key after the one due, or -1.
+    private long findBuffered() {
+        for (long key = mNextKey; key < mNextKey + CAPACITY; key++) {
+            if (mKeys[(int) (key & MASK)] == key) {
+                return key;
+            }
+        }
+        return -1;
+    }
+
+    private void interpolate(long laterKey) {
+        final int later = (int) (laterKey & MASK);
+        final int count = mCounts[later];
+        if (!mHasLast) {
+            System.arraycopy(mValues[later], 0, mOutput, 0, count);
+        } else {
+            // The last released frame was at mNextKey - 1.
+            final float fraction = 1.0f / (laterKey - mNextKey + 1);
+            for (int channel = 0; channel < count; channel++) {
+                final int to = mValues[later][channel];
+                final int from = channel < mLastCount ? mLastValues[channel] : to;
+                mOutput[channel] = Math.round(from + (to - from) * fraction);
+            }
+        }
+        mInterpolated++;
+        emit(mNextKey, mOutput, count, true);
+    }
+
+    private void emit(long key, int[] values, int count, boolean interpolated) {
+        System.arraycopy(values, 0, mLastValues, 0, count);
+        mLastCount = count;
+        mHasLast = true;
+        mReleased++;
+        mListener.onFrame(steadyNanos(key), values, count, interpolated);
+    }
+
+    public long getReleasedCount() {
+        return mReleased;
+    }
+
+    /**
+     * @return Frames that arrived after their playout time.
+     */
+    public long getLateCount() {
+        return mLate;
+    }
+
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    public long getInterpolatedCount() {
+        return mInterpolated;
+    }
+
+    public long getUnderrunCount() {
+        return mUnderruns;
+    }
+
+    /**
+     * @return The estimated sender frame period.
+     */
+    public float getPeriodMillis() {
+        return (float) (mPeriodNanos / 1e6);
+    }
+
+    public float getJitterMillis() {
+        return (float) (mJitterNanos / 1e6);
+    }
+
+    @Override
+    public String toString() {
+        return "released " + mReleased + ", late " + mLate + ", dropped " + mDropped
+                + ", interpolated " + mInterpolated + ", underruns " + mUnderruns
+                + ", period " + getPeriodMillis() + " ms, jitter " + getJitterMillis()
+                + " ms, delay " + getDelayNanos() / 1e6f + " ms";
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * An immutable keyframe sequence for the robot LED, played by {@link LedAnimator}.
+ *
+ * Colours are packed as {@code 0xRRGGBB}.  Each keyframe holds its colour for its duration;
+ * when the animation interpolates, the colour instead fades linearly towards the next keyframe.
+ */
+public final class LedAnimation {
+
+    public static final int BLACK = 0x000000;
+    public static final int RED = 0xff0000;
+    public static final int GREEN = 0x00ff00;
+    public static final int BLUE = 0x0000ff;
+    public static final int MAGENTA = 0xff00ff;
+    public static final int YELLOW = 0xffff00;
+
+    // State indicator patterns.
+    public static final LedAnimation STATE_SEARCHING = blink(BLUE, BLACK, 250, 250);
+    public static final LedAnimation STATE_READY = solid(GREEN);
+    public static final LedAnimation STATE_WAITING_FOR_GLOVE = pulse(YELLOW, 2000);
+    public static final LedAnimation STATE_ERROR = blink(RED, BLACK, 100, 400);
+
+    private final int[] mColors;
+    private final int[] mDurations;
+    private final boolean mInterpolate;
+    private final boolean mLoop;
+    private final long mTotalDuration;
+
+    /**
+     * @param colors Keyframe colours.
+     * @param durations Time in milliseconds spent on each keyframe, all greater than zero.
+     * @param interpolate Fade between consecutive keyframes instead of stepping.
+     * @param loop Restart after the last keyframe instead of holding it.
+     */
+    public LedAnimation(int[] colors, int[] durations, boolean interpolate, boolean loop) {
+        if (colors.length == 0 || colors.length != durations.length) {
+            throw new IllegalArgumentException("Need one duration per keyframe");
+        }
+        long total = 0;
+        for (int duration : durations) {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("Keyframe durations must be positive");
+            }
+            total += duration;
+        }
+        mColors = colors.clone();
+        mDurations = durations.clone();
+        mInterpolate = interpolate;
+        mLoop = loop;
+        mTotalDuration = total;
+    }
+
+    public static LedAnimation solid(int color) {
+        return new LedAnimation(new int[] {color}, new int[] {1}, false, false);
+    }
+
+    public static LedAnimation blink(int onColor, int offColor, int onMillis, int offMillis) {
+        return new LedAnimation(new int[] {onColor, offColor}, new int[] {onMillis, offMillis},
+                false, true);
+    }
+
+    /**
+     * Fades from the colour to black and back once per period.
+     */
+    public static LedAnimation pulse(int color, int periodMillis) {
+        final int half = Math.max(1, periodMillis / 2);
+        return new LedAnimation(new int[] {color, BLACK}, new int[] {half, half}, true, true);
+    }
+
+    /**
+     * Steps or fades through the colours, spending {@code stepMillis} on each.
+     */
+    public static LedAnimation cycle(int[] colors, int stepMillis, boolean fade) {
+        final int[] durations = new int[colors.length];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = stepMillis;
+        }
+        return new LedAnimation(colors, durations, fade, true);
+    }
+
+    public boolean isInterpolated() {
+        return mInterpolate;
+    }
+
+    /**
+     * @return The colour shown {@code elapsed} milliseconds after the animation started.
+     */
+    public int colorAt(long elapsed) {
+        long t = position(elapsed);
+        for (int i = 0; i < mColors.length; i++) {
+            if (t < mDurations[i]) {
+                if (!mInterpolate || (!mLoop && i == mColors.length - 1)) {
+                    return mColors[i];
+                }
+                final int next = mColors[(i + 1) % mColors.length];
+                return blend(mColors[i], next, (float) t / mDurations[i]);
+            }
+            t -= mDurations[i];
+        }
+        return mColors[mColors.length - 1];
+    }
+
+    /**
+     * @return Milliseconds until the next keyframe boundary after {@code elapsed}, or -1 if the
+     *         animation has finished and will not change again.
+     */
+    public long timeToNextKeyframe(long elapsed) {
+        if (!mLoop && elapsed >= mTotalDuration) {
+            return -1;
+        }
+        long t = position(elapsed);
+        for (int duration : mDurations) {
+            if (t < duration) {
+                return duration - t;
+            }
+            t -= duration;
+        }
+        return 1;
+    }
+
+    private long position(long elapsed) {
+        if (elapsed < 0) {
+            return 0;
+        }
+        if (mLoop) {
+            return elapsed % mTotalDuration;
+        }
+        return Math.min(elapsed, mTotalDuration - 1);
+    }
+
+    /**
+     * Linear blend between two packed colours.
+     */
+    public static int blend(int from, int to, float fraction) {
+        final int r = lerp((from >> 16) & 0xff, (to >> 16) & 0xff, fraction);
+        final int g = lerp((from >> 8) & 0xff, (to >> 8) & 0xff, fraction);
+        final int b = lerp(from & 0xff, to & 0xff, fraction);
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static int lerp(int from, int to, float fraction) {
+        return from + Math.round((to - from) * fraction);
+    }
+}
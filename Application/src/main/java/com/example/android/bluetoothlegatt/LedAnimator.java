@@ -0,0 +1,156 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Plays {@link LedAnimation}s on one robot from a single timer.
+ *
+ * The timer only runs while the shown colour can still change: stepped keyframes wake it up
+ * at the next keyframe boundary and only fades tick every {@link #FRAME_MILLIS}.  An LED
+ * command is sent through the robot's {@link RobotCommandScheduler} only when the colour
+ * actually changes.  All methods except {@link #showValue(float)} must be called on the
+ * thread of the handler passed to the constructor.
+ */
+public class LedAnimator {
+
+    // Tick period while fading between keyframes.
+    private static final long FRAME_MILLIS = 40;
+    // Minimum time between two colours sent for sensor values.
+    private static final long VALUE_INTERVAL_MILLIS = 100;
+    // Sensor values are quantised to this many colours so that noise does not resend.
+    private static final int VALUE_LEVELS = 32;
+
+    private final RobotCommandScheduler mScheduler;
+    private final Handler mHandler;
+
+    private LedAnimation mAnimation;
+    private long mStartedAt;
+    private int mLastColor = -1;
+    private boolean mStopped;
+
+    // Written by any thread in showValue, read on the handler thread.
+    private volatile int mValueLevel = -1;
+    private volatile boolean mValuePosted;
+    private long mLastValueAt;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    // Switches from animation to value mode on the handler thread.
+    private final Runnable mEnterValueMode = new Runnable() {
+        @Override
+        public void run() {
+            mAnimation = null;
+            mHandler.removeCallbacks(mTick);
+            mHandler.postAtTime(mShowValue, mLastValueAt + VALUE_INTERVAL_MILLIS);
+        }
+    };
+
+    private final Runnable mShowValue = new Runnable() {
+        @Override
+        public void run() {
+            mValuePosted = false;
+            if (mStopped || mValueLevel < 0) {
+                return;
+            }
+            mLastValueAt = SystemClock.uptimeMillis();
+            send(valueColor(mValueLevel));
+        }
+    };
+
+    public LedAnimator(RobotCommandScheduler scheduler, Handler handler) {
+        mScheduler = scheduler;
+        mHandler = handler;
+    }
+
+    /**
+     * Starts an animation from its first keyframe, replacing whatever was shown.
+     */
+    public void play(LedAnimation animation) {
+        mStopped = false;
+        cancelValue();
+        mAnimation = animation;
+        mStartedAt = SystemClock.uptimeMillis();
+        mHandler.removeCallbacks(mTick);
+        tick();
+    }
+
+    /**
+     * Shows a solid colour.
+     */
+    public void show(int color) {
+        play(LedAnimation.solid(color));
+    }
+
+    /**
+     * Shows a sensor value as a colour from blue (0) to red (1), replacing the animation.  May
+     * be called for every sample from any thread; the LED is updated at most every
+     * {@link #VALUE_INTERVAL_MILLIS} and only when the quantised colour changes.
+     */
+    public void showValue(float value) {
+        final int level = Math.max(0, Math.min(VALUE_LEVELS - 1,
+                (int) (value * (VALUE_LEVELS - 1) + 0.5f)));
+        mValueLevel = level;
+        if (!mValuePosted) {
+            mValuePosted = true;
+            mHandler.post(mEnterValueMode);
+        }
+    }
+
+    /**
+     * Stops the timer.  Nothing is sent afterwards until the next {@link #play}.
+     */
+    public void stop() {
+        mStopped = true;
+        mAnimation = null;
+        cancelValue();
+        mHandler.removeCallbacks(mTick);
+    }
+
+    private void cancelValue() {
+        mValueLevel = -1;
+        mHandler.removeCallbacks(mEnterValueMode);
+        mHandler.removeCallbacks(mShowValue);
+        mValuePosted = false;
+    }
+
+    private void tick() {
+        final LedAnimation animation = mAnimation;
+        if (mStopped || animation == null) {
+            return;
+        }
+        if (!mScheduler.getRobot().isConnected()) {
+            // The robot went away underneath us; do not keep the timer alive for it.
+            stop();
+            return;
+        }
+        final long elapsed = SystemClock.uptimeMillis() - mStartedAt;
+        send(animation.colorAt(elapsed));
+
+        final long next = animation.timeToNextKeyframe(elapsed);
+        if (next < 0) {
+            return;
+        }
+        mHandler.postDelayed(mTick, animation.isInterpolated() ? Math.min(next, FRAME_MILLIS)
+                : next);
+    }
+
+    private void send(int color) {
+        if (color == mLastColor) {
+            return;
+        }
+        mLastColor = color;
+        mScheduler.setLed(((color >> 16) & 0xff) / 255.0f, ((color >> 8) & 0xff) / 255.0f,
+                (color & 0xff) / 255.0f);
+    }
+
+    private static int valueColor(int level) {
+        return LedAnimation.blend(LedAnimation.BLUE, LedAnimation.RED,
+                (float) level / (VALUE_LEVELS - 1));
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import com.orbotix.macro.MacroObject;
+import com.orbotix.macro.cmd.Delay;
+import com.orbotix.macro.cmd.Roll;
+
+/**
+ * Sits between the glove mapping and a {@link RobotCommandScheduler} and decides how drive
+ * decisions reach the robot.
+ *
+ * In {@link #MODE_PER_SAMPLE} every sample becomes one drive command, as before.  In
+ * {@link #MODE_MACRO} samples are buffered for {@link #HORIZON_NANOS}; the heading and speed
+ * trend of that window is then extrapolated over the next horizon and compiled into one macro
+ * of roll/delay steps, which the robot runs locally while the next window fills.  Both modes
+ * keep their own {@link MotionStats} so the two can be compared on the same session.
+ */
+public class MacroTrajectoryStreamer {
+    private final static String TAG = MacroTrajectoryStreamer.class.getSimpleName();
+
+    public static final int MODE_PER_SAMPLE = 0;
+    public static final int MODE_MACRO = 1;
+
+    // Length of the buffered window, and of the trajectory predicted from it.
+    private static final long HORIZON_NANOS = 300000000L;
+    private static final int STEP_MILLIS = 50;
+    private static final int MAX_SAMPLES = 64;
+    // Consecutive steps closer than this are merged into one longer roll.
+    private static final float HEADING_TOLERANCE = 3.0f;
+    private static final float SPEED_TOLERANCE = 0.03f;
+
+    private final RobotCommandScheduler mScheduler;
+    private int mMode = MODE_PER_SAMPLE;
+
+    private final long[] mTimes = new long[MAX_SAMPLES];
+    private final float[] mHeadings = new float[MAX_SAMPLES];
+    private final float[] mSpeeds = new float[MAX_SAMPLES];
+    private int mCount;
+
+    private final MotionStats mPerSampleStats = new MotionStats();
+    private final MotionStats mMacroStats = new MotionStats();
+
+    public MacroTrajectoryStreamer(RobotCommandScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    public void setMode(int mode) {
+        if (mode != mMode) {
+            Log.d(TAG, toString());
+            mMode = mode;
+            mCount = 0;
+        }
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Takes the drive decision for one sample.
+     *
+     * @param heading Heading in degrees.
+     * @param velocity Speed between 0 and 1.
+     */
+    public void drive(float heading, float velocity) {
+        final long now = System.nanoTime();
+        if (mMode == MODE_PER_SAMPLE) {
+            mScheduler.drive(heading, velocity);
+            mPerSampleStats.recordCommand(now);
+            mPerSampleStats.recordHeading(now, heading);
+            return;
+        }
+
+        // Keep the buffered headings continuous across 0/360.
+        if (mCount > 0) {
+            heading = mHeadings[mCount - 1] + MotionStats.wrapDelta(heading - mHeadings[mCount - 1]);
+        }
+        mTimes[mCount] = now;
+        mHeadings[mCount] = heading;
+        mSpeeds[mCount] = velocity;
+        mCount++;
+        if (mCount == MAX_SAMPLES || now - mTimes[0] >= HORIZON_NANOS) {
+            streamWindow(now);
+        }
+    }
+
+    private void streamWindow(long now) {
+        // Least-squares line through the window for heading and speed, in units per ms.
+        final double t0 = mTimes[mCount - 1];
+        double sumT = 0, sumTT = 0, sumH = 0, sumTH = 0, sumS = 0, sumTS = 0;
+        for (int i = 0; i < mCount; i++) {
+            final double t = (mTimes[i] - t0) / 1e6;
+            sumT += t;
+            sumTT += t * t;
+            sumH += mHeadings[i];
+            sumTH += t * mHeadings[i];
+            sumS += mSpeeds[i];
+            sumTS += t * mSpeeds[i];
+        }
+        final double denominator = mCount * sumTT - sumT * sumT;
+        double headingRate = 0, speedRate = 0;
+        if (mCount > 1 && denominator > 1e-9) {
+            headingRate = (mCount * sumTH - sumT * sumH) / denominator;
+            speedRate = (mCount * sumTS - sumT * sumS) / denominator;
+        }
+        // Value of each fitted line at the newest sample.
+        final double heading0 = (sumH - headingRate * sumT) / mCount;
+        final double speed0 = (sumS - speedRate * sumT) / mCount;
+
+        final MacroObject macro = new MacroObject();
+        final int steps = (int) (HORIZON_NANOS / 1000000L / STEP_MILLIS);
+        float rollHeading = 0, rollSpeed = 0;
+        int rollMillis = 0;
+        for (int k = 0; k < steps; k++) {
+            final double t = (double) k * STEP_MILLIS;
+            final float heading = (float) (heading0 + headingRate * t);
+            final float speed = (float) Math.max(0.0, Math.min(1.0, speed0 + speedRate * t));
+            mMacroStats.recordHeading(now + k * STEP_MILLIS * 1000000L, heading);
+            if (k > 0 && Math.abs(heading - rollHeading) < HEADING_TOLERANCE
+                    && Math.abs(speed - rollSpeed) < SPEED_TOLERANCE) {
+                rollMillis += STEP_MILLIS;
+                continue;
+            }
+            if (k > 0) {
+                addRoll(macro, rollHeading, rollSpeed, rollMillis);
+            }
+            rollHeading = heading;
+            rollSpeed = speed;
+            rollMillis = STEP_MILLIS;
+        }
+        addRoll(macro, rollHeading, rollSpeed, rollMillis);
+        mScheduler.playMacro(macro);
+        mMacroStats.recordCommand(now);
+
+        // The newest sample anchors the next window.
+        mTimes[0] = mTimes[mCount - 1];
+        mHeadings[0] = mHeadings[mCount - 1];
+        mSpeeds[0] = mSpeeds[mCount - 1];
+        mCount = 1;
+    }
+
+    private static void addRoll(MacroObject macro, float heading, float speed, int millis) {
+        int wrapped = Math.round(heading) % 360;
+        if (wrapped < 0) {
+            wrapped += 360;
+        }
+        macro.addCommand(new Roll(speed, wrapped, 0));
+        macro.addCommand(new Delay(millis));
+    }
+
+    /**
+     * Plays a precompiled gesture macro.
+     */
+    public void jump() {
+        mScheduler.playMacro(GestureMacros.jump());
+    }
+
+    @Override
+    public String toString() {
+        return "MacroTrajectoryStreamer[per-sample: " + mPerSampleStats + ", macro: "
+                + mMacroStats + "]";
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Measures how many commands a drive mode sends to the robot and how smooth the heading it
+ * asks for is.  Smoothness is reported as the RMS angular acceleration of the commanded
+ * heading; lower is smoother.
+ */
+final class MotionStats {
+
+    // Floor for the time between two heading samples, so bursts do not divide by ~0.
+    private static final float MIN_STEP_SECONDS = 0.005f;
+
+    private long mFirstCommandNanos;
+    private long mLastCommandNanos;
+    private long mCommands;
+
+    private boolean mHasHeading;
+    private boolean mHasRate;
+    private long mPrevHeadingNanos;
+    private float mPrevHeading;
+    private float mPrevRate;
+    private double mSumSquaredAcceleration;
+    private long mAccelerationSamples;
+
+    synchronized void recordCommand(long nowNanos) {
+        if (mCommands == 0) {
+            mFirstCommandNanos = nowNanos;
+        }
+        mLastCommandNanos = nowNanos;
+        mCommands++;
+    }
+
+    /**
+     * Records the heading the robot is asked to follow at a point in time.  Headings are
+     * unwrapped against the previous one, so 350 followed by 10 is a 20 degree turn.
+     */
+    synchronized void recordHeading(long timeNanos, float heading) {
+        if (!mHasHeading) {
+            mHasHeading = true;
+            mPrevHeadingNanos = timeNanos;
+            mPrevHeading = heading;
+            return;
+        }
+        final float dt = Math.max(MIN_STEP_SECONDS, (timeNanos - mPrevHeadingNanos) / 1e9f);
+        final float rate = wrapDelta(heading - mPrevHeading) / dt;
+        if (mHasRate) {
+            final float acceleration = (rate - mPrevRate) / dt;
+            mSumSquaredAcceleration += acceleration * acceleration;
+            mAccelerationSamples++;
+        }
+        mHasRate = true;
+        mPrevRate = rate;
+        mPrevHeading = heading;
+        mPrevHeadingNanos = timeNanos;
+    }
+
+    synchronized float getCommandsPerSecond() {
+        if (mCommands < 2) {
+            return 0.0f;
+        }
+        return (mCommands - 1) * 1e9f / (mLastCommandNanos - mFirstCommandNanos);
+    }
+
+    /**
+     * @return RMS angular acceleration of the commanded heading, in degrees/s^2.
+     */
+    synchronized float getHeadingRoughness() {
+        return mAccelerationSamples == 0 ? 0.0f
+                : (float) Math.sqrt(mSumSquaredAcceleration / mAccelerationSamples);
+    }
+
+    /**
+     * @return The shortest signed angle for a heading difference, in (-180, 180].
+     */
+    static float wrapDelta(float delta) {
+        delta %= 360.0f;
+        if (delta > 180.0f) {
+            delta -= 360.0f;
+        } else if (delta <= -180.0f) {
+            delta += 360.0f;
+        }
+        return delta;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "commands/s=" + getCommandsPerSecond() + " roughness=" + getHeadingRoughness()
+                + "deg/s^2";
+    }
+}
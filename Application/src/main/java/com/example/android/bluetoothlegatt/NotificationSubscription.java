@@ -0,0 +1,176 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+
+/**
+ * An active notification subscription on one characteristic.  {@code BluetoothLeService} keeps
+ * one of these per subscribed characteristic and routes every notification straight to it.
+ * Besides forwarding the payload to its handler, a subscription keeps sample rate statistics,
+ * quantiles of the recent notification intervals and the latest value of its characteristic.
+ * Subscriptions outlive the client that created them: the service detaches their handlers when
+ * the client unbinds, and a client that binds again attaches its own with
+ * {@link #setHandler}.
+ */
+public class NotificationSubscription {
+
+    /**
+     * Receives the notifications of a single subscription.
+     */
+    public interface NotificationHandler {
+        /**
+         * @param subscription The subscription the notification arrived on.
+         * @param data A private copy of the notified value.
+         */
+        void onNotification(NotificationSubscription subscription, byte[] data);
+    }
+
+    // Weight of the newest interval in the smoothed interval estimate.
+    private static final float INTERVAL_SMOOTHING = 0.125f;
+    // Interval quantiles cover the last minute, in milliseconds to 1%.
+    private static final long INTERVAL_WINDOW_NANOS = 60L * 1000000000L;
+    private static final int INTERVAL_WINDOW_SLOTS = 6;
+
+    // A handler and the thread it runs on, replaced together so a notification never sees
+    // one without the other.
+    private static final class Target {
+        final NotificationHandler mHandler;
+        final Handler mCallbackHandler;
+
+        Target(NotificationHandler handler, Handler callbackHandler) {
+            mHandler = handler;
+            mCallbackHandler = callbackHandler;
+        }
+    }
+
+    private final BluetoothGattCharacteristic mCharacteristic;
+    // Null while no handler is attached.
+    private volatile Target mTarget;
+    private volatile byte[] mLatestValue;
+
+    private volatile long mCount;
+    private volatile long mLastNotificationNanos;
+    private volatile float mSmoothedIntervalNanos;
+    private final QuantileWindow mIntervals = new QuantileWindow(
+            new QuantileSketch(0.01, 0.1, 10000.0), INTERVAL_WINDOW_NANOS, INTERVAL_WINDOW_SLOTS);
+
+    NotificationSubscription(BluetoothGattCharacteristic characteristic,
+                             NotificationHandler handler, Handler callbackHandler) {
+        mCharacteristic = characteristic;
+        mTarget = handler == null ? null : new Target(handler, callbackHandler);
+    }
+
+    /**
+     * Called on the Bluetooth callback thread for every notification of this subscription.
+     */
+    void onNotification(byte[] value, long nowNanos) {
+        if (mCount > 0) {
+            final float interval = nowNanos - mLastNotificationNanos;
+            mSmoothedIntervalNanos = mCount == 1 ? interval
+                    : mSmoothedIntervalNanos + (interval - mSmoothedIntervalNanos) * INTERVAL_SMOOTHING;
+            mIntervals.add(nowNanos, interval / 1e6);
+        }
+        mLastNotificationNanos = nowNanos;
+        mCount++;
+
+        if (value == null) {
+            return;
+        }
+        final byte[] data = value.clone();
+        mLatestValue = data;
+        deliver(mTarget, data);
+    }
+
+    private void deliver(Target target, final byte[] data) {
+        if (target == null) {
+            return;
+        }
+        final NotificationHandler handler = target.mHandler;
+        if (target.mCallbackHandler == null) {
+            handler.onNotification(this, data);
+        } else {
+            target.mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handler.onNotification(NotificationSubscription.this, data);
+                }
+            });
+        }
+    }
+
+    /**
+     * Replaces the handler of this subscription.  The new handler immediately receives the
+     * latest value, if any, so it does not have to wait for the next notification.
+     *
+     * @param handler The new handler, or null to only keep statistics.
+     * @param callbackHandler Handler the notifications are posted to, or null to be called
+     *                        directly on the Bluetooth callback thread.
+     */
+    public void setHandler(NotificationHandler handler, Handler callbackHandler) {
+        final Target target = handler == null ? null : new Target(handler, callbackHandler);
+        mTarget = target;
+        final byte[] latest = mLatestValue;
+        if (latest != null) {
+            deliver(target, latest);
+        }
+    }
+
+    /**
+     * @return True if a handler is attached.
+     */
+    public boolean hasHandler() {
+        return mTarget != null;
+    }
+
+    /**
+     * @return The latest notified value, or null if none arrived yet.  Must not be modified.
+     */
+    public byte[] getLatestValue() {
+        return mLatestValue;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    /**
+     * @return Number of notifications received on this subscription.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The smoothed notification rate in Hz, or 0 until two notifications arrived.
+     */
+    public float getSampleRate() {
+        final float interval = mSmoothedIntervalNanos;
+        return interval > 0 ? 1e9f / interval : 0.0f;
+    }
+
+    /**
+     * @return Time of the latest notification on the {@code SystemClock.elapsedRealtimeNanos()}
+     *         time base, or 0 if none arrived yet.
+     */
+    public long getLastNotificationNanos() {
+        return mLastNotificationNanos;
+    }
+
+    /**
+     * @return An empty sketch for {@link #getIntervalQuantiles}.
+     */
+    public QuantileSketch newIntervalSnapshot() {
+        return mIntervals.newSnapshot();
+    }
+
+    /**
+     * Takes the notification intervals of the last minute, in milliseconds, without holding
+     * up notifications.
+     *
+     * @param nowNanos Current time on the {@code SystemClock.elapsedRealtimeNanos()} base.
+     * @param out A sketch from {@link #newIntervalSnapshot}.
+     */
+    public void getIntervalQuantiles(long nowNanos, QuantileSketch out) {
+        mIntervals.snapshot(nowNanos, out);
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Turns a raw characteristic payload into the human-readable text shown on screen.  This is
+ * only ever invoked on behalf of a consumer that asked for
+ * {@link BluetoothLeService#REPRESENTATION_TEXT}, so the control path never pays for it.
+ */
+final class PayloadFormatter {
+
+    private PayloadFormatter() {
+    }
+
+    /**
+     * Formats a payload captured from a characteristic.
+     *
+     * @param uuid The characteristic the payload came from.
+     * @param data A private copy of the payload; it is not modified.
+     *
+     * @return The text representation, or null if there is nothing to show.
+     */
+    static String format(UUID uuid, byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        if (BluetoothLeService.UUID_DEBUG.equals(uuid)) {
+            // The Pallette debugging channel is laid out by the glove schema.  Payloads that do
+            // not match it are shown as hex below.
+            final String text = BluetoothLeService.GLOVE_SCHEMA.format(data);
+            if (text != null) {
+                return text;
+            }
+        } else if (BluetoothLeService.UUID_HEART_RATE_MEASUREMENT.equals(uuid)) {
+            // This is special handling for the Heart Rate Measurement profile.  Data parsing is
+            // carried out as per profile specifications:
+            // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+            // Bit 0 of the flags byte says whether the rate is a uint8 or a uint16.
+            final int heartRate;
+            if ((data[0] & 0x01) != 0) {
+                if (data.length < 3) return null;
+                heartRate = (data[1] & 0xff) | ((data[2] & 0xff) << 8);
+            } else {
+                if (data.length < 2) return null;
+                heartRate = data[1] & 0xff;
+            }
+            return String.valueOf(heartRate);
+        }
+        // For all other profiles, writes the data formatted in HEX.
+        final StringBuilder stringBuilder = new StringBuilder(data.length * 3);
+        for (byte byteChar : data)
+            stringBuilder.append(String.format("%02X ", byteChar));
+        return new String(data) + "\n" + stringBuilder.toString();
+    }
+}
@@ -0,0 +1,493 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The glove processing path as a chain of named stages, such as decode, filter, calibrate,
+ * map, shape and send.
+ *
+ * <p>Every stage receives a {@link Frame} and passes it on with {@link Output#emit}, zero or
+ * more times and not necessarily during the call, so a stage can drop, hold back or
+ * synthesize frames.  Consecutive stages are fused: emitting calls the next stage directly on
+ * the same thread.  A stage can instead be given a handler, in which case the frames handed to
+ * it are copied into a bounded queue of preallocated frames and processed on that handler's
+ * thread; when the queue is full, frames are dropped and counted.
+ *
+ * <p>Stages are registered once with {@link #addStage}.  Which of them run, in what order and
+ * on which threads is a {@link Topology} that can be replaced at any time with
+ * {@link #setTopology}, and stages can be bypassed with {@link #setEnabled}.  Every stage
+ * keeps {@link Stats}: frames in and out, processing time, the age of the frames it sees and
+ * the occupancy of its queue, and with an {@link AllocationCounter} the bytes it allocates.
+ * Statistics survive topology changes.
+ *
+ * <p>{@link #push} must be called from one thread at a time.
+ */
+public final class Pipeline {
+
+    /**
+     * What flows through the pipeline: one glove frame at its successive stages of
+     * processing.  Frames are reused; a stage must not keep a reference to one after passing
+     * it on.
+     */
+    public static final class Frame {
+        /** When the frame arrived, on the elapsedRealtimeNanos base. */
+        public long timeNanos;
+        /** The notification payload, until it is decoded. */
+        public byte[] payload;
+        /** Sequence number of the frame, or -1 if the device does not send one. */
+        public long sequence = -1;
+        /** Raw channel values. */
+        public final int[] values;
+        /** Number of valid channels. */
+        public int count;
+        /** True if the frame was synthesized to fill a gap. */
+        public boolean interpolated;
+        /** Channel values normalized to the calibrated active band. */
+        public final float[] normalized;
+        /** Whether the hand is steering the robot. */
+        public boolean active;
+        /** Commanded heading in degrees. */
+        public float heading;
+        /** Commanded velocity, 0 to 1. */
+        public float velocity;
+
+        public Frame(int channels) {
+            values = new int[channels];
+            normalized = new float[channels];
+        }
+
+        public void copyFrom(Frame other) {
+            timeNanos = other.timeNanos;
+            payload = other.payload;
+            sequence = other.sequence;
+            System.arraycopy(other.values, 0, values, 0, values.length);
+            count = other.count;
+            interpolated = other.interpolated;
+            System.arraycopy(other.normalized, 0, normalized, 0, normalized.length);
+            active = other.active;
+            heading = other.heading;
+            velocity = other.velocity;
+        }
+    }
+
+    /**
+     * Passes frames to the next stage.
+     */
+    public interface Output {
+        void emit(Frame frame);
+    }
+
+    /**
+     * One step of the processing.
+     */
+    public interface Stage {
+        /**
+         * @param frame The frame to process; may be modified.
+         * @param output Where to pass frames on.  A stage that emits later, from a callback,
+         *               must emit to the output of its latest call, since the topology may
+         *               have changed.
+         */
+        void process(Frame frame, Output output);
+    }
+
+    /**
+     * Reports how many bytes the calling thread has allocated so far.
+     */
+    public interface AllocationCounter {
+        long getAllocatedBytes();
+    }
+
+    /**
+     * Order of the stages and the threads they run on.
+     */
+    public static final class Topology {
+        private final ArrayList<String> mNames = new ArrayList<String>();
+        private final ArrayList<Handler> mHandlers = new ArrayList<Handler>();
+
+        /**
+         * Appends a stage fused with the one before it.
+         */
+        public Topology then(String stage) {
+            return then(stage, null);
+        }
+
+        /**
+         * Appends a stage that runs on the thread of a handler, fed through a queue.
+         */
+        public Topology then(String stage, Handler handler) {
+            mNames.add(stage);
+            mHandlers.add(handler);
+            return this;
+        }
+    }
+
+    /**
+     * Counters of one stage.  Written by the thread the stage runs on, readable from any.
+     */
+    public static final class Stats {
+        private final String mName;
+        private volatile long mFramesIn;
+        private volatile long mFramesOut;
+        private volatile long mProcessNanos;
+        private volatile long mMaxProcessNanos;
+        private volatile long mAgeNanos;
+        private volatile long mAllocatedBytes = -1;
+        private volatile int mQueueCapacity;
+        private volatile int mMaxQueueDepth;
+        private volatile long mQueueDrops;
+        private volatile Queue mQueue;
+
+        Stats(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getFramesIn() {
+            return mFramesIn;
+        }
+
+        public long getFramesOut() {
+            return mFramesOut;
+        }
+
+        /**
+         * @return Average processing time per frame, not counting the fused stages after it.
+         */
+        public float getAverageProcessMicros() {
+            final long frames = mFramesIn;
+            return frames == 0 ? 0 : mProcessNanos / 1e3f / frames;
+        }
+
+        public float getMaxProcessMicros() {
+            return mMaxProcessNanos / 1e3f;
+        }
+
+        /**
+         * @return Average age of the frames when the stage received them.
+         */
+        public float getAverageAgeMillis() {
+            final long frames = mFramesIn;
+            return frames == 0 ? 0 : mAgeNanos / 1e6f / frames;
+        }
+
+        /**
+         * @return Frames waiting in the queue of the stage, 0 if it is fused.
+         */
+        public int getQueueDepth() {
+            final Queue queue = mQueue;
+            return queue == null ? 0 : queue.getDepth();
+        }
+
+        public long getQueueDrops() {
+            return mQueueDrops;
+        }
+
+        /**
+         * @return Average bytes allocated per frame, not counting the fused stages after it,
+         *         or -1 if allocations are not counted.
+         */
+        public float getAllocatedBytesPerFrame() {
+            final long bytes = mAllocatedBytes;
+            final long frames = mFramesIn;
+            return bytes < 0 ? -1 : frames == 0 ? 0 : (float) bytes / frames;
+        }
+
+        /**
+         * Restarts the counters, for example after a warm-up.
+         */
+        public void reset() {
+            mFramesIn = 0;
+            mFramesOut = 0;
+            mProcessNanos = 0;
+            mMaxProcessNanos = 0;
+            mAgeNanos = 0;
+            mMaxQueueDepth = 0;
+            mQueueDrops = 0;
+            if (mAllocatedBytes >= 0) {
+                mAllocatedBytes = 0;
+            }
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder stringBuilder = new StringBuilder(mName)
+                    .append(": in ").append(mFramesIn).append(", out ").append(mFramesOut)
+                    .append(", process ").append(getAverageProcessMicros()).append(" us (max ")
+                    .append(getMaxProcessMicros()).append(" us), age ")
+                    .append(getAverageAgeMillis()).append(" ms");
+            if (mAllocatedBytes >= 0) {
+                stringBuilder.append(", alloc ").append(getAllocatedBytesPerFrame())
+                        .append(" B/frame");
+            }
+            if (mQueueCapacity > 0) {
+                stringBuilder.append(", queue ").append(getQueueDepth()).append('/')
+                        .append(mQueueCapacity).append(" (max ").append(mMaxQueueDepth)
+                        .append(", dropped ").append(mQueueDrops).append(')');
+            }
+            return stringBuilder.toString();
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = 64;
+
+    // A stage in the current topology.
+    private static final class Node implements Output {
+        final Stage mStage;
+        final Stats mStats;
+        final AtomicBoolean mEnabled;
+        final AllocationCounter mCounter;
+        Output mNext;
+        // Time and allocations in fused stages downstream since the current frame came in.
+        long mDownstreamNanos;
+        long mDownstreamBytes;
+
+        Node(Stage stage, Stats stats, AtomicBoolean enabled, AllocationCounter counter) {
+            mStage = stage;
+            mStats = stats;
+            mEnabled = enabled;
+            mCounter = counter;
+            if (counter != null && stats.mAllocatedBytes < 0) {
+                stats.mAllocatedBytes = 0;
+            }
+        }
+
+        void accept(Frame frame) {
+            if (!mEnabled.get()) {
+                emit(frame);
+                return;
+            }
+            final Stats stats = mStats;
+            stats.mAgeNanos += SystemClock.elapsedRealtimeNanos() - frame.timeNanos;
+            stats.mFramesIn++;
+            mDownstreamNanos = 0;
+            mDownstreamBytes = 0;
+            final AllocationCounter counter = mCounter;
+            final long allocated = counter == null ? 0 : counter.getAllocatedBytes();
+            final long started = System.nanoTime();
+            mStage.process(frame, this);
+            final long elapsed = System.nanoTime() - started - mDownstreamNanos;
+            if (counter != null) {
+                stats.mAllocatedBytes += counter.getAllocatedBytes() - allocated
+                        - mDownstreamBytes;
+            }
+            stats.mProcessNanos += elapsed;
+            if (elapsed > stats.mMaxProcessNanos) {
+                stats.mMaxProcessNanos = elapsed;
+            }
+        }
+
+        @Override
+        public void emit(Frame frame) {
+            if (mEnabled.get()) {
+                mStats.mFramesOut++;
+            }
+            if (mNext != null) {
+                final AllocationCounter counter = mCounter;
+                final long allocated = counter == null ? 0 : counter.getAllocatedBytes();
+                final long started = System.nanoTime();
+                mNext.emit(frame);
+                mDownstreamNanos += System.nanoTime() - started;
+                if (counter != null) {
+                    mDownstreamBytes += counter.getAllocatedBytes() - allocated;
+                }
+            }
+        }
+    }
+
+    // Hands frames to a node on another thread through a ring of preallocated frames.  One
+    // producer thread, the handler's thread as the consumer.
+    private static final class Queue implements Output {
+        final Node mNode;
+        final Handler mHandler;
+        final Frame[] mFrames;
+        final AtomicBoolean mDrainPosted = new AtomicBoolean();
+        volatile long mHead;
+        volatile long mTail;
+
+        Queue(Node node, Handler handler, int channels) {
+            mNode = node;
+            mHandler = handler;
+            mFrames = new Frame[QUEUE_CAPACITY];
+            for (int i = 0; i < QUEUE_CAPACITY; i++) {
+                mFrames[i] = new Frame(channels);
+            }
+            node.mStats.mQueueCapacity = QUEUE_CAPACITY;
+            node.mStats.mQueue = this;
+        }
+
+        int getDepth() {
+            return (int) (mHead - mTail);
+        }
+
+        @Override
+        public void emit(Frame frame) {
+            final long head = mHead;
+            final int depth = (int) (head - mTail);
+            if (depth >= QUEUE_CAPACITY) {
+                mNode.mStats.mQueueDrops++;
+                return;
+            }
+            mFrames[(int) (head % QUEUE_CAPACITY)].copyFrom(frame);
+            mHead = head + 1;
+            if (depth + 1 > mNode.mStats.mMaxQueueDepth) {
+                mNode.mStats.mMaxQueueDepth = depth + 1;
+            }
+            if (mDrainPosted.compareAndSet(false, true)) {
+                mHandler.post(mDrain);
+            }
+        }
+
+        final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                mDrainPosted.set(false);
+                long tail = mTail;
+                while (tail < mHead) {
+                    // The slot is only released once the frame has been processed, as the
+                    // stage works on it in place.
+                    mNode.accept(mFrames[(int) (tail % QUEUE_CAPACITY)]);
+                    mTail = ++tail;
+                }
+            }
+        };
+    }
+
+    private final int mChannels;
+    private final HashMap<String, Stage> mStages = new HashMap<String, Stage>();
+    private final HashMap<String, Stats> mStats = new HashMap<String, Stats>();
+    private final HashMap<String, AtomicBoolean> mEnabled = new HashMap<String, AtomicBoolean>();
+    private final ArrayList<String> mOrder = new ArrayList<String>();
+    private volatile Output mHead;
+    private AllocationCounter mAllocationCounter;
+    private volatile List<Stats> mActiveStats = new ArrayList<Stats>();
+
+    /**
+     * @param channels Number of channels of the frames.
+     */
+    public Pipeline(int channels) {
+        mChannels = channels;
+    }
+
+    public Frame newFrame() {
+        return new Frame(mChannels);
+    }
+
+    /**
+     * Registers a stage under a name, for use in topologies.
+     */
+    public synchronized Pipeline addStage(String name, Stage stage) {
+        if (mStages.put(name, stage) == null) {
+            mStats.put(name, new Stats(name));
+            mEnabled.put(name, new AtomicBoolean(true));
+            mOrder.add(name);
+        }
+        return this;
+    }
+
+    /**
+     * Replaces the topology.  Frames already queued finish on the topology they entered.
+     */
+    public synchronized void setTopology(Topology topology) {
+        Output head = null;
+        Node previous = null;
+        final ArrayList<Stats> active = new ArrayList<Stats>();
+        for (int i = 0; i < topology.mNames.size(); i++) {
+            final String name = topology.mNames.get(i);
+            final Stage stage = mStages.get(name);
+            if (stage == null) {
+                throw new IllegalArgumentException("Unknown stage " + name);
+            }
+            final Node node = new Node(stage, mStats.get(name), mEnabled.get(name),
+                    mAllocationCounter);
+            final Handler handler = topology.mHandlers.get(i);
+            final Output input;
+            if (handler == null) {
+                node.mStats.mQueueCapacity = 0;
+                node.mStats.mQueue = null;
+                input = new Output() {
+                    @Override
+                    public void emit(Frame frame) {
+                        node.accept(frame);
+                    }
+                };
+            } else {
+                input = new Queue(node, handler, mChannels);
+            }
+            if (previous == null) {
+                head = input;
+            } else {
+                previous.mNext = input;
+            }
+            previous = node;
+            active.add(node.mStats);
+        }
+        mActiveStats = active;
+        mHead = head;
+    }
+
+    /**
+     * Counts the bytes every stage allocates, from the next {@link #setTopology} on.  The
+     * counter is called twice per stage and frame, so this is meant for measurements rather
+     * than for production.
+     */
+    public synchronized void setAllocationCounter(AllocationCounter counter) {
+        mAllocationCounter = counter;
+    }
+
+    /**
+     * @return A topology with every registered stage fused, in the order they were added.
+     */
+    public synchronized Topology getDefaultTopology() {
+        final Topology topology = new Topology();
+        for (String name : mOrder) {
+            topology.then(name);
+        }
+        return topology;
+    }
+
+    /**
+     * Bypasses a stage, or puts it back.  A bypassed stage passes frames on untouched.
+     */
+    public synchronized void setEnabled(String name, boolean enabled) {
+        mEnabled.get(name).set(enabled);
+    }
+
+    public synchronized boolean isEnabled(String name) {
+        return mEnabled.get(name).get();
+    }
+
+    /**
+     * Feeds a frame to the first stage.  The frame may be reused once this returns.
+     */
+    public void push(Frame frame) {
+        final Output head = mHead;
+        if (head != null) {
+            head.emit(frame);
+        }
+    }
+
+    /**
+     * @return The statistics of the stages in the current topology, in order.
+     */
+    public List<Stats> getStats() {
+        return mActiveStats;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder stringBuilder = new StringBuilder();
+        for (Stats stats : mActiveStats) {
+            stringBuilder.append(stringBuilder.length() == 0 ? "" : "; ").append(stats);
+        }
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+
+/**
+ * Replays a recorded session through the heading mapping to measure how far the robot lags
+ * behind the hand and how much it overshoots, with and without a {@link HeadingPredictor}.
+ *
+ * <p>The robot is modelled as following each command exactly, one latency after it was
+ * computed.  Perceived lag is the delay at which the true heading best matches what the robot
+ * does; overshoot is how far the robot runs ahead of the hand in the direction it is turning.
+ */
+final class PredictionEvaluator {
+
+    /**
+     * The part of the motion mapping under test: whether a frame steers the robot, and where.
+     */
+    interface HeadingMapping {
+        boolean isActive(int[] frame);
+
+        float getHeading(int[] frame);
+    }
+
+    /**
+     * What a replay measured.
+     */
+    static final class Result {
+        int samples;
+        float lagMillis;
+        float rmsErrorDegrees;
+        float peakOvershootDegrees;
+        float meanOvershootDegrees;
+
+        @Override
+        public String toString() {
+            return "samples=" + samples + " lag=" + lagMillis + "ms rmsError=" + rmsErrorDegrees
+                    + "deg overshoot peak=" + peakOvershootDegrees + "deg mean="
+                    + meanOvershootDegrees + "deg";
+        }
+    }
+
+    private static final int CHUNK = 1024;
+    private static final int LAG_STEPS = 20;
+    // Longest stretch of a session evaluated, so a review of hours stays within memory.
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private final long[] mTimes;
+    private final float[] mHeadings;
+    // Index of the first sample of the active stretch each sample belongs to.
+    private final int[] mSegments;
+    private final int mSize;
+
+    private PredictionEvaluator(long[] times, float[] headings, int[] segments, int size) {
+        mTimes = times;
+        mHeadings = headings;
+        mSegments = segments;
+        mSize = size;
+    }
+
+    /**
+     * Extracts the headings of a session once, for evaluating several configurations on it.
+     */
+    static PredictionEvaluator load(SummaryPyramid.RawSource session, long frames, int channels,
+                                    HeadingMapping mapping) throws IOException {
+        final int capacity = (int) Math.min(frames, MAX_SAMPLES);
+        final long[] times = new long[capacity];
+        final float[] headings = new float[capacity];
+        final int[] segments = new int[capacity];
+        final long[] chunkTimes = new long[CHUNK];
+        final int[][] chunkValues = new int[channels][CHUNK];
+        final int[] frame = new int[channels];
+
+        int size = 0;
+        int segment = -1;
+        long next = 0;
+        int read;
+        while (size < capacity && (read = session.read(next, CHUNK, chunkTimes, chunkValues)) > 0) {
+            for (int i = 0; i < read && size < capacity; i++) {
+                for (int channel = 0; channel < channels; channel++) {
+                    frame[channel] = chunkValues[channel][i];
+                }
+                if (!mapping.isActive(frame)) {
+                    segment = -1;
+                    continue;
+                }
+                if (segment < 0) {
+                    segment = size;
+                }
+                times[size] = chunkTimes[i];
+                headings[size] = mapping.getHeading(frame);
+                segments[size] = segment;
+                size++;
+            }
+            next += read;
+        }
+        return new PredictionEvaluator(times, headings, segments, size);
+    }
+
+    /**
+     * Replays the session.
+     *
+     * @param latencyNanos Time from a glove frame to the robot acting on the command.
+     * @param predictor Predictor to extrapolate by the latency, or null for the direct
+     *                  mapping.
+     */
+    Result evaluate(long latencyNanos, HeadingPredictor predictor) {
+        final float[] commands = new float[mSize];
+        for (int i = 0; i < mSize; i++) {
+            if (predictor == null) {
+                commands[i] = mHeadings[i];
+                continue;
+            }
+            if (mSegments[i] == i) {
+                predictor.reset();
+            }
+            predictor.update(mTimes[i], mHeadings[i]);
+            commands[i] = predictor.predict(latencyNanos);
+        }
+
+        // Command i is carried out at mTimes[i] + latency.  Compare it with the hand at that
+        // time minus each candidate lag; the best match is the perceived lag.
+        final Result result = new Result();
+        double bestSquares = Double.MAX_VALUE;
+        for (int step = 0; step <= LAG_STEPS; step++) {
+            final long lag = 2 * latencyNanos * step / LAG_STEPS;
+            double squares = 0;
+            int samples = 0;
+            for (int i = 0; i < mSize; i++) {
+                final float truth = headingAt(i, mTimes[i] + latencyNanos - lag);
+                if (Float.isNaN(truth)) {
+                    continue;
+                }
+                final float error = MotionStats.wrapDelta(commands[i] - truth);
+                squares += error * error;
+                samples++;
+            }
+            if (samples > 0 && squares / samples < bestSquares) {
+                bestSquares = squares / samples;
+                result.lagMillis = lag / 1e6f;
+            }
+        }
+
+        // Error and overshoot against the hand at the time the robot acts.
+        double squares = 0;
+        double overshoot = 0;
+        int samples = 0;
+        for (int i = 0; i < mSize; i++) {
+            final long at = mTimes[i] + latencyNanos;
+            final float truth = headingAt(i, at);
+            final float before = headingAt(i, at - latencyNanos / 4);
+            if (Float.isNaN(truth) || Float.isNaN(before)) {
+                continue;
+            }
+            final float error = MotionStats.wrapDelta(commands[i] - truth);
+            final float turning = Math.signum(MotionStats.wrapDelta(truth - before));
+            final float ahead = Math.max(0, error * turning);
+            squares += error * error;
+            overshoot += ahead;
+            result.peakOvershootDegrees = Math.max(result.peakOvershootDegrees, ahead);
+            samples++;
+        }
+        result.samples = samples;
+        if (samples > 0) {
+            result.rmsErrorDegrees = (float) Math.sqrt(squares / samples);
+            result.meanOvershootDegrees = (float) (overshoot / samples);
+        }
+        return result;
+    }
+
+    // The true heading at a time, interpolated within the active stretch of sample i, or NaN
+    // outside of it.
+    private float headingAt(int i, long timeNanos) {
+        final int first = mSegments[i];
+        if (timeNanos < mTimes[first]) {
+            return Float.NaN;
+        }
+        int j = i;
+        if (timeNanos >= mTimes[i]) {
+            while (j + 1 < mSize && mSegments[j + 1] == first && mTimes[j + 1] <= timeNanos) {
+                j++;
+            }
+            if (j + 1 >= mSize || mSegments[j + 1] != first) {
+                return mTimes[j] == timeNanos ? mHeadings[j] : Float.NaN;
+            }
+        } else {
+            while (mTimes[j] > timeNanos) {
+                j--;
+            }
+        }
+        final long span = mTimes[j + 1] - mTimes[j];
+        final float fraction = span == 0 ? 0 : (float) (timeNanos - mTimes[j]) / span;
+        return HeadingPredictor.wrap(mHeadings[j]
+                + fraction * MotionStats.wrapDelta(mHeadings[j + 1] - mHeadings[j]));
+    }
+}
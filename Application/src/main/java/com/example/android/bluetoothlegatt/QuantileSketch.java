@@ -0,0 +1,166 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Streaming quantile estimate with fixed memory and constant-time updates.
+ *
+ * <p>Values are counted in logarithmically spaced buckets, so every quantile is within a
+ * configured relative error of the true value, whatever the distribution.  The number of
+ * buckets only depends on the accuracy and the range of values, and two sketches with the
+ * same configuration merge exactly by adding their counts, which makes them suitable for
+ * combining time windows or devices.  Values at or below the minimum share the first bucket,
+ * values above the maximum the last.
+ *
+ * <p>One thread may {@link #add} while others {@link #copyTo} or {@link #merge} the sketch
+ * into their own: the count is published after the buckets are updated, so a reader sees at
+ * least every value counted before it started.  Read quantiles from such a copy.
+ */
+public final class QuantileSketch {
+
+    private final double mRelativeAccuracy;
+    private final double mMinValue;
+    private final double mMaxValue;
+    private final double mLogGamma;
+    private final double mGamma;
+    private final int mIndexOffset;
+    private final int[] mCounts;
+    private volatile long mCount;
+    private double mMin = Double.POSITIVE_INFINITY;
+    private double mMax = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param relativeAccuracy Largest relative error of a quantile, for example 0.01.
+     * @param minValue Smallest value told apart from lower ones; must be positive.
+     * @param maxValue Largest value told apart from higher ones.
+     */
+    public QuantileSketch(double relativeAccuracy, double minValue, double maxValue) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1 || minValue <= 0
+                || maxValue <= minValue) {
+            throw new IllegalArgumentException("Invalid sketch configuration");
+        }
+        mRelativeAccuracy = relativeAccuracy;
+        mMinValue = minValue;
+        mMaxValue = maxValue;
+        mGamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        mLogGamma = Math.log(mGamma);
+        mIndexOffset = (int) Math.ceil(Math.log(minValue) / mLogGamma);
+        mCounts = new int[(int) Math.ceil(Math.log(maxValue) / mLogGamma) - mIndexOffset + 1];
+    }
+
+    /**
+     * @return An empty sketch with the same configuration.
+     */
+    public QuantileSketch newEmpty() {
+        return new QuantileSketch(mRelativeAccuracy, mMinValue, mMaxValue);
+    }
+
+    /**
+     * @return Number of buckets, which is what the memory use is proportional to.
+     */
+    public int getBucketCount() {
+        return mCounts.length;
+    }
+
+    private int indexOf(double value) {
+        if (value <= mMinValue) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(Math.log(value) / mLogGamma) - mIndexOffset;
+        return Math.min(index, mCounts.length - 1);
+    }
+
+    // The value every member of a bucket is reported as, within the relative accuracy of all
+    // of them.
+    private double valueOf(int index) {
+        if (index == 0) {
+            return Math.min(mMinValue, mMax);
+        }
+        return 2 * Math.pow(mGamma, index + mIndexOffset) / (mGamma + 1);
+    }
+
+    public void add(double value) {
+        mCounts[indexOf(value)]++;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+        mCount++;
+    }
+
+    /**
+     * Adds the values of another sketch with the same configuration to this one.
+     */
+    public void merge(QuantileSketch other) {
+        if (other.mCounts.length != mCounts.length || other.mGamma != mGamma
+                || other.mMinValue != mMinValue) {
+            throw new IllegalArgumentException("Sketches are configured differently");
+        }
+        // Reading the count first makes the buckets counted before it visible.
+        final long count = other.mCount;
+        if (count == 0) {
+            return;
+        }
+        long added = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            final int n = other.mCounts[i];
+            mCounts[i] += n;
+            added += n;
+        }
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+        // Values added while the buckets were read are included too.
+        mCount += Math.max(count, added);
+    }
+
+    /**
+     * Replaces the contents of another sketch with the same configuration by this one.
+     */
+    public void copyTo(QuantileSketch target) {
+        target.clear();
+        target.merge(this);
+    }
+
+    public void clear() {
+        mCount = 0;
+        mMin = Double.POSITIVE_INFINITY;
+        mMax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param quantile Between 0 and 1.
+     *
+     * @return The estimated value at the quantile, or NaN if the sketch is empty.
+     */
+    public double getQuantile(double quantile) {
+        long total = 0;
+        for (int count : mCounts) {
+            total += count;
+        }
+        if (total == 0) {
+            return Double.NaN;
+        }
+        final long rank = (long) (Math.max(0, Math.min(1, quantile)) * (total - 1));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen > rank) {
+                return Math.max(mMin, Math.min(mMax, valueOf(i)));
+            }
+        }
+        return mMax;
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + mCount + " p5=" + (float) getQuantile(0.05) + " p50="
+                + (float) getQuantile(0.5) + " p95=" + (float) getQuantile(0.95);
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Quantiles over a sliding time window, kept as a ring of {@link QuantileSketch} slots.
+ *
+ * <p>Values go into the slot of their time; when time moves into a new slot the oldest one is
+ * cleared and reused, so memory stays fixed.  A snapshot merges the slots that are still
+ * inside the window.  Slots are only recycled under a sequence counter, so a snapshot taken
+ * while values are added retries instead of mixing a cleared slot into the result, and never
+ * blocks the writer.
+ *
+ * <p>{@link #add} must be called from one thread; {@link #snapshot} from any.
+ */
+public final class QuantileWindow {
+
+    private static final int SNAPSHOT_ATTEMPTS = 4;
+
+    private final QuantileSketch[] mSlots;
+    // Slot number, time / mSlotNanos, each slot currently holds.
+    private final long[] mSlotNumbers;
+    private final long mSlotNanos;
+    private long mCurrentSlot = Long.MIN_VALUE;
+    // Odd while a slot is being recycled.
+    private volatile int mSequence;
+
+    /**
+     * @param prototype Configuration of the slot sketches.
+     * @param windowNanos Length of the window.
+     * @param slots Number of slots the window is divided into; the window moves in steps of
+     *              windowNanos / slots.
+     */
+    public QuantileWindow(QuantileSketch prototype, long windowNanos, int slots) {
+        mSlots = new QuantileSketch[slots];
+        mSlotNumbers = new long[slots];
+        for (int i = 0; i < slots; i++) {
+            mSlots[i] = prototype.newEmpty();
+            mSlotNumbers[i] = Long.MIN_VALUE;
+        }
+        mSlotNanos = Math.max(1, windowNanos / slots);
+    }
+
+    /**
+     * @return An empty sketch that snapshots of this window can be taken into.
+     */
+    public QuantileSketch newSnapshot() {
+        return mSlots[0].newEmpty();
+    }
+
+    public void add(long timeNanos, double value) {
+        final long slot = timeNanos / mSlotNanos;
+        if (slot > mCurrentSlot) {
+            mCurrentSlot = slot;
+            final int index = (int) (slot % mSlots.length);
+            mSequence++;
+            mSlots[index].clear();
+            mSlotNumbers[index] = slot;
+            mSequence++;
+        }
+        // Values with an earlier time than the current slot are counted in the current one.
+        mSlots[(int) (mCurrentSlot % mSlots.length)].add(value);
+    }
+
+    /**
+     * Replaces the contents of out by the values of the window ending at a time.
+     *
+     * @param nowNanos End of the window, on the time base of {@link #add}.
+     * @param out A sketch from {@link #newSnapshot}.
+     *
+     * @return False if slots kept being recycled and the snapshot may mix windows.
+     */
+    public boolean snapshot(long nowNanos, QuantileSketch out) {
+        final long oldest = nowNanos / mSlotNanos - mSlots.length + 1;
+        for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            final int sequence = mSequence;
+            out.clear();
+            if ((sequence & 1) != 0) {
+                continue;
+            }
+            for (int i = 0; i < mSlots.length; i++) {
+                if (mSlotNumbers[i] >= oldest) {
+                    out.merge(mSlots[i]);
+                }
+            }
+            if (mSequence == sequence) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the values of the window to another sketch, for combining several windows or
+     * devices.
+     */
+    public boolean mergeInto(long nowNanos, QuantileSketch out) {
+        final QuantileSketch window = newSnapshot();
+        final boolean consistent = snapshot(nowNanos, window);
+        out.merge(window);
+        return consistent;
+    }
+}
@@ -0,0 +1,380 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.orbotix.ConvenienceRobot;
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceResponse;
+import com.orbotix.macro.MacroObject;
+
+/**
+ * Serialises every command sent to one robot.
+ *
+ * Each command class (stop, drive, LED, macro) has a single latest-wins mailbox: posting a
+ * command replaces the one still waiting in that mailbox.  Commands are sent from a dedicated
+ * thread in strict priority order.  A stop goes out as soon as the thread gets to it; drive,
+ * LED and macro commands are paced so that no more than {@link #MAX_IN_FLIGHT} commands are
+ * waiting for a response from the robot.  A stop also discards pending drive and macro
+ * commands so the robot cannot move again after it.
+ */
+public class RobotCommandScheduler {
+    private final static String TAG = RobotCommandScheduler.class.getSimpleName();
+
+    // Command classes, in priority order.
+    public static final int CLASS_STOP = 0;
+    public static final int CLASS_DRIVE = 1;
+    public static final int CLASS_LED = 2;
+    public static final int CLASS_MACRO = 3;
+    private static final int CLASS_COUNT = 4;
+
+    // Commands sent but not yet answered by the robot.
+    private static final int MAX_IN_FLIGHT = 2;
+    // A command without a response after this long no longer counts as in flight.
+    private static final long RESPONSE_TIMEOUT_NANOS = 250000000L;
+    // Pacing used until the robot has answered anything.
+    private static final long DEFAULT_INTERVAL_NANOS = 20000000L;
+    private static final long MIN_INTERVAL_NANOS = 5000000L;
+    private static final float RTT_SMOOTHING = 0.125f;
+
+    private final ConvenienceRobot mRobot;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+
+    // Mailboxes, guarded by mLock.
+    private final boolean[] mPending = new boolean[CLASS_COUNT];
+    private final long[] mEnqueuedAt = new long[CLASS_COUNT];
+    private float mDriveHeading;
+    private float mDriveVelocity;
+    private float mRed;
+    private float mGreen;
+    private float mBlue;
+    private MacroObject mMacro;
+    private boolean mShutdown;
+
+    // Statistics, guarded by mLock.
+    private final long[] mSent = new long[CLASS_COUNT];
+    private final long[] mReplaced = new long[CLASS_COUNT];
+    private final long[] mDropped = new long[CLASS_COUNT];
+    private final long[] mTotalWaitNanos = new long[CLASS_COUNT];
+    private final long[] mMaxWaitNanos = new long[CLASS_COUNT];
+
+    // Link pacing, only touched on the scheduler thread.  A stop may go out beyond the limit.
+    private final long[] mInFlightSentAt = new long[MAX_IN_FLIGHT + 1];
+    private int mInFlight;
+    private long mLastSendNanos;
+    private volatile float mSmoothedRttNanos;
+    // Guarded by mLock.
+    private boolean mDrainPosted;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mDrainPosted = false;
+            }
+            drain(System.nanoTime());
+        }
+    };
+
+    private final ResponseListener mResponseListener = new ResponseListener() {
+        @Override
+        public void handleResponse(DeviceResponse response, Robot robot) {
+            final long now = System.nanoTime();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onResponse(now);
+                }
+            });
+        }
+
+        @Override
+        public void handleStringResponse(String response, Robot robot) {
+        }
+
+        @Override
+        public void handleAsyncMessage(AsyncMessage message, Robot robot) {
+        }
+    };
+
+    public RobotCommandScheduler(ConvenienceRobot robot) {
+        mRobot = robot;
+        mThread = new HandlerThread("RobotCommands", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mRobot.addResponseListener(mResponseListener);
+    }
+
+    public ConvenienceRobot getRobot() {
+        return mRobot;
+    }
+
+    /**
+     * Stops the robot ahead of anything else that is waiting, and discards pending drive and
+     * macro commands.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            dropLocked(CLASS_DRIVE);
+            dropLocked(CLASS_MACRO);
+            postLocked(CLASS_STOP);
+        }
+    }
+
+    public void drive(float heading, float velocity) {
+        synchronized (mLock) {
+            mDriveHeading = heading;
+            mDriveVelocity = velocity;
+            postLocked(CLASS_DRIVE);
+        }
+    }
+
+    public void setLed(float red, float green, float blue) {
+        synchronized (mLock) {
+            mRed = red;
+            mGreen = green;
+            mBlue = blue;
+            postLocked(CLASS_LED);
+        }
+    }
+
+    public void playMacro(MacroObject macro) {
+        synchronized (mLock) {
+            mMacro = macro;
+            postLocked(CLASS_MACRO);
+        }
+    }
+
+    /**
+     * Discards everything still waiting and stops the scheduler thread.  Commands posted
+     * afterwards are counted as dropped.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            if (mShutdown) {
+                return;
+            }
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                dropLocked(i);
+            }
+            mMacro = null;
+            mShutdown = true;
+        }
+        mRobot.removeResponseListener(mResponseListener);
+        mThread.quitSafely();
+        Log.d(TAG, toString());
+    }
+
+    private void postLocked(int commandClass) {
+        if (mShutdown) {
+            mDropped[commandClass]++;
+            return;
+        }
+        if (mPending[commandClass]) {
+            // Latest wins: keep the original enqueue time so wait time stays honest.
+            mReplaced[commandClass]++;
+        } else {
+            mPending[commandClass] = true;
+            mEnqueuedAt[commandClass] = System.nanoTime();
+        }
+        if (!mDrainPosted) {
+            mDrainPosted = true;
+            mHandler.post(mDrain);
+        }
+    }
+
+    private void dropLocked(int commandClass) {
+        if (mPending[commandClass]) {
+            mPending[commandClass] = false;
+            mDropped[commandClass]++;
+        }
+    }
+
+    private void onResponse(long now) {
+        if (mInFlight == 0) {
+            return;
+        }
+        final float rtt = now - mInFlightSentAt[0];
+        mSmoothedRttNanos = mSmoothedRttNanos == 0 ? rtt
+                : mSmoothedRttNanos + (rtt - mSmoothedRttNanos) * RTT_SMOOTHING;
+        retireOldest();
+        drain(System.nanoTime());
+    }
+
+    private void retireOldest() {
+        System.arraycopy(mInFlightSentAt, 1, mInFlightSentAt, 0, mInFlight - 1);
+        mInFlight--;
+    }
+
+    /**
+     * The interval between two sends that keeps the link at its measured capacity.
+     */
+    private long sendIntervalNanos() {
+        if (mSmoothedRttNanos == 0) {
+            return DEFAULT_INTERVAL_NANOS;
+        }
+        return Math.max(MIN_INTERVAL_NANOS, (long) (mSmoothedRttNanos / MAX_IN_FLIGHT));
+    }
+
+    // Sends what the link has room for at now, on the System.nanoTime base.  Runs on the
+    // scheduler thread, or directly in tests.
+    void drain(long now) {
+        while (mInFlight > 0 && now - mInFlightSentAt[0] > RESPONSE_TIMEOUT_NANOS) {
+            retireOldest();
+        }
+
+        int commandClass = -1;
+        float a = 0, b = 0, c = 0;
+        MacroObject macro = null;
+        synchronized (mLock) {
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                if (mPending[i]) {
+                    commandClass = i;
+                    break;
+                }
+            }
+            if (commandClass < 0) {
+                return;
+            }
+            // A stop does not wait for the link; everything else is paced.
+            if (commandClass != CLASS_STOP) {
+                final long wait = mLastSendNanos + sendIntervalNanos() - now;
+                if (mInFlight >= MAX_IN_FLIGHT || wait > 0) {
+                    scheduleDrain(mInFlight >= MAX_IN_FLIGHT
+                            ? mInFlightSentAt[0] + RESPONSE_TIMEOUT_NANOS - now : wait);
+                    return;
+                }
+            }
+            mPending[commandClass] = false;
+            if (!mRobot.isConnected()) {
+                mDropped[commandClass]++;
+                scheduleDrain(0);
+                return;
+            }
+            final long waited = now - mEnqueuedAt[commandClass];
+            mTotalWaitNanos[commandClass] += waited;
+            mMaxWaitNanos[commandClass] = Math.max(mMaxWaitNanos[commandClass], waited);
+            mSent[commandClass]++;
+            switch (commandClass) {
+                case CLASS_DRIVE:
+                    a = mDriveHeading;
+                    b = mDriveVelocity;
+                    break;
+                case CLASS_LED:
+                    a = mRed;
+                    b = mGreen;
+                    c = mBlue;
+                    break;
+                case CLASS_MACRO:
+                    macro = mMacro;
+                    mMacro = null;
+                    break;
+            }
+        }
+
+        switch (commandClass) {
+            case CLASS_STOP:
+                mRobot.stop();
+                break;
+            case CLASS_DRIVE:
+                mRobot.drive(a, b);
+                break;
+            case CLASS_LED:
+                mRobot.setLed(a, b, c);
+                break;
+            case CLASS_MACRO:
+                mRobot.playMacro(macro);
+                break;
+        }
+        mLastSendNanos = now;
+        if (mInFlight == mInFlightSentAt.length) {
+            // Stops back to back on a full link; count the oldest as lost.
+            retireOldest();
+        }
+        mInFlightSentAt[mInFlight++] = now;
+        scheduleDrain(sendIntervalNanos());
+    }
+
+    private void scheduleDrain(long delayNanos) {
+        synchronized (mLock) {
+            if (mShutdown) {
+                return;
+            }
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                if (mPending[i]) {
+                    mHandler.removeCallbacks(mDrain);
+                    mDrainPosted = true;
+                    mHandler.postDelayed(mDrain, Math.max(0, delayNanos / 1000000L));
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Smoothed time between sending a command and the robot's response, or 0 if the
+     *         robot has not answered yet.
+     */
+    public float getRoundTripMillis() {
+        return mSmoothedRttNanos / 1e6f;
+    }
+
+    public long getSentCount(int commandClass) {
+        synchronized (mLock) {
+            return mSent[commandClass];
+        }
+    }
+
+    /**
+     * @return Number of commands that were overwritten in their mailbox before being sent.
+     */
+    public long getReplacedCount(int commandClass) {
+        synchronized (mLock) {
+            return mReplaced[commandClass];
+        }
+    }
+
+    /**
+     * @return Number of commands discarded by a stop, a lost link or a shutdown.
+     */
+    public long getDroppedCount(int commandClass) {
+        synchronized (mLock) {
+            return mDropped[commandClass];
+        }
+    }
+
+    public float getAverageWaitMillis(int commandClass) {
+        synchronized (mLock) {
+            return mSent[commandClass] == 0 ? 0
+                    : mTotalWaitNanos[commandClass] / (mSent[commandClass] * 1e6f);
+        }
+    }
+
+    public float getMaxWaitMillis(int commandClass) {
+        synchronized (mLock) {
+            return mMaxWaitNanos[commandClass] / 1e6f;
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("RobotCommandScheduler[");
+        final String[] names = {"stop", "drive", "led", "macro"};
+        synchronized (mLock) {
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                sb.append(names[i]).append(": sent=").append(mSent[i])
+                        .append(" replaced=").append(mReplaced[i])
+                        .append(" dropped=").append(mDropped[i])
+                        .append(" avgWait=").append(getAverageWaitMillis(i))
+                        .append("ms maxWait=").append(getMaxWaitMillis(i)).append("ms; ");
+            }
+        }
+        return sb.append("rtt=").append(getRoundTripMillis()).append("ms]").toString();
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.android.bluetoothlegatt;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.util.Log;
+
+import com.orbotix.ConvenienceRobot;
+import com.orbotix.common.Robot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A formation of robots driven from one glove.
+ *
+ * Every robot gets its own {@link RobotCommandScheduler}, and with it its own command thread
+ * and mailboxes.  Dispatching a decision to the group only writes into each robot's mailbox,
+ * so a robot with a slow or lagging link cannot hold back the others.  Each member applies its
+ * own heading offset and speed scale before the command is queued; both are kept per robot
+ * name, so a robot that reconnects takes its place in the formation again.
+ */
+public class RobotGroup {
+    private final static String TAG = RobotGroup.class.getSimpleName();
+
+    private static final String KEY_HEADING_OFFSET = ".heading_offset";
+    private static final String KEY_SPEED_SCALE = ".speed_scale";
+
+    /**
+     * One robot of the group and its private command pipeline.
+     */
+    public static final class Member {
+        final ConvenienceRobot mRobot;
+        final RobotCommandScheduler mScheduler;
+        final LedAnimator mLedAnimator;
+        final MacroTrajectoryStreamer mStreamer;
+        volatile float mHeadingOffset;
+        volatile float mSpeedScale = 1.0f;
+
+        Member(Robot robot, Handler handler) {
+            mRobot = new ConvenienceRobot(robot);
+            mScheduler = new RobotCommandScheduler(mRobot);
+            mLedAnimator = new LedAnimator(mScheduler, handler);
+            mStreamer = new MacroTrajectoryStreamer(mScheduler);
+        }
+
+        public ConvenienceRobot getRobot() {
+            return mRobot;
+        }
+
+        public RobotCommandScheduler getScheduler() {
+            return mScheduler;
+        }
+
+        public String getName() {
+            return mRobot.getRobot().getName();
+        }
+
+        public float getHeadingOffset() {
+            return mHeadingOffset;
+        }
+
+        public float getSpeedScale() {
+            return mSpeedScale;
+        }
+
+        void release() {
+            mLedAnimator.stop();
+            Log.d(TAG, mRobot.getRobot().getName() + ": " + mStreamer);
+            mScheduler.shutdown();
+        }
+
+        void drive(float heading, float velocity) {
+            float h = (heading + mHeadingOffset) % 360.0f;
+            if (h < 0) {
+                h += 360.0f;
+            }
+            mStreamer.drive(h, Math.min(1.0f, velocity * mSpeedScale));
+        }
+    }
+
+    private final Handler mHandler;
+    private final SharedPreferences mTransforms;
+    // Never modified once published; add and remove swap in a new array.
+    private volatile Member[] mMembers = new Member[0];
+    private int mDriveMode = MacroTrajectoryStreamer.MODE_PER_SAMPLE;
+
+    /**
+     * @param handler Handler of the thread that drives the group, used for LED animations.
+     * @param transforms Where the heading offset and speed scale of each robot are kept, or
+     *                   null to start every robot untransformed and keep nothing.
+     */
+    public RobotGroup(Handler handler, SharedPreferences transforms) {
+        mHandler = handler;
+        mTransforms = transforms;
+    }
+
+    /**
+     * Adds a robot that came online.  Adding a robot that is already a member is a no-op.
+     */
+    public synchronized Member add(Robot robot) {
+        for (Member member : mMembers) {
+            if (member.mRobot.getRobot() == robot) {
+                return member;
+            }
+        }
+        final Member member = new Member(robot, mHandler);
+        member.mStreamer.setMode(mDriveMode);
+        if (mTransforms != null) {
+            final String name = robot.getName();
+            member.mHeadingOffset = mTransforms.getFloat(name + KEY_HEADING_OFFSET, 0.0f);
+            member.mSpeedScale = mTransforms.getFloat(name + KEY_SPEED_SCALE, 1.0f);
+        }
+        final Member[] members = new Member[mMembers.length + 1];
+        System.arraycopy(mMembers, 0, members, 0, mMembers.length);
+        members[mMembers.length] = member;
+        mMembers = members;
+        return member;
+    }
+
+    /**
+     * Removes a robot that went offline and stops its pipeline.
+     */
+    public synchronized void remove(Robot robot) {
+        final List<Member> kept = new ArrayList<Member>(mMembers.length);
+        for (Member member : mMembers) {
+            if (member.mRobot.getRobot() == robot) {
+                member.release();
+            } else {
+                kept.add(member);
+            }
+        }
+        mMembers = kept.toArray(new Member[kept.size()]);
+    }
+
+    /**
+     * Sets how a robot's drive commands are transformed relative to the glove, and keeps it for
+     * the next time the robot joins.
+     *
+     * @param name Name of the robot, whether it is a member now or not.
+     * @param headingOffset Degrees added to every heading.
+     * @param speedScale Factor applied to every speed.
+     */
+    public void setTransform(String name, float headingOffset, float speedScale) {
+        if (mTransforms != null) {
+            mTransforms.edit()
+                    .putFloat(name + KEY_HEADING_OFFSET, headingOffset)
+                    .putFloat(name + KEY_SPEED_SCALE, speedScale)
+                    .apply();
+        }
+        for (Member member : mMembers) {
+            if (member.getName().equals(name)) {
+                member.mHeadingOffset = headingOffset;
+                member.mSpeedScale = speedScale;
+            }
+        }
+    }
+
+    /**
+     * @return The current members; the array is a snapshot and must not be modified.
+     */
+    public Member[] getMembers() {
+        return mMembers;
+    }
+
+    /**
+     * @return Handler of the thread LED animations run on; {@link #play} and {@link #show}
+     *         must be called there.
+     */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    public boolean isEmpty() {
+        return mMembers.length == 0;
+    }
+
+    public int size() {
+        return mMembers.length;
+    }
+
+    public synchronized void setDriveMode(int mode) {
+        mDriveMode = mode;
+        for (Member member : mMembers) {
+            member.mStreamer.setMode(mode);
+        }
+    }
+
+    public void drive(float heading, float velocity) {
+        final Member[] members = mMembers;
+        final boolean first = members.length > 0
+                && !StartupTimeline.hasEnded(StartupTimeline.PHASE_FIRST_DRIVE);
+        if (first) {
+            SystemTrace.beginSection("RobotGroup.drive (first)");
+        }
+        for (Member member : members) {
+            member.drive(heading, velocity);
+        }
+        if (first) {
+            SystemTrace.endSection();
+            StartupTimeline.mark(StartupTimeline.PHASE_FIRST_DRIVE);
+        }
+    }
+
+    public void stop() {
+        for (Member member : mMembers) {
+            member.mScheduler.stop();
+        }
+    }
+
+    public void jump() {
+        for (Member member : mMembers) {
+            member.mStreamer.jump();
+        }
+    }
+
+    public void play(LedAnimation animation) {
+        for (Member member : mMembers) {
+            member.mLedAnimator.play(animation);
+        }
+    }
+
+    public void show(int color) {
+        for (Member member : mMembers) {
+            member.mLedAnimator.show(color);
+        }
+    }
+
+    /**
+     * Stops every pipeline and disconnects every robot.
+     */
+    public synchronized void disconnectAll() {
+        for (Member member : mMembers) {
+            member.release();
+            member.mRobot.disconnect();
+        }
+        mMembers = new Member[0];
+    }
+
+    /**
+     * @return The largest smoothed round trip to any member, or 0 if none has answered yet.
+     */
+    public float getRoundTripMillis() {
+        float roundTrip = 0;
+        for (Member member : mMembers) {
+            roundTrip = Math.max(roundTrip, member.mScheduler.getRoundTripMillis());
+        }
+        return roundTrip;
+    }
+
+    /**
+     * @return Drive command latency of every member: time spent waiting in the mailbox and
+     *         the round trip to the robot.
+     */
+    public String getLatencyReport() {
+        final StringBuilder sb = new StringBuilder();
+        for (Member member : mMembers) {
+            final RobotCommandScheduler scheduler = member.mScheduler;
+            sb.append(member.mRobot.getRobot().getName())
+                    .append(": wait avg=")
+                    .append(scheduler.getAverageWaitMillis(RobotCommandScheduler.CLASS_DRIVE))
+                    .append("ms max=")
+                    .append(scheduler.getMaxWaitMillis(RobotCommandScheduler.CLASS_DRIVE))
+                    .append("ms rtt=").append(scheduler.getRoundTripMillis()).append("ms\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.android.bluetoothlegatt;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.orbotix.DualStackDiscoveryAgent;
+import com.orbotix.common.DiscoveryException;
+import com.orbotix.common.Robot;
+import com.orbotix.common.RobotChangedStateListener;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Service that owns the connection to the Sphero robots, so that it outlives any single
+ * Activity.
+ *
+ * Activities bind to it and hold a reference with {@link #acquire()} while they need the
+ * robots.  When the last reference is released the robots stay connected for an idle grace
+ * period, long enough for a configuration change or a switch to another Activity to acquire
+ * them again without going through discovery and connection.
+ */
+public class RobotService extends Service implements RobotChangedStateListener {
+    private final static String TAG = RobotService.class.getSimpleName();
+
+    private static final long DEFAULT_IDLE_GRACE_PERIOD = 15000;
+    private static final int MAX_ROBOTS = 4;
+    // Heading offset and speed scale of each robot in the formation, by robot name.
+    private static final String PREFS_ROBOTS = "robots";
+
+    /**
+     * Notified on the main thread when a robot joins or leaves the group.
+     */
+    public interface Listener {
+        void onRobotOnline(Robot robot);
+
+        void onRobotOffline(Robot robot);
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private Handler mHandler;
+    private RobotGroup mRobots;
+    private int mReferences;
+    private long mIdleGracePeriod = DEFAULT_IDLE_GRACE_PERIOD;
+
+    private final Runnable mIdleShutdown = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "Idle grace period over, releasing robots.");
+            stopDiscovery();
+            mRobots.disconnectAll();
+            stopSelf();
+        }
+    };
+
+    public class LocalBinder extends Binder {
+        RobotService getService() {
+            return RobotService.this;
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler();
+        mRobots = new RobotGroup(mHandler, getSharedPreferences(PREFS_ROBOTS, MODE_PRIVATE));
+        DualStackDiscoveryAgent.getInstance().addRobotStateListener(this);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mIdleShutdown);
+        DualStackDiscoveryAgent.getInstance().removeRobotStateListener(this);
+        stopDiscovery();
+        mRobots.disconnectAll();
+        super.onDestroy();
+    }
+
+    /**
+     * Takes a reference on the robot connection.  Each call must be balanced by
+     * {@link #release()}.
+     */
+    public void acquire() {
+        if (mReferences++ == 0) {
+            mHandler.removeCallbacks(mIdleShutdown);
+            // Started as well as bound, so the service survives the gap between an Activity
+            // unbinding and the next one binding.
+            startService(new Intent(this, RobotService.class));
+        }
+    }
+
+    /**
+     * Drops a reference taken with {@link #acquire()}.  Once the last reference is dropped the
+     * robots stop where they are, and they are disconnected once no reference was held for the
+     * idle grace period.
+     */
+    public void release() {
+        if (mReferences == 0) {
+            Log.w(TAG, "release() without acquire()");
+            return;
+        }
+        if (--mReferences == 0) {
+            // Nothing steers them any more.
+            mRobots.stop();
+            mHandler.postDelayed(mIdleShutdown, mIdleGracePeriod);
+        }
+    }
+
+    /**
+     * @param millis How long the robots stay connected after the last reference is released.
+     */
+    public void setIdleGracePeriod(long millis) {
+        mIdleGracePeriod = millis;
+    }
+
+    public RobotGroup getRobots() {
+        return mRobots;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Starts looking for robots unless discovery is already running.  Safe to call early, for
+     * example while the glove is still connecting.
+     */
+    public void startDiscovery() {
+        SystemTrace.beginSection("RobotService.startDiscovery");
+        final DualStackDiscoveryAgent agent = DualStackDiscoveryAgent.getInstance();
+        if (!agent.isDiscovering()) {
+            agent.setMaxConnectedRobots(MAX_ROBOTS);
+            StartupTimeline.begin(StartupTimeline.PHASE_ROBOT_DISCOVERY);
+            try {
+                agent.startDiscovery(getApplicationContext());
+            } catch (DiscoveryException e) {
+                Log.e(TAG, "DiscoveryException: " + e.getMessage());
+            }
+        }
+        SystemTrace.endSection();
+    }
+
+    public void stopDiscovery() {
+        if (DualStackDiscoveryAgent.getInstance().isDiscovering()) {
+            DualStackDiscoveryAgent.getInstance().stopDiscovery();
+        }
+    }
+
+    @Override
+    public void handleRobotChangedState(Robot robot, RobotChangedStateNotificationType type) {
+        SystemTrace.beginSection("RobotService.handleRobotChangedState");
+        switch (type) {
+            case Online: {
+                StartupTimeline.end(StartupTimeline.PHASE_ROBOT_DISCOVERY);
+                mRobots.add(robot);
+                for (Listener listener : mListeners) {
+                    listener.onRobotOnline(robot);
+                }
+                break;
+            }
+            case Offline:
+            case Disconnected: {
+                // Reported while the robot that left is still in the group.
+                Log.d(TAG, mRobots.getLatencyReport());
+                mRobots.remove(robot);
+                for (Listener listener : mListeners) {
+                    listener.onRobotOffline(robot);
+                }
+                break;
+            }
+        }
+        SystemTrace.endSection();
+    }
+}
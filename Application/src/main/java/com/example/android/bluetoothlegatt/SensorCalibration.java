@@ -0,0 +1,251 @@
+package com.example.android.bluetoothlegatt;
+
+import android.content.SharedPreferences;
+
+/**
+ * Learns the working range of each glove sensor while it is used, so thresholds follow the
+ * glove and the lighting instead of being compiled in.
+ *
+ * <p>For every channel the calibration tracks a decaying minimum and maximum and stochastic
+ * estimates of a low and a high quantile, which forget old readings at a fixed rate.  The baseline
+ * is the low quantile, which ignores dropouts; the ceiling is the high quantile, which ignores
+ * spikes.  The envelope only sizes the quantile steps.  The active band runs from a small margin
+ * above the baseline to a small margin below the ceiling, so the ambient level and saturated
+ * readings are both inactive.
+ *
+ * <p>The result is published as a {@link Normalizer}, rebuilt every {@link #UPDATE_INTERVAL}
+ * frames, that maps the active band of every channel to 0..1.  Until a channel has seen enough
+ * frames and a wide enough range it keeps the band the glove was originally tuned with,
+ * {@link #DEFAULT_LOW} to {@link #DEFAULT_HIGH}.  Two normalizers are allocated up front and
+ * take turns, so learning allocates nothing per frame.
+ *
+ * <p>{@link #observe} must be called from one thread; {@link #getNormalizer} may be called
+ * from any thread.
+ */
+public final class SensorCalibration {
+
+    /**
+     * Maps raw readings to 0..1 across the active band with one offset and one scale per
+     * channel.  Unchanged while it is published; it is rebuilt {@link #UPDATE_INTERVAL} frames
+     * after it was replaced, so callers on other threads take it again for every frame rather
+     * than holding on to it.
+     */
+    public static final class Normalizer {
+        private final float[] mLow;
+        private final float[] mHigh;
+        private final float[] mScale;
+
+        Normalizer(int channels) {
+            mLow = new float[channels];
+            mHigh = new float[channels];
+            mScale = new float[channels];
+        }
+
+        void set(int channel, float low, float high) {
+            mLow[channel] = low;
+            mHigh[channel] = high;
+            mScale[channel] = 1.0f / (high - low);
+        }
+
+        /**
+         * Normalizes the first count channels of a frame.  Values inside the active band are
+         * strictly between 0 and 1.
+         */
+        public void normalize(int[] values, int count, float[] out) {
+            final int n = Math.min(count, mLow.length);
+            for (int channel = 0; channel < n; channel++) {
+                out[channel] = (values[channel] - mLow[channel]) * mScale[channel];
+            }
+        }
+
+        public float normalize(int channel, float value) {
+            return (value - mLow[channel]) * mScale[channel];
+        }
+
+        public float getLow(int channel) {
+            return mLow[channel];
+        }
+
+        public float getHigh(int channel) {
+            return mHigh[channel];
+        }
+    }
+
+    /** Lower bound of the active band before a channel is calibrated. */
+    public static final float DEFAULT_LOW = 3000.0f;
+    /** Upper bound of the active band before a channel is calibrated. */
+    public static final float DEFAULT_HIGH = 48000.0f;
+
+    /**
+     * Maps a normalized reading back onto the band the glove was originally tuned with, for
+     * mappings whose constants were measured in raw readings.
+     */
+    public static float toDefaultBand(float normalized) {
+        return DEFAULT_LOW + normalized * (DEFAULT_HIGH - DEFAULT_LOW);
+    }
+
+    // Frames between rebuilds of the normalizer.
+    static final int UPDATE_INTERVAL = 64;
+    // At about 50 frames per second, the envelope forgets with a time constant of minutes.
+    private static final float ENVELOPE_DECAY = 1.0f / 8192;
+    private static final float LOW_QUANTILE = 0.05f;
+    private static final float HIGH_QUANTILE = 0.95f;
+    // Quantile steps are this share of the current span.
+    private static final float QUANTILE_STEP = 1.0f / 256;
+    // Margins of the active band, as a share of the span.
+    private static final float ACTIVE_MARGIN = 0.05f;
+    private static final float SATURATION_MARGIN = 0.05f;
+    private static final int MIN_FRAMES = 500;
+    private static final float MIN_SPAN = 4000.0f;
+
+    private static final String KEY_PREFIX = "calibration/";
+
+    private final int mChannels;
+    private final float[] mMin;
+    private final float[] mMax;
+    private final float[] mLowQuantile;
+    private final float[] mHighQuantile;
+    private final int[] mFrames;
+    private int mSinceUpdate;
+    private final Normalizer[] mNormalizers = new Normalizer[2];
+    private volatile Normalizer mNormalizer;
+
+    public SensorCalibration(int channels) {
+        mChannels = channels;
+        mMin = new float[channels];
+        mMax = new float[channels];
+        mLowQuantile = new float[channels];
+        mHighQuantile = new float[channels];
+        mFrames = new int[channels];
+        mNormalizers[0] = new Normalizer(channels);
+        mNormalizers[1] = new Normalizer(channels);
+        update();
+    }
+
+    /**
+     * Restores the calibration saved for a device, or starts from the defaults if there is
+     * none.
+     */
+    public static SensorCalibration load(SharedPreferences preferences, String address,
+                                         int channels) {
+        final SensorCalibration calibration = new SensorCalibration(channels);
+        for (int channel = 0; channel < channels; channel++) {
+            final String key = key(address, channel);
+            final int frames = preferences.getInt(key + "/frames", 0);
+            if (frames == 0) {
+                continue;
+            }
+            calibration.mFrames[channel] = frames;
+            calibration.mMin[channel] = preferences.getFloat(key + "/min", 0);
+            calibration.mMax[channel] = preferences.getFloat(key + "/max", 0);
+            calibration.mLowQuantile[channel] = preferences.getFloat(key + "/low", 0);
+            calibration.mHighQuantile[channel] = preferences.getFloat(key + "/high", 0);
+        }
+        calibration.update();
+        return calibration;
+    }
+
+    /**
+     * Saves the calibration for a device.
+     */
+    public void save(SharedPreferences preferences, String address) {
+        final SharedPreferences.Editor editor = preferences.edit();
+        for (int channel = 0; channel < mChannels; channel++) {
+            final String key = key(address, channel);
+            editor.putInt(key + "/frames", mFrames[channel])
+                    .putFloat(key + "/min", mMin[channel])
+                    .putFloat(key + "/max", mMax[channel])
+                    .putFloat(key + "/low", mLowQuantile[channel])
+                    .putFloat(key + "/high", mHighQuantile[channel]);
+        }
+        editor.apply();
+    }
+
+    private static String key(String address, int channel) {
+        return KEY_PREFIX + address + "/" + channel;
+    }
+
+    /**
+     * Forgets what has been learned and goes back to the defaults.
+     */
+    public void reset() {
+        for (int channel = 0; channel < mChannels; channel++) {
+            mFrames[channel] = 0;
+        }
+        update();
+    }
+
+    /**
+     * Learns from a raw frame.
+     */
+    public void observe(int[] values, int count) {
+        final int n = Math.min(count, mChannels);
+        for (int channel = 0; channel < n; channel++) {
+            final float value = values[channel];
+            if (mFrames[channel] == 0) {
+                mMin[channel] = value;
+                mMax[channel] = value;
+                mLowQuantile[channel] = value;
+                mHighQuantile[channel] = value;
+            } else {
+                // The envelope jumps out to new extremes and slowly closes in again.
+                mMin[channel] = value < mMin[channel] ? value
+                        : mMin[channel] + ENVELOPE_DECAY * (value - mMin[channel]);
+                mMax[channel] = value > mMax[channel] ? value
+                        : mMax[channel] - ENVELOPE_DECAY * (mMax[channel] - value);
+                final float span = Math.max(MIN_SPAN, mMax[channel] - mMin[channel]);
+                final float step = QUANTILE_STEP * span;
+                mLowQuantile[channel] += step
+                        * (value < mLowQuantile[channel] ? LOW_QUANTILE - 1 : LOW_QUANTILE);
+                mHighQuantile[channel] += step
+                        * (value < mHighQuantile[channel] ? HIGH_QUANTILE - 1 : HIGH_QUANTILE);
+            }
+            if (mFrames[channel] < Integer.MAX_VALUE) {
+                mFrames[channel]++;
+            }
+        }
+        if (++mSinceUpdate >= UPDATE_INTERVAL) {
+            update();
+        }
+    }
+
+    private void update() {
+        mSinceUpdate = 0;
+        // The one not published; readers are done with it by now.
+        final Normalizer next = mNormalizer == mNormalizers[0] ? mNormalizers[1] : mNormalizers[0];
+        for (int channel = 0; channel < mChannels; channel++) {
+            final float baseline = mLowQuantile[channel];
+            final float ceiling = mHighQuantile[channel];
+            final float span = ceiling - baseline;
+            if (mFrames[channel] < MIN_FRAMES || span < MIN_SPAN) {
+                next.set(channel, DEFAULT_LOW, DEFAULT_HIGH);
+            } else {
+                next.set(channel, baseline + ACTIVE_MARGIN * span,
+                        ceiling - SATURATION_MARGIN * span);
+            }
+        }
+        mNormalizer = next;
+    }
+
+    /**
+     * @return The normalizer for the calibration so far.
+     */
+    public Normalizer getNormalizer() {
+        return mNormalizer;
+    }
+
+    @Override
+    public String toString() {
+        final Normalizer normalizer = mNormalizer;
+        final StringBuilder stringBuilder = new StringBuilder();
+        for (int channel = 0; channel < mChannels; channel++) {
+            stringBuilder.append(channel == 0 ? "" : ", ").append(channel).append(": ")
+                    .append(normalizer.getLow(channel)).append("..")
+                    .append(normalizer.getHigh(channel)).append(" (min ").append(mMin[channel])
+                    .append(", q").append(LOW_QUANTILE).append(' ').append(mLowQuantile[channel])
+                    .append(", q").append(HIGH_QUANTILE).append(' ').append(mHighQuantile[channel])
+                    .append(", max ").append(mMax[channel]).append(')');
+        }
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,284 @@
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Records glove frames to a file and keeps a {@link SummaryPyramid} of them up to date, so a
+ * session of hours can be summarized and replayed from any point without scanning it.
+ *
+ * <p>The file is a small header followed by fixed-size big-endian records: the timestamp in
+ * nanoseconds and one int per channel.  Frame n therefore starts at a known offset, and the
+ * pyramid maps a time to a frame.  The pyramid is saved next to the session when it is
+ * closed; a session without one is indexed again by a single scan when opened.
+ *
+ * <p>Not thread-safe: record, query and close from one thread.
+ */
+public final class SessionRecorder implements SummaryPyramid.RawSource {
+
+    private final static String TAG = SessionRecorder.class.getSimpleName();
+
+    private static final int MAGIC = 0x50414c53; // "PALS"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final int WRITE_BUFFER_BYTES = 16 * 1024;
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File mFile;
+    private final RandomAccessFile mData;
+    private final int mChannels;
+    private final int mRecordBytes;
+    private SummaryPyramid mPyramid;
+    private final boolean mWritable;
+
+    // Records not written to the file yet.
+    private final byte[] mWriteBuffer;
+    private int mBuffered;
+    private long mFlushedFrames;
+
+    private byte[] mReadBuffer = new byte[0];
+
+    private SessionRecorder(File file, RandomAccessFile data, int channels,
+                            SummaryPyramid pyramid, long frames, boolean writable) {
+        mFile = file;
+        mData = data;
+        mChannels = channels;
+        mRecordBytes = 8 + 4 * channels;
+        mPyramid = pyramid;
+        mFlushedFrames = frames;
+        mWritable = writable;
+        mWriteBuffer = writable
+                ? new byte[Math.max(1, WRITE_BUFFER_BYTES / mRecordBytes) * mRecordBytes]
+                : null;
+    }
+
+    /**
+     * Starts a new session file, replacing any existing one.
+     */
+    public static SessionRecorder create(File file, int channels) throws IOException {
+        final RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            data.setLength(0);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(channels);
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+        new File(file.getPath() + INDEX_SUFFIX).delete();
+        return new SessionRecorder(file, data, channels, new SummaryPyramid(channels), 0, true);
+    }
+
+    /**
+     * Opens a recorded session for review.
+     */
+    public static SessionRecorder open(File file) throws IOException {
+        final RandomAccessFile data = new RandomAccessFile(file, "r");
+        try {
+            final int channels;
+            if (data.readInt() != MAGIC || data.readInt() != VERSION
+                    || (channels = data.readInt()) <= 0) {
+                throw new IOException("Not a session file: " + file);
+            }
+            final long frames = (data.length() - HEADER_BYTES) / (8 + 4 * channels);
+
+            SummaryPyramid pyramid = null;
+            final File index = new File(file.getPath() + INDEX_SUFFIX);
+            if (index.exists()) {
+                final DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(index)));
+                try {
+                    pyramid = SummaryPyramid.readFrom(in);
+                } catch (IOException e) {
+                    Log.w(TAG, "Ignoring unreadable index " + index, e);
+                } finally {
+                    in.close();
+                }
+                if (pyramid != null && pyramid.getFrameCount() != frames) {
+                    pyramid = null;
+                }
+            }
+            final SessionRecorder session =
+                    new SessionRecorder(file, data, channels, pyramid, frames, false);
+            if (pyramid == null) {
+                session.rebuildIndex();
+            }
+            return session;
+        } catch (IOException e) {
+            // Truncated or not a session at all; the file is not kept open.
+            data.close();
+            throw e;
+        }
+    }
+
+    private void rebuildIndex() throws IOException {
+        final SummaryPyramid pyramid = new SummaryPyramid(mChannels);
+        final int chunk = 1024;
+        final long[] times = new long[chunk];
+        final int[][] values = new int[mChannels][chunk];
+        final int[] frame = new int[mChannels];
+        long next = 0;
+        int read;
+        while ((read = read(next, chunk, times, values)) > 0) {
+            for (int i = 0; i < read; i++) {
+                for (int channel = 0; channel < mChannels; channel++) {
+                    frame[channel] = values[channel][i];
+                }
+                pyramid.add(times[i], frame, mChannels);
+            }
+            next += read;
+        }
+        mPyramid = pyramid;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public SummaryPyramid getPyramid() {
+        return mPyramid;
+    }
+
+    public long getFrameCount() {
+        return mFlushedFrames + mBuffered / mRecordBytes;
+    }
+
+    /**
+     * Appends a frame.  Timestamps must not go backwards.
+     *
+     * @param length Number of valid entries in values; missing channels are stored as zero.
+     */
+    public void record(long timeNanos, int[] values, int length) throws IOException {
+        if (!mWritable) {
+            throw new IllegalStateException("Session opened for review");
+        }
+        if (mBuffered == mWriteBuffer.length) {
+            flush();
+        }
+        int position = putLong(mWriteBuffer, mBuffered, timeNanos);
+        for (int channel = 0; channel < mChannels; channel++) {
+            position = putInt(mWriteBuffer, position, channel < length ? values[channel] : 0);
+        }
+        mBuffered = position;
+        mPyramid.add(timeNanos, values, length);
+    }
+
+    private void flush() throws IOException {
+        if (mBuffered == 0) {
+            return;
+        }
+        mData.seek(offsetOfFrame(mFlushedFrames));
+        mData.write(mWriteBuffer, 0, mBuffered);
+        mFlushedFrames += mBuffered / mRecordBytes;
+        mBuffered = 0;
+    }
+
+    /**
+     * @return The byte offset of a frame in the session file.
+     */
+    public long offsetOfFrame(long frame) {
+        return HEADER_BYTES + frame * mRecordBytes;
+    }
+
+    /**
+     * @return The byte offset of the first frame at or after a point in time; the seek index
+     *         for starting a replay there.
+     */
+    public long offsetOf(long timeNanos) throws IOException {
+        return offsetOfFrame(mPyramid.findFrame(timeNanos, this));
+    }
+
+    /**
+     * Aggregates one channel over a time range, inclusive of both ends.
+     */
+    public void aggregate(long fromNanos, long toNanos, int channel,
+                          SummaryPyramid.Aggregate out) throws IOException {
+        final SummaryPyramid pyramid = mPyramid;
+        final long first = pyramid.findFrame(fromNanos, this);
+        final long last = toNanos == Long.MAX_VALUE
+                ? pyramid.getFrameCount() : pyramid.findFrame(toNanos + 1, this);
+        pyramid.aggregate(first, last, channel, this, out);
+    }
+
+    @Override
+    public int read(long firstFrame, int count, long[] times, int[][] values)
+            throws IOException {
+        if (mWritable) {
+            flush();
+        }
+        final long available = mFlushedFrames - firstFrame;
+        if (available <= 0 || count <= 0) {
+            return 0;
+        }
+        final int frames = (int) Math.min(count, available);
+        final int bytes = frames * mRecordBytes;
+        if (mReadBuffer.length < bytes) {
+            mReadBuffer = new byte[bytes];
+        }
+        mData.seek(offsetOfFrame(firstFrame));
+        mData.readFully(mReadBuffer, 0, bytes);
+        int position = 0;
+        for (int i = 0; i < frames; i++) {
+            times[i] = getLong(mReadBuffer, position);
+            position += 8;
+            for (int channel = 0; channel < mChannels; channel++) {
+                values[channel][i] = getInt(mReadBuffer, position);
+                position += 4;
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Writes outstanding frames and, for a recording, saves the summary next to the session.
+     */
+    public void close() throws IOException {
+        try {
+            if (mWritable) {
+                flush();
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mFile.getPath() + INDEX_SUFFIX)));
+                try {
+                    mPyramid.writeTo(out);
+                } finally {
+                    out.close();
+                }
+            }
+        } finally {
+            mData.close();
+        }
+    }
+
+    private static int putLong(byte[] buffer, int position, long value) {
+        position = putInt(buffer, position, (int) (value >>> 32));
+        return putInt(buffer, position, (int) value);
+    }
+
+    private static int putInt(byte[] buffer, int position, int value) {
+        buffer[position] = (byte) (value >>> 24);
+        buffer[position + 1] = (byte) (value >>> 16);
+        buffer[position + 2] = (byte) (value >>> 8);
+        buffer[position + 3] = (byte) value;
+        return position + 4;
+    }
+
+    private static long getLong(byte[] buffer, int position) {
+        return ((long) getInt(buffer, position) << 32)
+                | (getInt(buffer, position + 4) & 0xffffffffL);
+    }
+
+    private static int getInt(byte[] buffer, int position) {
+        return ((buffer[position] & 0xff) << 24) | ((buffer[position + 1] & 0xff) << 16)
+                | ((buffer[position + 2] & 0xff) << 8) | (buffer[position + 3] & 0xff);
+    }
+}
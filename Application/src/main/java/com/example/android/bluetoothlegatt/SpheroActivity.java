@@ -6,10 +6,13 @@ package com.example.android.bluetoothlegatt;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -17,12 +20,6 @@ import android.widget.Button;
 import java.util.ArrayList;
 import java.util.List;
 
-import com.orbotix.ConvenienceRobot;
-import com.orbotix.DualStackDiscoveryAgent;
-import com.orbotix.common.DiscoveryException;
-import com.orbotix.common.Robot;
-import com.orbotix.common.RobotChangedStateListener;
-
 /**
  * Button Drive sample
  *
@@ -35,12 +32,15 @@ import com.orbotix.common.RobotChangedStateListener;
  * 180 moves backward
  * 270 moves left
  */
-public class SpheroActivity extends Activity implements View.OnClickListener, RobotChangedStateListener {
+public class SpheroActivity extends Activity implements View.OnClickListener {
 
     private static final int REQUEST_CODE_LOCATION_PERMISSION = 42;
     private static final float ROBOT_VELOCITY = 0.6f;
+    private static final LedAnimation BLINK =
+            LedAnimation.blink( LedAnimation.MAGENTA, LedAnimation.BLUE, 2000, 2000 );
 
-    private ConvenienceRobot mRobot;
+    private RobotService mRobotService;
+    private boolean mRobotsAcquired = false;
 
     private Button mBtn0;
     private Button mBtn90;
@@ -54,14 +54,6 @@ public class SpheroActivity extends Activity implements View.OnClickListener, Ro
         super.onCreate( savedInstanceState );
         setContentView( R.layout.sphero_activity );
 
-        /*
-            Associate a listener for robot state changes with the DualStackDiscoveryAgent.
-            DualStackDiscoveryAgent checks for both Bluetooth Classic and Bluetooth LE.
-            DiscoveryAgentClassic checks only for Bluetooth Classic robots.
-            DiscoveryAgentLE checks only for Bluetooth LE robots.
-       */
-        DualStackDiscoveryAgent.getInstance().addRobotStateListener( this );
-
         initViews();
 
         if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ) {
@@ -113,55 +105,60 @@ public class SpheroActivity extends Activity implements View.OnClickListener, Ro
         mBtnColor.setOnClickListener( this );
     }
 
+    // The robot connection is owned by RobotService, so it survives rotation and switching
+    // between activities.
+    private final ServiceConnection mRobotServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected( ComponentName componentName, IBinder service ) {
+            mRobotService = ( (RobotService.LocalBinder) service ).getService();
+            mRobotService.acquire();
+            mRobotsAcquired = true;
+            if( Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                    || checkSelfPermission( Manifest.permission.ACCESS_COARSE_LOCATION ) == PackageManager.PERMISSION_GRANTED ) {
+                startDiscovery();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected( ComponentName componentName ) {
+            mRobotService = null;
+            mRobotsAcquired = false;
+        }
+    };
+
     @Override
     protected void onStart() {
         super.onStart();
-
-        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.M
-                || checkSelfPermission( Manifest.permission.ACCESS_COARSE_LOCATION ) == PackageManager.PERMISSION_GRANTED ) {
-            startDiscovery();
-        }
+        bindService( new Intent( this, RobotService.class ), mRobotServiceConnection, BIND_AUTO_CREATE );
     }
 
     private void startDiscovery() {
         //If the DiscoveryAgent is not already looking for robots, start discovery.
-        if( !DualStackDiscoveryAgent.getInstance().isDiscovering() ) {
-            try {
-                DualStackDiscoveryAgent.getInstance().startDiscovery( this );
-            } catch (DiscoveryException e) {
-                Log.e("Sphero", "DiscoveryException: " + e.getMessage());
-            }
+        if( mRobotService != null ) {
+            mRobotService.startDiscovery();
         }
     }
 
     @Override
     protected void onStop() {
-        //If the DiscoveryAgent is in discovery mode, stop it.
-        if( DualStackDiscoveryAgent.getInstance().isDiscovering() ) {
-            DualStackDiscoveryAgent.getInstance().stopDiscovery();
-        }
-
-        //If a robot is connected to the device, disconnect it
-        if( mRobot != null ) {
-            mRobot.disconnect();
-            mRobot = null;
+        //Hand the robots back to the service; it keeps them connected for a grace period.
+        if( mRobotsAcquired ) {
+            mRobotService.release();
+            mRobotsAcquired = false;
         }
+        unbindService( mRobotServiceConnection );
+        mRobotService = null;
 
         super.onStop();
     }
 
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        DualStackDiscoveryAgent.getInstance().addRobotStateListener( null );
-    }
-
     @Override
     public void onClick(View v) {
-        //If the robot is null, then it is probably not connected and nothing needs to be done
-        if( mRobot == null ) {
+        //If there is no robot, then it is probably not connected and nothing needs to be done
+        if( mRobotService == null || mRobotService.getRobots().isEmpty() ) {
             return;
         }
+        final RobotGroup robots = mRobotService.getRobots();
 
         /*
             When a heading button is pressed, set the robot to drive in that heading.
@@ -171,65 +168,40 @@ public class SpheroActivity extends Activity implements View.OnClickListener, Ro
         switch( v.getId() ) {
             case R.id.btn_0: {
                 //Forward
-                mRobot.drive( 0.0f, ROBOT_VELOCITY );
+                robots.drive( 0.0f, ROBOT_VELOCITY );
                 break;
             }
             case R.id.btn_90: {
                 //To the right
-                mRobot.drive( 90.0f, ROBOT_VELOCITY );
+                robots.drive( 90.0f, ROBOT_VELOCITY );
                 break;
             }
             case R.id.btn_180: {
                 //Backward
-                mRobot.drive( 180.0f, ROBOT_VELOCITY );
+                robots.drive( 180.0f, ROBOT_VELOCITY );
                 break;
             }
             case R.id.btn_270: {
                 //To the left
-                mRobot.drive( 270.0f, ROBOT_VELOCITY );
+                robots.drive( 270.0f, ROBOT_VELOCITY );
                 break;
             }
             case R.id.btn_stop: {
                 //Stop the robot
-                mRobot.stop();
+                robots.stop();
                 break;
             }
             case R.id.btn_color: {
-                //Stop the robot
-                blink(false);
+                //Blink the LED
+                blink( robots );
                 break;
             }
 
         }
     }
 
-    @Override
-    public void handleRobotChangedState(Robot robot, RobotChangedStateNotificationType type) {
-        switch (type) {
-            case Online: {
-                //Save the robot as a ConvenienceRobot for additional utility methods
-                mRobot = new ConvenienceRobot(robot);
-                break;
-            }
-        }
-    }
-
     //Turn the robot LED on or off every two seconds
-    private void blink( final boolean lit ) {
-        if( mRobot == null )
-            return;
-
-        if( lit ) {
-            mRobot.setLed( 23.0f, 0.0f, 33.0f );
-        } else {
-            mRobot.setLed( 0.0f, 0.0f, 1.0f );
-        }
-
-        final Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
-            public void run() {
-                blink(!lit);
-            }
-        }, 2000);
+    private void blink( RobotGroup robots ) {
+        robots.play( BLINK );
     }
 }
@@ -0,0 +1,143 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Times the way from launching the app to the first robot motion: scanning for the glove,
+ * connecting, discovering its services, subscribing, the first sample, finding the robots and
+ * the first drive command.
+ *
+ * <p>Each phase is timed the first time it runs in the process; reconnects later on do not
+ * move it.  Phases are also shown as async slices in systrace, as they usually begin and end
+ * in different callbacks and threads.  When the first drive is issued the timeline is logged
+ * as a report of when each phase began after launch and how long it took.
+ *
+ * <p>All methods may be called from any thread.
+ */
+public final class StartupTimeline {
+    private final static String TAG = StartupTimeline.class.getSimpleName();
+
+    public static final int PHASE_SCAN = 0;
+    public static final int PHASE_CONNECT = 1;
+    public static final int PHASE_DISCOVER_SERVICES = 2;
+    public static final int PHASE_SUBSCRIBE = 3;
+    public static final int PHASE_FIRST_SAMPLE = 4;
+    public static final int PHASE_ROBOT_DISCOVERY = 5;
+    public static final int PHASE_FIRST_DRIVE = 6;
+    private static final String[] PHASE_NAMES = {
+            "scan", "connect", "discover services", "subscribe", "first sample",
+            "robot discovery", "first drive",
+    };
+
+    private static final Object sLock = new Object();
+    private static long sLaunchNanos;
+    private static final long[] sBegin = new long[PHASE_NAMES.length];
+    private static final long[] sEnd = new long[PHASE_NAMES.length];
+    // Bit per phase that has ended, for the checks on per-sample paths.
+    private static volatile int sEnded;
+
+    private StartupTimeline() {
+    }
+
+    /**
+     * Sets the time phases are reported from.  Without it, that is the first phase to begin.
+     */
+    public static void markLaunch() {
+        synchronized (sLock) {
+            if (sLaunchNanos == 0) {
+                sLaunchNanos = SystemClock.elapsedRealtimeNanos();
+            }
+        }
+    }
+
+    public static void begin(int phase) {
+        synchronized (sLock) {
+            if (sBegin[phase] != 0) {
+                return;
+            }
+            sBegin[phase] = now();
+        }
+        SystemTrace.beginAsync(PHASE_NAMES[phase], phase);
+    }
+
+    /**
+     * Ends a phase that has begun.
+     */
+    public static void end(int phase) {
+        synchronized (sLock) {
+            if (sBegin[phase] == 0 || sEnd[phase] != 0) {
+                return;
+            }
+            sEnd[phase] = SystemClock.elapsedRealtimeNanos();
+            sEnded |= 1 << phase;
+        }
+        SystemTrace.endAsync(PHASE_NAMES[phase], phase);
+        onEnded(phase);
+    }
+
+    /**
+     * Records a phase that takes no time of its own, such as the first drive.
+     */
+    public static void mark(int phase) {
+        synchronized (sLock) {
+            if (sBegin[phase] != 0) {
+                return;
+            }
+            sBegin[phase] = sEnd[phase] = now();
+            sEnded |= 1 << phase;
+        }
+        onEnded(phase);
+    }
+
+    // Under sLock.
+    private static long now() {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        if (sLaunchNanos == 0) {
+            sLaunchNanos = now;
+        }
+        return now;
+    }
+
+    private static void onEnded(int phase) {
+        if (phase == PHASE_FIRST_DRIVE) {
+            Log.i(TAG, getReport());
+        }
+    }
+
+    /**
+     * @return Whether the phase has been timed; cheap enough to call for every sample.
+     */
+    public static boolean hasEnded(int phase) {
+        return (sEnded & (1 << phase)) != 0;
+    }
+
+    /**
+     * @return Each phase timed so far, with when it began after launch and how long it took.
+     */
+    public static String getReport() {
+        final StringBuilder report = new StringBuilder("Startup:");
+        synchronized (sLock) {
+            for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+                if (sBegin[phase] == 0) {
+                    continue;
+                }
+                report.append(' ').append(PHASE_NAMES[phase]).append(" +")
+                        .append((sBegin[phase] - sLaunchNanos) / 1000000L).append(" ms");
+                if (sEnd[phase] == 0) {
+                    report.append(" (running)");
+                } else if (sEnd[phase] != sBegin[phase]) {
+                    report.append(" for ").append((sEnd[phase] - sBegin[phase]) / 1000000L)
+                            .append(" ms");
+                }
+                report.append(',');
+            }
+        }
+        if (report.charAt(report.length() - 1) == ',') {
+            report.setLength(report.length() - 1);
+        } else {
+            report.append(" nothing yet");
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,454 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Multi-resolution summary of a recorded session, built incrementally while frames are
+ * appended.
+ *
+ * <p>Frames are grouped into blocks of a fixed power-of-two size.  Every level holds the count,
+ * min, max, sum and sum of squares of each channel per block, and the blocks of a level are
+ * merged pairwise into the next one, so level n covers blockSize &lt;&lt; n frames per block.
+ * A range aggregation uses the largest aligned blocks that fit and only reads raw frames for
+ * the ragged edges, so its cost is logarithmic in the session length.  The start time of the
+ * blocks of level zero doubles as the seek index of the session.
+ *
+ * <p>Not thread-safe.
+ */
+public final class SummaryPyramid {
+
+    public static final int DEFAULT_BLOCK_SHIFT = 6;
+    private static final int MAX_LEVELS = 24;
+    private static final int INITIAL_BLOCKS = 64;
+
+    /**
+     * Gives access to the raw frames the pyramid summarizes.
+     */
+    public interface RawSource {
+        /**
+         * Copies frames [firstFrame, firstFrame + count) into the arrays.
+         *
+         * @return The number of frames copied.
+         */
+        int read(long firstFrame, int count, long[] times, int[][] values) throws IOException;
+    }
+
+    /**
+     * Aggregate of one channel over a range of frames.
+     */
+    public static final class Aggregate {
+        public long count;
+        public int min;
+        public int max;
+        public long sum;
+        public double sumOfSquares;
+
+        public void reset() {
+            count = 0;
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
+            sum = 0;
+            sumOfSquares = 0;
+        }
+
+        void add(int value) {
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            sumOfSquares += (double) value * value;
+        }
+
+        void add(long blockCount, int blockMin, int blockMax, long blockSum, double blockSumSq) {
+            count += blockCount;
+            min = Math.min(min, blockMin);
+            max = Math.max(max, blockMax);
+            sum += blockSum;
+            sumOfSquares += blockSumSq;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        public double getStandardDeviation() {
+            if (count == 0) {
+                return 0.0;
+            }
+            final double mean = getMean();
+            return Math.sqrt(Math.max(0.0, sumOfSquares / count - mean * mean));
+        }
+    }
+
+    // The complete blocks of one resolution.  Arrays grow by doubling.
+    private static final class Level {
+        int size;
+        long[] start;
+        long[] end;
+        int[][] min;
+        int[][] max;
+        long[][] sum;
+        double[][] sumSq;
+
+        Level(int channels) {
+            start = new long[INITIAL_BLOCKS];
+            end = new long[INITIAL_BLOCKS];
+            min = new int[channels][INITIAL_BLOCKS];
+            max = new int[channels][INITIAL_BLOCKS];
+            sum = new long[channels][INITIAL_BLOCKS];
+            sumSq = new double[channels][INITIAL_BLOCKS];
+        }
+
+        int appendSlot() {
+            if (size == start.length) {
+                final int capacity = size * 2;
+                start = grow(start, capacity);
+                end = grow(end, capacity);
+                for (int channel = 0; channel < min.length; channel++) {
+                    min[channel] = grow(min[channel], capacity);
+                    max[channel] = grow(max[channel], capacity);
+                    sum[channel] = grow(sum[channel], capacity);
+                    sumSq[channel] = grow(sumSq[channel], capacity);
+                }
+            }
+            return size++;
+        }
+
+        private static long[] grow(long[] array, int capacity) {
+            final long[] grown = new long[capacity];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        private static int[] grow(int[] array, int capacity) {
+            final int[] grown = new int[capacity];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        private static double[] grow(double[] array, int capacity) {
+            final double[] grown = new double[capacity];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+    }
+
+    private final int mChannels;
+    private final int mBlockShift;
+    private final int mBlockSize;
+    private final ArrayList<Level> mLevels = new ArrayList<Level>();
+    private long mFrames;
+
+    // The block being filled.
+    private int mPartialCount;
+    private long mPartialStart;
+    private long mPartialEnd;
+    private final int[] mPartialMin;
+    private final int[] mPartialMax;
+    private final long[] mPartialSum;
+    private final double[] mPartialSumSq;
+
+    // Raw frames of one block, for the edges of a range.
+    private final long[] mScratchTimes;
+    private final int[][] mScratchValues;
+
+    public SummaryPyramid(int channels) {
+        this(channels, DEFAULT_BLOCK_SHIFT);
+    }
+
+    public SummaryPyramid(int channels, int blockShift) {
+        mChannels = channels;
+        mBlockShift = blockShift;
+        mBlockSize = 1 << blockShift;
+        mPartialMin = new int[channels];
+        mPartialMax = new int[channels];
+        mPartialSum = new long[channels];
+        mPartialSumSq = new double[channels];
+        mScratchTimes = new long[mBlockSize];
+        mScratchValues = new int[channels][mBlockSize];
+        mLevels.add(new Level(channels));
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Adds the next frame.  Timestamps must not go backwards.
+     *
+     * @param length Number of valid entries in values; missing channels count as zero.
+     */
+    public void add(long timeNanos, int[] values, int length) {
+        if (mPartialCount == 0) {
+            mPartialStart = timeNanos;
+        }
+        mPartialEnd = timeNanos;
+        for (int channel = 0; channel < mChannels; channel++) {
+            final int value = channel < length ? values[channel] : 0;
+            if (mPartialCount == 0 || value < mPartialMin[channel]) {
+                mPartialMin[channel] = value;
+            }
+            if (mPartialCount == 0 || value > mPartialMax[channel]) {
+                mPartialMax[channel] = value;
+            }
+            mPartialSum[channel] = (mPartialCount == 0 ? 0 : mPartialSum[channel]) + value;
+            mPartialSumSq[channel] = (mPartialCount == 0 ? 0 : mPartialSumSq[channel])
+                    + (double) value * value;
+        }
+        mPartialCount++;
+        mFrames++;
+        if (mPartialCount == mBlockSize) {
+            final Level level = mLevels.get(0);
+            final int slot = level.appendSlot();
+            level.start[slot] = mPartialStart;
+            level.end[slot] = mPartialEnd;
+            for (int channel = 0; channel < mChannels; channel++) {
+                level.min[channel][slot] = mPartialMin[channel];
+                level.max[channel][slot] = mPartialMax[channel];
+                level.sum[channel][slot] = mPartialSum[channel];
+                level.sumSq[channel][slot] = mPartialSumSq[channel];
+            }
+            mPartialCount = 0;
+            carry(0);
+        }
+    }
+
+    // Merges the last two blocks of a level into the next one whenever they form a pair.
+    private void carry(int index) {
+        while (index + 1 < MAX_LEVELS) {
+            final Level level = mLevels.get(index);
+            if ((level.size & 1) != 0) {
+                return;
+            }
+            if (mLevels.size() == index + 1) {
+                mLevels.add(new Level(mChannels));
+            }
+            final Level parent = mLevels.get(index + 1);
+            final int a = level.size - 2;
+            final int b = level.size - 1;
+            final int slot = parent.appendSlot();
+            parent.start[slot] = level.start[a];
+            parent.end[slot] = level.end[b];
+            for (int channel = 0; channel < mChannels; channel++) {
+                parent.min[channel][slot] = Math.min(level.min[channel][a], level.min[channel][b]);
+                parent.max[channel][slot] = Math.max(level.max[channel][a], level.max[channel][b]);
+                parent.sum[channel][slot] = level.sum[channel][a] + level.sum[channel][b];
+                parent.sumSq[channel][slot] = level.sumSq[channel][a] + level.sumSq[channel][b];
+            }
+            index++;
+        }
+    }
+
+    public int getLevelCount() {
+        return mLevels.size();
+    }
+
+    public int getBlockCount(int level) {
+        return mLevels.get(level).size;
+    }
+
+    public long getBlockStartNanos(int level, int block) {
+        return mLevels.get(level).start[block];
+    }
+
+    public long getBlockEndNanos(int level, int block) {
+        return mLevels.get(level).end[block];
+    }
+
+    public int getBlockMin(int level, int channel, int block) {
+        return mLevels.get(level).min[channel][block];
+    }
+
+    public int getBlockMax(int level, int channel, int block) {
+        return mLevels.get(level).max[channel][block];
+    }
+
+    public double getBlockMean(int level, int channel, int block) {
+        return (double) mLevels.get(level).sum[channel][block] / (mBlockSize << level);
+    }
+
+    /**
+     * Picks the coarsest level whose blocks still span at most nanosPerColumn on average, for
+     * drawing a zoomed-out overview.
+     */
+    public int levelFor(long nanosPerColumn) {
+        final Level base = mLevels.get(0);
+        if (base.size == 0) {
+            return 0;
+        }
+        final double blockNanos = (double) (base.end[base.size - 1] - base.start[0]) / base.size;
+        int level = 0;
+        while (level + 1 < mLevels.size() && blockNanos * (2 << level) <= nanosPerColumn) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * @return The last block of the level starting at or before the time, or -1 if the time
+     *         is before the first block.
+     */
+    public int findBlock(int level, long timeNanos) {
+        final Level blocks = mLevels.get(level);
+        int low = 0;
+        int high = blocks.size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (blocks.start[mid] <= timeNanos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Finds the first frame at or after a point in time, reading at most one block of raw
+     * frames.
+     *
+     * @return A frame index in [0, frame count].
+     */
+    public long findFrame(long timeNanos, RawSource raw) throws IOException {
+        final int block = findBlock(0, timeNanos);
+        final long complete = (long) mLevels.get(0).size << mBlockShift;
+        long first = block < 0 ? 0 : (long) block << mBlockShift;
+        while (first < mFrames) {
+            final int count = (int) Math.min(mBlockSize, mFrames - first);
+            final int read = raw.read(first, count, mScratchTimes, mScratchValues);
+            for (int i = 0; i < read; i++) {
+                if (mScratchTimes[i] >= timeNanos) {
+                    return first + i;
+                }
+            }
+            first += read;
+            // The next complete block starts after the time, only the partial one may not.
+            if (read == 0 || first < complete) {
+                break;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Aggregates one channel over the frames [fromFrame, toFrame).
+     */
+    public void aggregate(long fromFrame, long toFrame, int channel, RawSource raw,
+                          Aggregate out) throws IOException {
+        out.reset();
+        long cursor = Math.max(0, fromFrame);
+        final long to = Math.min(toFrame, mFrames);
+        final long complete = (long) mLevels.get(0).size << mBlockShift;
+
+        while (cursor < to) {
+            if ((cursor & (mBlockSize - 1)) == 0 && cursor + mBlockSize <= Math.min(to, complete)) {
+                // Grow to the largest aligned block that still fits in the range.
+                int level = 0;
+                while (level + 1 < mLevels.size()) {
+                    final long span = (long) mBlockSize << (level + 1);
+                    if ((cursor & (span - 1)) != 0 || cursor + span > to
+                            || (cursor >> (mBlockShift + level + 1))
+                                    >= mLevels.get(level + 1).size) {
+                        break;
+                    }
+                    level++;
+                }
+                final Level blocks = mLevels.get(level);
+                final int block = (int) (cursor >> (mBlockShift + level));
+                out.add((long) mBlockSize << level, blocks.min[channel][block],
+                        blocks.max[channel][block], blocks.sum[channel][block],
+                        blocks.sumSq[channel][block]);
+                cursor += (long) mBlockSize << level;
+            } else if (cursor == complete && to == mFrames && mPartialCount > 0) {
+                out.add(mPartialCount, mPartialMin[channel], mPartialMax[channel],
+                        mPartialSum[channel], mPartialSumSq[channel]);
+                cursor = to;
+            } else {
+                final long next = Math.min(to, (cursor | (mBlockSize - 1)) + 1);
+                final int read = raw.read(cursor, (int) (next - cursor), mScratchTimes,
+                        mScratchValues);
+                for (int i = 0; i < read; i++) {
+                    out.add(mScratchValues[channel][i]);
+                }
+                if (read == 0) {
+                    return;
+                }
+                cursor += read;
+            }
+        }
+    }
+
+    /**
+     * Saves the finest level, from which {@link #readFrom} rebuilds the others.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        final Level base = mLevels.get(0);
+        out.writeInt(mChannels);
+        out.writeInt(mBlockShift);
+        out.writeLong(mFrames);
+        out.writeInt(base.size);
+        for (int block = 0; block < base.size; block++) {
+            out.writeLong(base.start[block]);
+            out.writeLong(base.end[block]);
+            for (int channel = 0; channel < mChannels; channel++) {
+                out.writeInt(base.min[channel][block]);
+                out.writeInt(base.max[channel][block]);
+                out.writeLong(base.sum[channel][block]);
+                out.writeDouble(base.sumSq[channel][block]);
+            }
+        }
+        out.writeInt(mPartialCount);
+        out.writeLong(mPartialStart);
+        out.writeLong(mPartialEnd);
+        for (int channel = 0; channel < mChannels; channel++) {
+            out.writeInt(mPartialMin[channel]);
+            out.writeInt(mPartialMax[channel]);
+            out.writeLong(mPartialSum[channel]);
+            out.writeDouble(mPartialSumSq[channel]);
+        }
+    }
+
+    public static SummaryPyramid readFrom(DataInputStream in) throws IOException {
+        final SummaryPyramid pyramid = new SummaryPyramid(in.readInt(), in.readInt());
+        final long frames = in.readLong();
+        final int blocks = in.readInt();
+        final Level base = pyramid.mLevels.get(0);
+        for (int block = 0; block < blocks; block++) {
+            final int slot = base.appendSlot();
+            base.start[slot] = in.readLong();
+            base.end[slot] = in.readLong();
+            for (int channel = 0; channel < pyramid.mChannels; channel++) {
+                base.min[channel][slot] = in.readInt();
+                base.max[channel][slot] = in.readInt();
+                base.sum[channel][slot] = in.readLong();
+                base.sumSq[channel][slot] = in.readDouble();
+            }
+            pyramid.carry(0);
+        }
+        pyramid.mPartialCount = in.readInt();
+        pyramid.mPartialStart = in.readLong();
+        pyramid.mPartialEnd = in.readLong();
+        for (int channel = 0; channel < pyramid.mChannels; channel++) {
+            pyramid.mPartialMin[channel] = in.readInt();
+            pyramid.mPartialMax[channel] = in.readInt();
+            pyramid.mPartialSum[channel] = in.readLong();
+            pyramid.mPartialSumSq[channel] = in.readDouble();
+        }
+        pyramid.mFrames = frames;
+        if (frames != ((long) blocks << pyramid.mBlockShift) + pyramid.mPartialCount) {
+            throw new IOException("Corrupt summary index");
+        }
+        return pyramid;
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+
+/**
+ * Marks up the app for systrace and Perfetto.
+ *
+ * <p>Sections on the calling thread use the public {@link Trace} API.  Async slices, which
+ * may end on another thread than they began, and counter tracks are only public from API 29;
+ * before that the same calls exist as hidden methods of {@link Trace} that are looked up once.
+ * Where neither is available they do nothing.  Those calls go through reflection and allocate,
+ * so they are meant for rare events and periodic counters, not for every sample.
+ */
+public final class SystemTrace {
+
+    // Trace.TRACE_TAG_APP, the tag of app sections.
+    private static final long TRACE_TAG_APP = 1L << 12;
+
+    private static final Method sIsEnabled;
+    private static final Method sAsyncBegin;
+    private static final Method sAsyncEnd;
+    private static final Method sCounter;
+    // Whether the methods above are the hidden ones, which take the tag first.
+    private static final boolean sTagged;
+
+    static {
+        final Method isEnabled = find("isEnabled");
+        sTagged = isEnabled == null;
+        if (sTagged) {
+            sIsEnabled = find("isTagEnabled", long.class);
+            sAsyncBegin = find("asyncTraceBegin", long.class, String.class, int.class);
+            sAsyncEnd = find("asyncTraceEnd", long.class, String.class, int.class);
+            sCounter = find("traceCounter", long.class, String.class, int.class);
+        } else {
+            sIsEnabled = isEnabled;
+            sAsyncBegin = find("beginAsyncSection", String.class, int.class);
+            sAsyncEnd = find("endAsyncSection", String.class, int.class);
+            sCounter = find("setCounter", String.class, long.class);
+        }
+    }
+
+    private static Method find(String name, Class<?>... parameterTypes) {
+        try {
+            return Trace.class.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // Hidden API access denied.
+            return null;
+        }
+    }
+
+    private SystemTrace() {
+    }
+
+    /**
+     * @return Whether app tracing is on, so work done only for the trace can be skipped.
+     */
+    public static boolean isEnabled() {
+        if (sIsEnabled == null) {
+            return false;
+        }
+        try {
+            final Object enabled = sTagged
+                    ? sIsEnabled.invoke(null, TRACE_TAG_APP) : sIsEnabled.invoke(null);
+            return Boolean.TRUE.equals(enabled);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Begins a section on the calling thread, which must end it with {@link #endSection}.
+     */
+    public static void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    public static void endSection() {
+        Trace.endSection();
+    }
+
+    /**
+     * Begins a slice that {@link #endAsync} ends, on any thread.  Slices of the same name need
+     * distinct cookies to overlap.
+     */
+    public static void beginAsync(String name, int cookie) {
+        invoke(sAsyncBegin, name, cookie);
+    }
+
+    public static void endAsync(String name, int cookie) {
+        invoke(sAsyncEnd, name, cookie);
+    }
+
+    /**
+     * Sets the value of a counter track.
+     */
+    public static void setCounter(String name, long value) {
+        if (sCounter == null) {
+            return;
+        }
+        try {
+            if (sTagged) {
+                sCounter.invoke(null, TRACE_TAG_APP, name,
+                        (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value)));
+            } else {
+                sCounter.invoke(null, name, value);
+            }
+        } catch (Exception e) {
+            // Tracing is best effort.
+        }
+    }
+
+    private static void invoke(Method method, String name, int cookie) {
+        if (method == null) {
+            return;
+        }
+        try {
+            if (sTagged) {
+                method.invoke(null, TRACE_TAG_APP, name, cookie);
+            } else {
+                method.invoke(null, name, cookie);
+            }
+        } catch (Exception e) {
+            // Tracing is best effort.
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams glove frames, mapping outputs and robot commands to a desktop over UDP, for watching
+ * them live while tuning.  {@link TelemetryReceiver} decodes the stream.
+ *
+ * <p>Records are appended to a batch on the producing thread and a batch is handed to a sender
+ * thread when it is full or {@link #FLUSH_INTERVAL_NANOS} old.  Batches come from a fixed pool
+ * and are handed over through a bounded queue; when the sender falls behind, the batch is
+ * dropped and its records counted rather than making the producer wait, so the exporter never
+ * slows the control path.  Nothing is allocated per record.
+ *
+ * <p>Datagram, big-endian: magic int, version short, record count short, batch number int (to
+ * count lost datagrams), base time long in elapsedRealtimeNanos.  Then per record: type byte,
+ * microseconds after the base time as an int, and by type: glove frame, channel count byte and
+ * an int per channel; mapping, active byte, heading and velocity floats; command, heading and
+ * velocity floats.
+ *
+ * <p>The add methods must be called from one thread.
+ */
+public final class TelemetryExporter {
+    private final static String TAG = TelemetryExporter.class.getSimpleName();
+
+    static final int MAGIC = 0x50414c55; // "PALU"
+    static final int VERSION = 1;
+    static final byte TYPE_GLOVE = 1;
+    static final byte TYPE_MAPPING = 2;
+    static final byte TYPE_COMMAND = 3;
+
+    public static final int DEFAULT_PORT = 9750;
+    // Fits an Ethernet MTU without fragmenting.
+    private static final int DATAGRAM_BYTES = 1400;
+    private static final int POOL_SIZE = 32;
+    private static final long FLUSH_INTERVAL_NANOS = 20000000L;
+    // Largest record: type, time, count and up to this many channels.
+    private static final int MAX_CHANNELS = 32;
+    private static final int MAX_RECORD_BYTES = 1 + 4 + 1 + 4 * MAX_CHANNELS;
+
+    private static final class Batch {
+        final ByteBuffer mBuffer = ByteBuffer.allocate(DATAGRAM_BYTES);
+        final DatagramPacket mPacket = new DatagramPacket(mBuffer.array(), DATAGRAM_BYTES);
+        int mRecords;
+        long mBaseNanos;
+    }
+
+    private final String mHost;
+    private final int mPort;
+    private final ArrayBlockingQueue<Batch> mFree = new ArrayBlockingQueue<Batch>(POOL_SIZE);
+    private final ArrayBlockingQueue<Batch> mFull = new ArrayBlockingQueue<Batch>(POOL_SIZE);
+    private Thread mSender;
+    private volatile DatagramSocket mSocket;
+
+    // Producer side.
+    private Batch mBatch;
+    private int mBatchNumber;
+
+    // Written by the sender thread only, except mRecordsDropped, which both threads add to.
+    private volatile long mRecordsSent;
+    private final AtomicLong mRecordsDropped = new AtomicLong();
+    private volatile long mDatagramsSent;
+    private volatile long mBytesSent;
+    private volatile long mSendErrors;
+
+    /**
+     * @param host Name or address of the desktop; resolved on the sender thread.
+     */
+    public TelemetryExporter(String host, int port) {
+        mHost = host;
+        mPort = port;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mFree.add(new Batch());
+        }
+    }
+
+    /**
+     * Starts the sender thread.
+     */
+    public void start() {
+        mSender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, "TelemetryExporter");
+        mSender.start();
+    }
+
+    /**
+     * Stops the sender thread.  Batches not sent yet are dropped.
+     */
+    public void stop() {
+        if (mSender != null) {
+            mSender.interrupt();
+            mSender = null;
+        }
+        final DatagramSocket socket = mSocket;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    private void send() {
+        final InetAddress address;
+        final DatagramSocket socket;
+        try {
+            address = InetAddress.getByName(mHost);
+            socket = new DatagramSocket();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to send telemetry to " + mHost + ":" + mPort, e);
+            return;
+        }
+        mSocket = socket;
+        Log.i(TAG, "Sending telemetry to " + address + ":" + mPort);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Batch batch = mFull.take();
+                batch.mPacket.setAddress(address);
+                batch.mPacket.setPort(mPort);
+                batch.mPacket.setLength(batch.mBuffer.position());
+                try {
+                    socket.send(batch.mPacket);
+                    mDatagramsSent++;
+                    mRecordsSent += batch.mRecords;
+                    mBytesSent += batch.mBuffer.position();
+                } catch (IOException e) {
+                    if (socket.isClosed()) {
+                        break;
+                    }
+                    // Typically nobody listening yet; the stream just goes on.
+                    mSendErrors++;
+                    mRecordsDropped.addAndGet(batch.mRecords);
+                }
+                mFree.offer(batch);
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Adds a glove frame as it arrived.
+     */
+    public void addGlove(long timeNanos, int[] values, int count) {
+        final int channels = Math.min(count, MAX_CHANNELS);
+        final ByteBuffer buffer = begin(timeNanos, TYPE_GLOVE);
+        if (buffer == null) {
+            return;
+        }
+        buffer.put((byte) channels);
+        for (int channel = 0; channel < channels; channel++) {
+            buffer.putInt(values[channel]);
+        }
+    }
+
+    /**
+     * Adds what the mapping made of a frame.
+     */
+    public void addMapping(long timeNanos, boolean active, float heading, float velocity) {
+        final ByteBuffer buffer = begin(timeNanos, TYPE_MAPPING);
+        if (buffer == null) {
+            return;
+        }
+        buffer.put((byte) (active ? 1 : 0));
+        buffer.putFloat(heading);
+        buffer.putFloat(velocity);
+    }
+
+    /**
+     * Adds a drive command sent to the robots.
+     */
+    public void addCommand(long timeNanos, float heading, float velocity) {
+        final ByteBuffer buffer = begin(timeNanos, TYPE_COMMAND);
+        if (buffer == null) {
+            return;
+        }
+        buffer.putFloat(heading);
+        buffer.putFloat(velocity);
+    }
+
+    // Starts a record, handing the batch over first if it is due.  Returns null if the
+    // record is dropped.
+    private ByteBuffer begin(long timeNanos, byte type) {
+        Batch batch = mBatch;
+        if (batch != null && (batch.mBuffer.remaining() < MAX_RECORD_BYTES
+                || timeNanos - batch.mBaseNanos >= FLUSH_INTERVAL_NANOS)) {
+            flush();
+            batch = null;
+        }
+        if (batch == null) {
+            batch = mFree.poll();
+            if (batch == null) {
+                mRecordsDropped.incrementAndGet();
+                return null;
+            }
+            batch.mBuffer.clear();
+            batch.mBuffer.putInt(MAGIC);
+            batch.mBuffer.putShort((short) VERSION);
+            batch.mBuffer.putShort((short) 0);
+            batch.mBuffer.putInt(mBatchNumber++);
+            batch.mBuffer.putLong(timeNanos);
+            batch.mRecords = 0;
+            batch.mBaseNanos = timeNanos;
+            mBatch = batch;
+        }
+        batch.mRecords++;
+        final ByteBuffer buffer = batch.mBuffer;
+        buffer.put(type);
+        buffer.putInt((int) ((timeNanos - batch.mBaseNanos) / 1000L));
+        return buffer;
+    }
+
+    /**
+     * Hands the current batch to the sender.  Call from the producing thread.
+     */
+    public void flush() {
+        final Batch batch = mBatch;
+        if (batch == null) {
+            return;
+        }
+        mBatch = null;
+        batch.mBuffer.putShort(6, (short) batch.mRecords);
+        if (!mFull.offer(batch)) {
+            mRecordsDropped.addAndGet(batch.mRecords);
+            mFree.offer(batch);
+        }
+    }
+
+    public long getRecordsSent() {
+        return mRecordsSent;
+    }
+
+    public long getRecordsDropped() {
+        return mRecordsDropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return mHost + ":" + mPort + ", " + mDatagramsSent + " datagrams, " + mRecordsSent
+                + " records, " + mBytesSent / 1024 + " kB sent, " + mRecordsDropped.get()
+                + " records dropped, " + mSendErrors + " send errors";
+    }
+}
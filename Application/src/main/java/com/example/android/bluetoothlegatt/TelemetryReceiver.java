@@ -0,0 +1,167 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Receives the telemetry sent by {@link TelemetryExporter} and prints, once a second, how much
+ * arrived, how many datagrams were lost on the way and the latest values.
+ *
+ * <p>Depends on nothing but the JDK, so it runs on a desktop:
+ * <pre>
+ * javac -d out TelemetryReceiver.java
+ * java -cp out com.example.android.bluetoothlegatt.TelemetryReceiver 9750
+ * </pre>
+ * The phone is pointed at the desktop when Stream telemetry is chosen in DeviceControlActivity,
+ * or with its TELEMETRY_HOST and TELEMETRY_PORT extras.
+ */
+public final class TelemetryReceiver {
+
+    // Kept in step with TelemetryExporter, which this file must compile without.
+    private static final int MAGIC = 0x50414c55;
+    private static final int VERSION = 1;
+    private static final int DEFAULT_PORT = 9750;
+    private static final byte TYPE_GLOVE = 1;
+    private static final byte TYPE_MAPPING = 2;
+    private static final byte TYPE_COMMAND = 3;
+    private static final long REPORT_INTERVAL_NANOS = 1000000000L;
+
+    /**
+     * What arrived since the last report, and the latest values.
+     */
+    public static final class Stats {
+        public long datagrams;
+        public long bytes;
+        public long gloveFrames;
+        public long mappings;
+        public long commands;
+        public long lostDatagrams;
+        public long malformed;
+        public int[] glove = new int[0];
+        public boolean active;
+        public float heading;
+        public float velocity;
+        public float commandHeading;
+        public float commandVelocity;
+        private boolean mStarted;
+        private int mNextBatch;
+
+        void reset() {
+            datagrams = bytes = gloveFrames = mappings = commands = lostDatagrams = malformed = 0;
+        }
+    }
+
+    private TelemetryReceiver() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        final DatagramSocket socket = new DatagramSocket(port);
+        socket.setReceiveBufferSize(1 << 20);
+        socket.setSoTimeout(200);
+        System.out.println("Listening on UDP port " + port);
+        final DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+        final Stats stats = new Stats();
+        long reported = System.nanoTime();
+        try {
+            while (true) {
+                try {
+                    packet.setLength(packet.getData().length);
+                    socket.receive(packet);
+                    decode(packet.getData(), packet.getLength(), stats);
+                } catch (SocketTimeoutException e) {
+                    // Report anyway.
+                }
+                final long now = System.nanoTime();
+                if (now - reported >= REPORT_INTERVAL_NANOS) {
+                    report(stats, (now - reported) / 1e9, System.out);
+                    stats.reset();
+                    reported = now;
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Adds one datagram to the stats.
+     *
+     * @return False if it is not telemetry or is cut short.
+     */
+    public static boolean decode(byte[] data, int length, Stats stats) {
+        final ByteBuffer in = ByteBuffer.wrap(data, 0, length);
+        try {
+            if (in.getInt() != MAGIC || in.getShort() != VERSION) {
+                stats.malformed++;
+                return false;
+            }
+            final int records = in.getShort() & 0xffff;
+            final int batch = in.getInt();
+            in.getLong(); // Base time; the report only needs the latest values.
+            if (stats.mStarted && batch - stats.mNextBatch > 0) {
+                stats.lostDatagrams += batch - stats.mNextBatch;
+            }
+            stats.mStarted = true;
+            stats.mNextBatch = batch + 1;
+            for (int record = 0; record < records; record++) {
+                final byte type = in.get();
+                in.getInt(); // Microseconds after the base time.
+                switch (type) {
+                    case TYPE_GLOVE:
+                        final int channels = in.get() & 0xff;
+                        if (stats.glove.length != channels) {
+                            stats.glove = new int[channels];
+                        }
+                        for (int channel = 0; channel < channels; channel++) {
+                            stats.glove[channel] = in.getInt();
+                        }
+                        stats.gloveFrames++;
+                        break;
+                    case TYPE_MAPPING:
+                        stats.active = in.get() != 0;
+                        stats.heading = in.getFloat();
+                        stats.velocity = in.getFloat();
+                        stats.mappings++;
+                        break;
+                    case TYPE_COMMAND:
+                        stats.commandHeading = in.getFloat();
+                        stats.commandVelocity = in.getFloat();
+                        stats.commands++;
+                        break;
+                    default:
+                        // The length of an unknown record is unknown too.
+                        stats.malformed++;
+                        return false;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            stats.malformed++;
+            return false;
+        }
+        stats.datagrams++;
+        stats.bytes += length;
+        return true;
+    }
+
+    public static void report(Stats stats, double seconds, PrintStream out) {
+        out.println(String.format("%.0f datagrams/s, %.1f kB/s, glove %.0f/s, mapping %.0f/s,"
+                        + " commands %.0f/s, %d lost, %d malformed",
+                stats.datagrams / seconds, stats.bytes / 1024.0 / seconds,
+                stats.gloveFrames / seconds, stats.mappings / seconds, stats.commands / seconds,
+                stats.lostDatagrams, stats.malformed));
+        if (stats.datagrams > 0) {
+            out.println(String.format("  glove %s, mapping %s heading %.1f velocity %.2f,"
+                            + " command heading %.1f velocity %.2f",
+                    Arrays.toString(stats.glove), stats.active ? "active" : "idle",
+                    stats.heading, stats.velocity, stats.commandHeading,
+                    stats.commandVelocity));
+        }
+    }
+}
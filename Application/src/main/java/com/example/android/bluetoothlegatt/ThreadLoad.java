@@ -0,0 +1,97 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Measures how busy the thread of a handler is: the share of wall time it spent on the CPU,
+ * sampled on that thread at a fixed period.
+ */
+public final class ThreadLoad {
+
+    private static final long DEFAULT_PERIOD_MILLIS = 1000;
+    private static final float SMOOTHING = 0.25f;
+
+    private final String mName;
+    private final Handler mHandler;
+    private final long mPeriodMillis;
+    private boolean mRunning;
+    private long mLastCpuNanos;
+    private long mLastWallNanos;
+    private volatile float mBusy;
+    private volatile float mPeakBusy;
+
+    public ThreadLoad(String name, Handler handler) {
+        this(name, handler, DEFAULT_PERIOD_MILLIS);
+    }
+
+    public ThreadLoad(String name, Handler handler, long periodMillis) {
+        mName = name;
+        mHandler = handler;
+        mPeriodMillis = periodMillis;
+    }
+
+    /**
+     * Starts sampling.  May be called from any thread.
+     */
+    public void start() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mRunning) {
+                    mRunning = true;
+                    mLastCpuNanos = Debug.threadCpuTimeNanos();
+                    mLastWallNanos = SystemClock.elapsedRealtimeNanos();
+                    mHandler.postDelayed(mSample, mPeriodMillis);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops sampling.  May be called from any thread.
+     */
+    public void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                mHandler.removeCallbacks(mSample);
+            }
+        });
+    }
+
+    private final Runnable mSample = new Runnable() {
+        @Override
+        public void run() {
+            final long cpu = Debug.threadCpuTimeNanos();
+            final long wall = SystemClock.elapsedRealtimeNanos();
+            if (cpu >= 0 && wall > mLastWallNanos) {
+                final float busy = (float) (cpu - mLastCpuNanos) / (wall - mLastWallNanos);
+                mBusy += SMOOTHING * (busy - mBusy);
+                mPeakBusy = Math.max(mPeakBusy, busy);
+            }
+            mLastCpuNanos = cpu;
+            mLastWallNanos = wall;
+            mHandler.postDelayed(this, mPeriodMillis);
+        }
+    };
+
+    /**
+     * @return Smoothed share of time the thread was busy, 0 to 1.
+     */
+    public float getBusyFraction() {
+        return mBusy;
+    }
+
+    public float getPeakBusyFraction() {
+        return mPeakBusy;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " busy " + Math.round(100 * mBusy) + "% (peak "
+                + Math.round(100 * mPeakBusy) + "%)";
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Fixed-memory store for the recent history of a group of sampled channels, such as the glove
+ * sensors or the commands sent to the robot.
+ *
+ * <p>Samples are frames: one timestamp and one int value per channel, kept in primitive ring
+ * buffers that are allocated up front.  A frame stays readable until it is older than the
+ * retention window or is overwritten by newer frames, whichever comes first, so the store can
+ * run for hours at full notification rate without growing the heap.
+ *
+ * <p>There must be a single writer thread calling {@link #append}.  Appends take no lock: the
+ * frame is written first and then published through a volatile counter.  Readers on any thread
+ * copy frames into a {@link Snapshot} and check the counter again afterwards, like a seqlock, so
+ * a frame the writer overwrote during the copy is never returned.
+ */
+public final class TimeSeriesStore {
+
+    // Frames held back from readers, so the writer needs this many appends during one read
+    // before a reader has to drop anything.
+    private static final int GUARD = 16;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final String[] mChannelNames;
+    private final int mCapacity;
+    private final int mMask;
+    private final long mRetentionNanos;
+    private final long[] mTimes;
+    private final int[][] mValues;
+
+    // Number of frames ever appended.  Written by the writer thread only.
+    private volatile long mCount;
+
+    /**
+     * @param channelNames One name per channel.
+     * @param minCapacity Minimum number of frames to keep; rounded up to a power of two.
+     * @param retentionNanos Frames older than this, relative to the newest frame, are not
+     *                       returned.
+     */
+    public TimeSeriesStore(String[] channelNames, int minCapacity, long retentionNanos) {
+        if (channelNames.length == 0 || minCapacity < 1) {
+            throw new IllegalArgumentException("Need at least one channel and one frame");
+        }
+        int capacity = Integer.highestOneBit(minCapacity + GUARD - 1) << 1;
+        mChannelNames = channelNames.clone();
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mRetentionNanos = retentionNanos;
+        mTimes = new long[capacity];
+        mValues = new int[channelNames.length][capacity];
+    }
+
+    /**
+     * Creates a store sized for a retention window at a given sample rate.
+     */
+    public static TimeSeriesStore forRate(String[] channelNames, float samplesPerSecond,
+                                          long retentionNanos) {
+        final long frames = (long) Math.ceil(samplesPerSecond * retentionNanos / 1e9);
+        return new TimeSeriesStore(channelNames, (int) Math.min(frames, 1 << 20),
+                retentionNanos);
+    }
+
+    public int getChannelCount() {
+        return mChannelNames.length;
+    }
+
+    public String getChannelName(int channel) {
+        return mChannelNames[channel];
+    }
+
+    public long getRetentionNanos() {
+        return mRetentionNanos;
+    }
+
+    /**
+     * @return Number of frames ever appended.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Appends a frame.  Must only be called from the writer thread.  Timestamps that go
+     * backwards are clamped to the previous one, so the buffer stays sorted by time.
+     *
+     * @param timeNanos Timestamp of the frame.
+     * @param values One value per channel; extra entries are ignored and missing ones read
+     *               as zero.
+     * @param length Number of valid entries in values.
+     */
+    public void append(long timeNanos, int[] values, int length) {
+        final long count = mCount;
+        if (count > 0) {
+            timeNanos = Math.max(timeNanos, mTimes[(int) ((count - 1) & mMask)]);
+        }
+        final int slot = (int) (count & mMask);
+        mTimes[slot] = timeNanos;
+        for (int channel = 0; channel < mValues.length; channel++) {
+            mValues[channel][slot] = channel < length ? values[channel] : 0;
+        }
+        mCount = count + 1;
+    }
+
+    /**
+     * Appends a frame of two channels without an array.
+     */
+    public void append(long timeNanos, int value0, int value1) {
+        final long count = mCount;
+        if (count > 0) {
+            timeNanos = Math.max(timeNanos, mTimes[(int) ((count - 1) & mMask)]);
+        }
+        final int slot = (int) (count & mMask);
+        mTimes[slot] = timeNanos;
+        mValues[0][slot] = value0;
+        if (mValues.length > 1) {
+            mValues[1][slot] = value1;
+        }
+        for (int channel = 2; channel < mValues.length; channel++) {
+            mValues[channel][slot] = 0;
+        }
+        mCount = count + 1;
+    }
+
+    /**
+     * Copies the value of the newest frame on a channel.
+     *
+     * @return The value, or defaultValue if the store is empty.
+     */
+    public int latest(int channel, int defaultValue) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final long count = mCount;
+            if (count == 0) {
+                return defaultValue;
+            }
+            final int value = mValues[channel][(int) ((count - 1) & mMask)];
+            if (mCount - count < mCapacity - GUARD) {
+                return value;
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return A snapshot able to hold every frame this store can return.  Allocate it once
+     *         per reader and reuse it.
+     */
+    public Snapshot newSnapshot() {
+        return new Snapshot(mValues.length, mCapacity - GUARD);
+    }
+
+    /**
+     * Copies every retained frame with fromNanos &lt;= time &lt;= toNanos into a snapshot.
+     * The frames in the snapshot are consistent: none of them was being written during the
+     * copy.
+     *
+     * @return The number of frames copied.
+     */
+    public int query(long fromNanos, long toNanos, Snapshot out) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final long end = mCount;
+            if (end == 0) {
+                return out.setEmpty(end);
+            }
+            final long begin = Math.max(0, end - (mCapacity - GUARD));
+            final long newest = mTimes[(int) ((end - 1) & mMask)];
+            final long from = Math.max(fromNanos, newest - mRetentionNanos);
+            final long first = lowerBound(begin, end, from);
+            final long last =
+                    toNanos == Long.MAX_VALUE ? end : lowerBound(first, end, toNanos + 1);
+            final int size = (int) (last - first);
+            copy(first, size, out);
+            out.set(end, first, size);
+
+            // Anything at or before this index may have been overwritten during the copy.
+            final long overwritten = mCount - mCapacity;
+            if (overwritten < first) {
+                return size;
+            }
+            if (overwritten < last) {
+                // Keep the part that is still intact rather than starting over.
+                out.drop((int) (overwritten - first + 1));
+                return out.size;
+            }
+        }
+        return out.setEmpty(mCount);
+    }
+
+    /**
+     * Copies the retained frames of the last windowNanos before the newest frame.
+     */
+    public int queryLatest(long windowNanos, Snapshot out) {
+        final long count = mCount;
+        if (count == 0) {
+            return out.setEmpty(count);
+        }
+        final long newest = mTimes[(int) ((count - 1) & mMask)];
+        return query(newest - windowNanos, Long.MAX_VALUE, out);
+    }
+
+    // First logical index in [begin, end) whose time is >= timeNanos.
+    private long lowerBound(long begin, long end, long timeNanos) {
+        long low = begin;
+        long high = end;
+        while (low < high) {
+            final long mid = (low + high) >>> 1;
+            if (mTimes[(int) (mid & mMask)] < timeNanos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void copy(long first, int size, Snapshot out) {
+        final int start = (int) (first & mMask);
+        final int head = Math.min(size, mCapacity - start);
+        System.arraycopy(mTimes, start, out.times, 0, head);
+        System.arraycopy(mTimes, 0, out.times, head, size - head);
+        for (int channel = 0; channel < mValues.length; channel++) {
+            System.arraycopy(mValues[channel], start, out.values[channel], 0, head);
+            System.arraycopy(mValues[channel], 0, out.values[channel], head, size - head);
+        }
+    }
+
+    /**
+     * Frames copied out of a store by a query, oldest first.  Only the first {@link #size}
+     * entries of each array are valid.
+     */
+    public static final class Snapshot {
+        public final long[] times;
+        public final int[][] values;
+        public int size;
+        // Logical index of the first frame, and the store count the copy was taken at.
+        public long firstIndex;
+        public long count;
+
+        Snapshot(int channels, int capacity) {
+            times = new long[capacity];
+            values = new int[channels][capacity];
+        }
+
+        int setEmpty(long storeCount) {
+            return set(storeCount, storeCount, 0);
+        }
+
+        int set(long storeCount, long first, int frames) {
+            count = storeCount;
+            firstIndex = first;
+            size = frames;
+            return frames;
+        }
+
+        void drop(int frames) {
+            final int remaining = size - frames;
+            System.arraycopy(times, frames, times, 0, remaining);
+            for (int[] channel : values) {
+                System.arraycopy(channel, frames, channel, 0, remaining);
+            }
+            firstIndex += frames;
+            size = remaining;
+        }
+    }
+}
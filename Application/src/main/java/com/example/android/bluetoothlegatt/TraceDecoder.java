@@ -0,0 +1,126 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Prints a trace dumped by {@link TraceLog} as text, the events of all threads merged in time
+ * order, one per line: seconds since the first event, thread, event and its arguments.
+ *
+ * <p>Depends on nothing but the JDK, so it runs on a desktop:
+ * <pre>
+ * javac -d out TraceDecoder.java
+ * java -cp out com.example.android.bluetoothlegatt.TraceDecoder crash.trace
+ * </pre>
+ */
+public final class TraceDecoder {
+
+    // Kept in step with TraceLog, which this file must compile without.
+    private static final int MAGIC = 0x50414c54;
+    private static final int VERSION = 1;
+    private static final String[] LEVELS = { "?", "?", "V", "D", "I", "W", "E", "A" };
+
+    private static final class Record {
+        final long timeNanos;
+        final String thread;
+        final int event;
+        final double[] args;
+
+        Record(long timeNanos, String thread, int event, double[] args) {
+            this.timeNanos = timeNanos;
+            this.thread = thread;
+            this.event = event;
+            this.args = args;
+        }
+    }
+
+    private TraceDecoder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: TraceDecoder <trace file>...");
+            System.exit(2);
+        }
+        for (String path : args) {
+            final InputStream in = new BufferedInputStream(new FileInputStream(path));
+            try {
+                decode(in, System.out);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    public static void decode(InputStream stream, PrintStream out) throws IOException {
+        final DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a trace");
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+
+        final int events = in.readInt();
+        final String[] names = new String[events];
+        final int[] levels = new int[events];
+        final String[][] argNames = new String[events][];
+        for (int event = 0; event < events; event++) {
+            names[event] = in.readUTF();
+            levels[event] = in.readByte();
+            argNames[event] = new String[in.readByte()];
+            for (int arg = 0; arg < argNames[event].length; arg++) {
+                argNames[event][arg] = in.readUTF();
+            }
+        }
+
+        final List<Record> records = new ArrayList<Record>();
+        final int threads = in.readInt();
+        for (int thread = 0; thread < threads; thread++) {
+            final String name = in.readUTF() + "/" + in.readLong();
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final long time = in.readLong();
+                final int event = in.readShort();
+                if (event < 0 || event >= events) {
+                    throw new IOException("Unknown event " + event);
+                }
+                final double[] values = new double[argNames[event].length];
+                for (int arg = 0; arg < values.length; arg++) {
+                    values[arg] = in.readDouble();
+                }
+                records.add(new Record(time, name, event, values));
+            }
+        }
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+                return a.timeNanos < b.timeNanos ? -1 : (a.timeNanos == b.timeNanos ? 0 : 1);
+            }
+        });
+
+        final long origin = records.isEmpty() ? 0 : records.get(0).timeNanos;
+        final StringBuilder line = new StringBuilder();
+        for (Record record : records) {
+            line.setLength(0);
+            line.append(String.format("%12.6f ", (record.timeNanos - origin) / 1e9));
+            final int level = levels[record.event];
+            line.append(level >= 0 && level < LEVELS.length ? LEVELS[level] : "?");
+            line.append(' ').append(record.thread).append(' ').append(names[record.event]);
+            for (int arg = 0; arg < record.args.length; arg++) {
+                line.append(' ').append(argNames[record.event][arg]).append('=')
+                        .append(record.args[arg]);
+            }
+            out.println(line);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cheap structured tracing for the per-sample paths, where building a log string for every
+ * frame costs more than the work being logged.
+ *
+ * <p>Events are registered once, with a name, a log level and the names of their arguments,
+ * and then logged by id with up to {@link #MAX_ARGS} primitive arguments.  Logging checks the
+ * level of the event first and otherwise only stores the time, the id and the arguments in a
+ * ring owned by the calling thread, without locks, formatting or allocation.  Each thread
+ * keeps its latest {@link #CAPACITY} events.  The ring of a thread that ended is taken over by
+ * the next thread of the same name, as when a HandlerThread is recreated, or else dropped once
+ * it has been dumped.
+ *
+ * <p>The rings are written out on demand with {@link #dump}, or when the app crashes after
+ * {@link #installCrashDump}.  The file is read with {@link TraceDecoder}, which needs nothing
+ * but a JVM.  Format, big-endian: magic and version ints; the event count, then per event its
+ * name, level byte, argument count byte and argument names; the thread count, then per thread
+ * its name, id and record count, and per record the time in elapsedRealtimeNanos, the event id
+ * as a short and the event's arguments as doubles.
+ */
+public final class TraceLog {
+    private final static String TAG = TraceLog.class.getSimpleName();
+
+    static final int MAGIC = 0x50414c54; // "PALT"
+    static final int VERSION = 1;
+    public static final int MAX_ARGS = 6;
+    public static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    // Time, event id, arguments.
+    private static final int RECORD_LONGS = 2 + MAX_ARGS;
+
+    /**
+     * The events of one thread.  Written only by that thread; dumped from any.
+     */
+    private static final class Ring {
+        // The thread writing the ring, replaced under sLock when another thread takes over.
+        WeakReference<Thread> mOwner;
+        String mThreadName;
+        long mThreadId;
+        final long[] mRecords = new long[CAPACITY * RECORD_LONGS];
+        // Number of events written; event n is in slot n & MASK.
+        volatile long mHead;
+
+        Ring(Thread thread) {
+            own(thread);
+        }
+
+        void own(Thread thread) {
+            mOwner = new WeakReference<Thread>(thread);
+            mThreadName = thread.getName();
+            mThreadId = thread.getId();
+        }
+
+        boolean isOwnerAlive() {
+            final Thread owner = mOwner.get();
+            return owner != null && owner.isAlive();
+        }
+    }
+
+    private static final Object sLock = new Object();
+    private static final List<String> sNames = new ArrayList<String>();
+    private static final List<String[]> sArgNames = new ArrayList<String[]>();
+    // Level of each event, replaced as a whole when an event is registered.
+    private static volatile int[] sLevels = new int[0];
+    private static volatile int sMinLevel = Log.VERBOSE;
+    private static final List<Ring> sRings = new ArrayList<Ring>();
+    private static final ThreadLocal<Ring> sRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            final Thread thread = Thread.currentThread();
+            synchronized (sLock) {
+                // The events of an ended thread of the same name carry on in its ring, so a
+                // thread recreated over and over does not add a ring every time.
+                for (Ring ring : sRings) {
+                    if (!ring.isOwnerAlive() && ring.mThreadName.equals(thread.getName())) {
+                        ring.own(thread);
+                        return ring;
+                    }
+                }
+                final Ring ring = new Ring(thread);
+                sRings.add(ring);
+                return ring;
+            }
+        }
+    };
+    private static boolean sCrashDumpInstalled;
+
+    private TraceLog() {
+    }
+
+    /**
+     * Registers an event.  Call once per event, typically from a static initializer.
+     *
+     * @param level Log level of the event, as in {@link Log}.
+     * @param argNames Names of the arguments the event is logged with.
+     * @return The id to log the event with.
+     */
+    public static int register(String name, int level, String... argNames) {
+        if (argNames.length > MAX_ARGS) {
+            throw new IllegalArgumentException(name + " has more than " + MAX_ARGS
+                    + " arguments");
+        }
+        synchronized (sLock) {
+            final int id = sNames.size();
+            sNames.add(name);
+            sArgNames.add(argNames.clone());
+            final int[] levels = new int[id + 1];
+            System.arraycopy(sLevels, 0, levels, 0, id);
+            levels[id] = level;
+            sLevels = levels;
+            return id;
+        }
+    }
+
+    /**
+     * Sets the lowest level that is recorded.  Events below it cost one comparison.
+     */
+    public static void setLevel(int level) {
+        sMinLevel = level;
+    }
+
+    /**
+     * @return Whether the event would be recorded, to guard work done only to log it.
+     */
+    public static boolean isLoggable(int event) {
+        return sLevels[event] >= sMinLevel;
+    }
+
+    public static void log(int event) {
+        if (isLoggable(event)) {
+            record(event, 0, 0, 0, 0, 0, 0);
+        }
+    }
+
+    public static void log(int event, double a) {
+        if (isLoggable(event)) {
+            record(event, a, 0, 0, 0, 0, 0);
+        }
+    }
+
+    public static void log(int event, double a, double b) {
+        if (isLoggable(event)) {
+            record(event, a, b, 0, 0, 0, 0);
+        }
+    }
+
+    public static void log(int event, double a, double b, double c) {
+        if (isLoggable(event)) {
+            record(event, a, b, c, 0, 0, 0);
+        }
+    }
+
+    public static void log(int event, double a, double b, double c, double d) {
+        if (isLoggable(event)) {
+            record(event, a, b, c, d, 0, 0);
+        }
+    }
+
+    public static void log(int event, double a, double b, double c, double d, double e) {
+        if (isLoggable(event)) {
+            record(event, a, b, c, d, e, 0);
+        }
+    }
+
+    public static void log(int event, double a, double b, double c, double d, double e,
+                           double f) {
+        if (isLoggable(event)) {
+            record(event, a, b, c, d, e, f);
+        }
+    }
+
+    private static void record(int event, double a, double b, double c, double d, double e,
+                               double f) {
+        final Ring ring = sRing.get();
+        final long head = ring.mHead;
+        final long[] records = ring.mRecords;
+        final int base = (int) (head & MASK) * RECORD_LONGS;
+        records[base] = SystemClock.elapsedRealtimeNanos();
+        records[base + 1] = event;
+        records[base + 2] = Double.doubleToRawLongBits(a);
+        records[base + 3] = Double.doubleToRawLongBits(b);
+        records[base + 4] = Double.doubleToRawLongBits(c);
+        records[base + 5] = Double.doubleToRawLongBits(d);
+        records[base + 6] = Double.doubleToRawLongBits(e);
+        records[base + 7] = Double.doubleToRawLongBits(f);
+        // Publishes the record.
+        ring.mHead = head + 1;
+    }
+
+    /**
+     * Writes the events of all threads to a file.  May be called from any thread; threads
+     * keep logging meanwhile, and events they overwrite during the dump are left out.  The
+     * rings of threads that had ended are dropped afterwards.
+     */
+    public static void dump(File file) throws IOException {
+        final Ring[] rings;
+        final String[] threadNames;
+        final long[] threadIds;
+        final boolean[] ended;
+        synchronized (sLock) {
+            rings = sRings.toArray(new Ring[sRings.size()]);
+            threadNames = new String[rings.length];
+            threadIds = new long[rings.length];
+            ended = new boolean[rings.length];
+            for (int i = 0; i < rings.length; i++) {
+                threadNames[i] = rings[i].mThreadName;
+                threadIds[i] = rings[i].mThreadId;
+                ended[i] = !rings[i].isOwnerAlive();
+            }
+        }
+        final long[][] copies = new long[rings.length][];
+        final long[] starts = new long[rings.length];
+        final long[] ends = new long[rings.length];
+        for (int i = 0; i < rings.length; i++) {
+            ends[i] = rings[i].mHead;
+            copies[i] = rings[i].mRecords.clone();
+            // The owner may have overwritten records while they were copied: those up to the
+            // current head - CAPACITY, and the one it is writing at the head.
+            starts[i] = Math.max(0, rings[i].mHead + 1 - CAPACITY);
+        }
+        // Events are only ever added, so this covers every event copied above.
+        final String[] names;
+        final String[][] argNames;
+        synchronized (sLock) {
+            names = sNames.toArray(new String[sNames.size()]);
+            argNames = sArgNames.toArray(new String[sArgNames.size()][]);
+            // Everything an ended thread logged has been copied.  Unless another thread has
+            // taken its ring over since, nothing will be added to it.
+            for (int i = 0; i < rings.length; i++) {
+                if (ended[i] && !rings[i].isOwnerAlive()) {
+                    sRings.remove(rings[i]);
+                }
+            }
+        }
+        final int[] levels = sLevels;
+
+        final File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.length);
+            for (int event = 0; event < names.length; event++) {
+                out.writeUTF(names[event]);
+                out.writeByte(levels[event]);
+                out.writeByte(argNames[event].length);
+                for (String argName : argNames[event]) {
+                    out.writeUTF(argName);
+                }
+            }
+            out.writeInt(rings.length);
+            for (int i = 0; i < rings.length; i++) {
+                final long[] records = copies[i];
+                out.writeUTF(threadNames[i]);
+                out.writeLong(threadIds[i]);
+                out.writeInt((int) Math.max(0, ends[i] - starts[i]));
+                for (long n = starts[i]; n < ends[i]; n++) {
+                    final int base = (int) (n & MASK) * RECORD_LONGS;
+                    final int event = (int) records[base + 1];
+                    out.writeLong(records[base]);
+                    out.writeShort(event);
+                    for (int arg = 0; arg < argNames[event].length; arg++) {
+                        out.writeDouble(Double.longBitsToDouble(records[base + 2 + arg]));
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Dumps the events to a file when a thread dies of an uncaught exception, before the
+     * previously installed handler runs.  Only the first call has an effect.
+     */
+    public static void installCrashDump(final File file) {
+        synchronized (sLock) {
+            if (sCrashDumpInstalled) {
+                return;
+            }
+            sCrashDumpInstalled = true;
+        }
+        final Thread.UncaughtExceptionHandler previous =
+                Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable throwable) {
+                try {
+                    dump(file);
+                    Log.e(TAG, "Trace dumped to " + file);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Unable to dump the trace", t);
+                }
+                if (previous != null) {
+                    previous.uncaughtException(thread, throwable);
+                }
+            }
+        });
+    }
+}
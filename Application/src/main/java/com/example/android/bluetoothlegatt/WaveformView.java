@@ -0,0 +1,231 @@
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.Arrays;
+
+/**
+ * Plots the recent history of every channel of a {@link TimeSeriesStore}.
+ *
+ * <p>The samples in the visible window are decimated to the pixel width: each column is drawn
+ * as the range between the smallest and the largest sample that falls into it, so the shape
+ * of the signal is kept however many samples there are.  Drawing cost therefore depends on
+ * the width of the view and not on the sample rate.  All buffers are allocated up front or on
+ * a size change, and however often {@link #onDataChanged} is called, the view redraws at most
+ * once per display frame.
+ */
+public class WaveformView extends View {
+
+    private static final long DEFAULT_WINDOW_NANOS = 5L * 1000000000L;
+    private static final int[] CHANNEL_COLORS = {
+            Color.RED, Color.GREEN, Color.BLUE, Color.GRAY
+    };
+    // Weight of the latest frame in the average draw time.
+    private static final float DRAW_TIME_WEIGHT = 0.05f;
+
+    private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private TimeSeriesStore mStore;
+    private TimeSeriesStore.Snapshot mSnapshot;
+    private long mWindowNanos = DEFAULT_WINDOW_NANOS;
+
+    // Per channel and column: the sample range, and whether any sample fell into the column.
+    private int mColumns;
+    private int[][] mMin;
+    private int[][] mMax;
+    private boolean[] mHasSample;
+    private Path[] mPaths;
+
+    private volatile boolean mInvalidatePending;
+
+    private long mFrames;
+    private float mAverageDrawMillis;
+    private float mMaxDrawMillis;
+
+    public WaveformView(Context context) {
+        super(context);
+        init();
+    }
+
+    public WaveformView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public WaveformView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init();
+    }
+
+    private void init() {
+        mPaint.setStyle(Paint.Style.STROKE);
+        // Zero is a one pixel hairline at any density.
+        mPaint.setStrokeWidth(0);
+    }
+
+    /**
+     * Sets the store to plot and how much of its history to show.  Must be called on the UI
+     * thread.
+     */
+    public void setSource(TimeSeriesStore store, long windowNanos) {
+        mStore = store;
+        mSnapshot = store.newSnapshot();
+        mWindowNanos = windowNanos;
+        allocateColumns(mColumns);
+        invalidate();
+    }
+
+    /**
+     * Tells the view new samples were appended.  Cheap enough to call for every sample, from
+     * any thread.
+     */
+    public void onDataChanged() {
+        if (!mInvalidatePending) {
+            mInvalidatePending = true;
+            postInvalidateOnAnimation();
+        }
+    }
+
+    /**
+     * @return Number of frames drawn.
+     */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return Smoothed time spent in {@link #onDraw}, in milliseconds.
+     */
+    public float getAverageDrawMillis() {
+        return mAverageDrawMillis;
+    }
+
+    public float getMaxDrawMillis() {
+        return mMaxDrawMillis;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        allocateColumns(Math.max(0, w - getPaddingLeft() - getPaddingRight()));
+    }
+
+    private void allocateColumns(int columns) {
+        mColumns = columns;
+        if (mStore == null) {
+            return;
+        }
+        final int channels = mStore.getChannelCount();
+        mMin = new int[channels][columns];
+        mMax = new int[channels][columns];
+        mHasSample = new boolean[columns];
+        mPaths = new Path[channels];
+        for (int channel = 0; channel < channels; channel++) {
+            mPaths[channel] = new Path();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        mInvalidatePending = false;
+        if (mStore == null || mColumns == 0) {
+            return;
+        }
+        final long start = System.nanoTime();
+
+        final int size = mStore.queryLatest(mWindowNanos, mSnapshot);
+        if (size > 0) {
+            decimate(size);
+            draw(canvas);
+        }
+
+        final float drawMillis = (System.nanoTime() - start) / 1e6f;
+        mAverageDrawMillis = mFrames == 0 ? drawMillis
+                : mAverageDrawMillis + DRAW_TIME_WEIGHT * (drawMillis - mAverageDrawMillis);
+        mMaxDrawMillis = Math.max(mMaxDrawMillis, drawMillis);
+        mFrames++;
+    }
+
+    // Folds the snapshot into one min/max pair per column.
+    private void decimate(int size) {
+        final long[] times = mSnapshot.times;
+        final long end = times[size - 1];
+        final long begin = end - mWindowNanos;
+        final int channels = mMin.length;
+        Arrays.fill(mHasSample, false);
+
+        for (int i = 0; i < size; i++) {
+            int column = (int) ((times[i] - begin) * mColumns / mWindowNanos);
+            if (column < 0) {
+                continue;
+            }
+            if (column >= mColumns) {
+                column = mColumns - 1;
+            }
+            final boolean first = !mHasSample[column];
+            mHasSample[column] = true;
+            for (int channel = 0; channel < channels; channel++) {
+                final int value = mSnapshot.values[channel][i];
+                if (first || value < mMin[channel][column]) {
+                    mMin[channel][column] = value;
+                }
+                if (first || value > mMax[channel][column]) {
+                    mMax[channel][column] = value;
+                }
+            }
+        }
+    }
+
+    private void draw(Canvas canvas) {
+        final int channels = mMin.length;
+
+        // Scale to the range of everything visible.
+        int low = Integer.MAX_VALUE;
+        int high = Integer.MIN_VALUE;
+        for (int column = 0; column < mColumns; column++) {
+            if (!mHasSample[column]) {
+                continue;
+            }
+            for (int channel = 0; channel < channels; channel++) {
+                low = Math.min(low, mMin[channel][column]);
+                high = Math.max(high, mMax[channel][column]);
+            }
+        }
+        final float top = getPaddingTop();
+        final float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        final float scale = high > low ? height / (high - low) : 0.0f;
+        final float left = getPaddingLeft();
+
+        for (int channel = 0; channel < channels; channel++) {
+            final Path path = mPaths[channel];
+            path.rewind();
+            boolean started = false;
+            for (int column = 0; column < mColumns; column++) {
+                if (!mHasSample[column]) {
+                    continue;
+                }
+                final float x = left + column;
+                final float yMin = top + height - (mMin[channel][column] - low) * scale;
+                final float yMax = top + height - (mMax[channel][column] - low) * scale;
+                if (started) {
+                    path.lineTo(x, yMin);
+                } else {
+                    path.moveTo(x, yMin);
+                    started = true;
+                }
+                if (yMax != yMin) {
+                    path.lineTo(x, yMax);
+                }
+            }
+            mPaint.setColor(CHANNEL_COLORS[channel % CHANNEL_COLORS.length]);
+            canvas.drawPath(path, mPaint);
+        }
+    }
+}
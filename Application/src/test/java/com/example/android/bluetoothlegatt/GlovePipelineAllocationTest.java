@@ -0,0 +1,259 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+
+import com.orbotix.command.RollCommand;
+import com.orbotix.command.SleepCommand;
+import com.orbotix.command.VersioningResponse;
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.DeviceCommand;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the glove path does not allocate per sample once it is warmed up.
+ *
+ * <p>Builds the {@link GlovePipeline} the activity runs, every stage enabled, in front of a
+ * group of robots that only take commands, and drives it with notifications from a fake glove
+ * sweeping across the sensors.  Bytes allocated by the test thread on the glove path are
+ * counted by the JVM, per stage and in total.
+ *
+ * <p>Runs against the mockable android.jar, whose handlers run nothing and whose clock stands
+ * still.  The test keeps its own clock instead, advanced by one sample interval per
+ * notification: the pipeline reads it, and the jitter buffer and the robots' schedulers are
+ * run at each arrival, as their timers would be.  Sending happens on the schedulers' threads
+ * in the app, so it is left out of the count.
+ */
+public class GlovePipelineAllocationTest {
+
+    private static final int WARMUP_SAMPLES = 5000;
+    private static final int SAMPLES = 20000;
+    // Well under one object per sample: one-off allocations fit, one per frame does not.
+    private static final float MAX_BYTES_PER_SAMPLE = 0.5f;
+    private static final long SAMPLE_INTERVAL_NANOS = 20000000L;
+    private static final int ROBOTS = 2;
+
+    @Test
+    public void perSamplePathStaysWithinBudget() {
+        final FrameSchema schema = BluetoothLeService.GLOVE_SCHEMA;
+        final int channels = schema.getChannelCount();
+        final Handler handler = new Handler();
+        final InputWatchdog watchdog = new InputWatchdog(new InputWatchdog.Target() {
+            @Override
+            public void stop() {
+            }
+        });
+        final GlovePipeline glove = new GlovePipeline(schema, new SensorCalibration(channels),
+                watchdog, handler, new GlovePipeline.Listener() {
+                    @Override
+                    public void onFrame(long timeNanos, int[] values, int count) {
+                    }
+                });
+        final RobotGroup robots = new RobotGroup(handler, null);
+        for (int i = 0; i < ROBOTS; i++) {
+            robots.add(new FakeRobot("robot-" + i));
+        }
+        glove.setRobots(robots);
+        final Pipeline pipeline = glove.getPipeline();
+        final Pipeline.AllocationCounter counter = newThreadCounter();
+        pipeline.setAllocationCounter(counter);
+        pipeline.setTopology(pipeline.getDefaultTopology());
+        pipeline.setEnabled(GlovePipeline.STAGE_SHAPE, true);
+
+        // A hand sweeping across the sensors, as preallocated notifications.
+        final byte[][] payloads = new byte[256][];
+        for (int i = 0; i < payloads.length; i++) {
+            final double phase = 2 * Math.PI * i / payloads.length;
+            payloads[i] = new byte[2 * channels];
+            for (int channel = 0; channel < channels; channel++) {
+                final int value = (int) (25000 + 20000 * Math.sin(phase + channel));
+                payloads[i][2 * channel] = (byte) (value >> 8);
+                payloads[i][2 * channel + 1] = (byte) value;
+            }
+        }
+
+        // The schedulers pace on the System.nanoTime base, so the test clock starts there.
+        final long[] now = { System.nanoTime() };
+        glove.setClock(new GlovePipeline.Clock() {
+            @Override
+            public long elapsedRealtimeNanos() {
+                return now[0];
+            }
+        });
+        for (int i = 0; i < WARMUP_SAMPLES; i++) {
+            push(glove, payloads[i % payloads.length], now, counter);
+            drain(robots, now[0]);
+        }
+        for (Pipeline.Stats stats : pipeline.getStats()) {
+            stats.reset();
+        }
+        final long released = glove.getJitterBuffer().getReleasedCount();
+        final long commands = getDriveCommands(robots);
+
+        long allocated = 0;
+        for (int i = WARMUP_SAMPLES; i < WARMUP_SAMPLES + SAMPLES; i++) {
+            allocated += push(glove, payloads[i % payloads.length], now, counter);
+            drain(robots, now[0]);
+        }
+
+        final float bytesPerSample = (float) allocated / SAMPLES;
+        assertTrue("Nothing released: " + glove.getJitterBuffer(),
+                glove.getJitterBuffer().getReleasedCount() > released);
+        assertTrue("No drive command reached the robots", getDriveCommands(robots) > commands);
+        assertTrue(bytesPerSample + " B/sample, budget " + MAX_BYTES_PER_SAMPLE + "; "
+                + pipeline, bytesPerSample <= MAX_BYTES_PER_SAMPLE);
+        watchdog.shutdown();
+    }
+
+    // Advances the clock by one sample and pushes a notification arriving then.  Returns the
+    // bytes the glove path allocated for it.
+    private static long push(GlovePipeline glove, byte[] payload, long[] now,
+                             Pipeline.AllocationCounter counter) {
+        now[0] += SAMPLE_INTERVAL_NANOS;
+        final long before = counter.getAllocatedBytes();
+        glove.push(payload, now[0]);
+        glove.getJitterBuffer().release(now[0]);
+        return counter.getAllocatedBytes() - before;
+    }
+
+    private static void drain(RobotGroup robots, long nowNanos) {
+        for (RobotGroup.Member member : robots.getMembers()) {
+            member.getScheduler().drain(nowNanos);
+        }
+    }
+
+    // Drive commands the robots were handed.
+    private static long getDriveCommands(RobotGroup robots) {
+        long commands = 0;
+        for (RobotGroup.Member member : robots.getMembers()) {
+            commands += ((FakeRobot) member.getScheduler().getRobot().getRobot()).mRolls;
+        }
+        return commands;
+    }
+
+    // Bytes allocated by the calling thread.  The calls themselves may allocate on some JVMs,
+    // so each reading takes two back to back and takes their cost off what it reports.
+    private static Pipeline.AllocationCounter newThreadCounter() {
+        final com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long id = Thread.currentThread().getId();
+        bean.getThreadAllocatedBytes(id);
+        return new Pipeline.AllocationCounter() {
+            private long mOverhead;
+
+            @Override
+            public long getAllocatedBytes() {
+                final long first = bean.getThreadAllocatedBytes(id);
+                final long second = bean.getThreadAllocatedBytes(id);
+                mOverhead += 2 * (second - first);
+                return second - mOverhead;
+            }
+        };
+    }
+
+    // A connected robot that accepts every command, never answers, and counts drive commands.
+    private static final class FakeRobot implements Robot {
+        private final String mName;
+        long mRolls;
+
+        FakeRobot(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String getIdentifier() {
+            return mName;
+        }
+
+        @Override
+        public String getAddress() {
+            return mName;
+        }
+
+        @Override
+        public String getSerialNumber() {
+            return mName;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public void sendCommand(DeviceCommand command) {
+            if (command instanceof RollCommand) {
+                mRolls++;
+            }
+        }
+
+        @Override
+        public void streamCommand(DeviceCommand command) {
+        }
+
+        @Override
+        public void addResponseListener(ResponseListener listener) {
+        }
+
+        @Override
+        public void removeResponseListener(ResponseListener listener) {
+        }
+
+        @Override
+        public int getConnectTimeInSeconds() {
+            return 0;
+        }
+
+        @Override
+        public VersioningResponse getVersions() {
+            return null;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isConnecting() {
+            return false;
+        }
+
+        @Override
+        public boolean isOnline() {
+            return true;
+        }
+
+        @Override
+        public boolean isBootloader() {
+            return false;
+        }
+
+        @Override
+        public void sleep() {
+        }
+
+        @Override
+        public void sleep(SleepCommand.SleepType type) {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public float getSignalQuality() {
+            return 1.0f;
+        }
+
+        @Override
+        public String getRadioFirmwareRevision() {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link SessionRecorder#open} copes with damaged session files and does not keep
+ * the ones it rejects open.
+ */
+public class SessionRecorderTest {
+
+    private static final int CHANNELS = 3;
+
+    @Test
+    public void openTruncatedHeaderClosesTheFile() throws IOException {
+        final File file = File.createTempFile("session", ".pal");
+        final RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            // Magic and version only; the channel count is missing.
+            data.writeInt(0x50414c53);
+            data.writeInt(1);
+        } finally {
+            data.close();
+        }
+
+        final long descriptors = getOpenDescriptors();
+        try {
+            SessionRecorder.open(file).close();
+            fail("Opened a session without a channel count");
+        } catch (IOException expected) {
+        }
+        assertEquals("Descriptors left open", descriptors, getOpenDescriptors());
+        // Also fails where an open file cannot be deleted.
+        assertTrue("Unable to delete " + file, file.delete());
+    }
+
+    @Test
+    public void openRecordCutShortKeepsTheWholeFrames() throws IOException {
+        final File file = File.createTempFile("session", ".pal");
+        final SessionRecorder recorder = SessionRecorder.create(file, CHANNELS);
+        final int[] values = new int[CHANNELS];
+        for (int i = 0; i < 3; i++) {
+            values[0] = i;
+            recorder.record(1000L * i, values, CHANNELS);
+        }
+        recorder.close();
+        final File index = new File(file.getPath() + ".idx");
+        assertTrue("Unable to delete " + index, index.delete());
+        final RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            data.setLength(data.length() - 2);
+        } finally {
+            data.close();
+        }
+
+        final SessionRecorder session = SessionRecorder.open(file);
+        try {
+            assertEquals(2, session.getFrameCount());
+            assertEquals(2, session.getPyramid().getFrameCount());
+        } finally {
+            session.close();
+        }
+        assertTrue("Unable to delete " + file, file.delete());
+    }
+
+    // Descriptors open in this process, or zero where the JVM does not report them.
+    private static long getOpenDescriptors() {
+        final OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) bean)
+                    .getOpenFileDescriptorCount();
+        }
+        return 0;
+    }
+}